@@ -0,0 +1,229 @@
+package me.outofti.solrspatiallight;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.search.DocListAndSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Index of generated locations shared by the JMH benchmarks.
+ *
+ * Locations are spread either uniformly over a two-degree square around the
+ * equator and prime meridian, or in gaussian clusters around a few "cities"
+ * inside it. The radius is chosen so that exactly hitRatio of the documents
+ * lie within it, and the filter query matches filterRatio of them.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkIndex {
+    public static final int ROWS = 10;
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int CITIES = 20;
+    private static final double HALF_WIDTH = 1.0;
+    private static final double CITY_SPREAD = 0.05;
+    private static final double MAX_RATING = 5.0;
+    private static final long SEED = 20100401L;
+
+    @Param({"10000", "100000", "1000000"})
+    public int documents;
+
+    @Param({"0.01", "0.1", "0.5"})
+    public double hitRatio;
+
+    @Param({"0.1", "1.0"})
+    public double filterRatio;
+
+    @Param({"uniform", "clustered"})
+    public String distribution;
+
+    CoreContainer container;
+    SolrCore core;
+    EmbeddedSolrServer server;
+    LocalSolrQueryRequest request;
+    SolrIndexSearcher searcher;
+
+    double centerLat;
+    double centerLng;
+    float radius;
+    String spatialParam;
+    SolrParams params;
+    List<Query> filterQueries;
+    CoordinateDistanceFilter distanceFilter;
+    CoordinateDistanceFilter responseFilter;
+    SpatialQueryComponent component;
+    Sort sort;
+    DocSet hits;
+    DocListAndSet results;
+
+    private int searches;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        System.setProperty("solr.solr.home", "test/solr");
+        container = new CoreContainer.Initializer().initialize();
+        core = container.getCore("");
+        server = new EmbeddedSolrServer(container, "");
+        index();
+
+        spatialParam = "{!radius=" + radius + " sort=true}"
+            + plain(centerLat) + "," + plain(centerLng);
+        final ModifiableSolrParams modifiable = new ModifiableSolrParams();
+        modifiable.set("q", "*:*");
+        modifiable.set("fq", getFilterQuery());
+        modifiable.set("spatial", spatialParam);
+        params = modifiable;
+        request = new LocalSolrQueryRequest(core, params);
+        searcher = request.getSearcher();
+
+        filterQueries = new ArrayList<Query>();
+        filterQueries.add(
+            QParser.getParser(getFilterQuery(), null, request).getQuery());
+        final Spatial spatial = newSpatial();
+        distanceFilter = spatial.getDistanceFilter();
+        sort = new Sort(spatial.getSortField());
+        // Response building clears the state of the filter it is given, so
+        // it gets an equal filter of its own.
+        responseFilter = newSpatial().getDistanceFilter();
+        component = new SpatialQueryComponent();
+        component.init(new NamedList());
+        component.inform(core);
+
+        final List<Query> allFilters = new ArrayList<Query>(filterQueries);
+        allFilters.add(new ConstantScoreQuery(distanceFilter));
+        hits = searcher.getDocSet(allFilters);
+        results = searcher.getDocListAndSet(new MatchAllDocsQuery(),
+                                            allFilters, sort, 0, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        request.close();
+        core.close();
+        container.shutdown();
+    }
+
+    Spatial newSpatial() throws Exception {
+        final SolrParams localParams =
+            QueryParsing.getLocalParams(spatialParam, params);
+        final Spatial spatial = new Spatial(localParams.get("v"), localParams,
+                                            params, request);
+        spatial.setSearch(new MatchAllDocsQuery(), filterQueries);
+        return spatial;
+    }
+
+    SolrQuery newQuery(final boolean uniqueCenter) {
+        double lat = centerLat;
+        if (uniqueCenter) {
+            // A centimeter or so per search keeps every search out of the
+            // caches without changing the hit ratio.
+            lat += ++searches * 1e-7;
+        }
+        final SolrQuery query = new SolrQuery();
+        query.setQuery("*:*");
+        query.setRows(ROWS);
+        query.addFilterQuery(getFilterQuery());
+        query.add("spatial", "{!radius=" + radius + " sort=true}"
+                  + plain(lat) + "," + plain(centerLng));
+        return query;
+    }
+
+    private String getFilterQuery() {
+        return "rating:[0.0 TO " + (filterRatio * MAX_RATING) + "]";
+    }
+
+    private void index() throws Exception {
+        final Random random = new Random(SEED);
+        final double[] lats = new double[documents];
+        final double[] lngs = new double[documents];
+        if ("clustered".equals(distribution)) {
+            final double[] cityLats = new double[CITIES];
+            final double[] cityLngs = new double[CITIES];
+            for (int i = 0; i < CITIES; i++) {
+                cityLats[i] = uniform(random);
+                cityLngs[i] = uniform(random);
+            }
+            for (int i = 0; i < documents; i++) {
+                final int city = random.nextInt(CITIES);
+                lats[i] = cityLats[city] + random.nextGaussian() * CITY_SPREAD;
+                lngs[i] = cityLngs[city] + random.nextGaussian() * CITY_SPREAD;
+            }
+            centerLat = cityLats[0];
+            centerLng = cityLngs[0];
+        } else {
+            for (int i = 0; i < documents; i++) {
+                lats[i] = uniform(random);
+                lngs[i] = uniform(random);
+            }
+            centerLat = 0.0;
+            centerLng = 0.0;
+        }
+
+        final DistanceCalculator calculator =
+            new DistanceCalculator(centerLat, centerLng);
+        final double[] distances = new double[documents];
+        for (int i = 0; i < documents; i++) {
+            distances[i] = calculator.getMiles(lats[i], lngs[i]);
+        }
+        Arrays.sort(distances);
+        radius = (float) distances[
+            Math.min(documents - 1, (int) (hitRatio * documents))];
+
+        server.deleteByQuery("*:*");
+        final Collection<SolrInputDocument> batch =
+            new ArrayList<SolrInputDocument>(BATCH_SIZE);
+        for (int i = 0; i < documents; i++) {
+            final SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("id", Integer.toString(i));
+            doc.addField("name", "Location " + i);
+            doc.addField("rating", random.nextDouble() * MAX_RATING);
+            doc.addField("lat", Double.toString(lats[i]));
+            doc.addField("lng", Double.toString(lngs[i]));
+            batch.add(doc);
+            if (batch.size() == BATCH_SIZE) {
+                server.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            server.add(batch);
+        }
+        server.commit();
+    }
+
+    private static double uniform(final Random random) {
+        return (random.nextDouble() * 2 - 1) * HALF_WIDTH;
+    }
+
+    private static String plain(final double degrees) {
+        return new BigDecimal(degrees).setScale(9, BigDecimal.ROUND_HALF_UP)
+            .toPlainString();
+    }
+}
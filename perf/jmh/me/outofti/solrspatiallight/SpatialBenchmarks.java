@@ -0,0 +1,128 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for each stage of a spatial search, and for whole searches.
+ *
+ * Run them with "ant benchmark", passing JMH options in the jmh.args property, for
+ * instance -Djmh.args="-p documents=100000 distanceFilter".
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SpatialBenchmarks {
+    /**
+     * Parse the spatial param and build the distance filter.
+     */
+    @Benchmark
+    public CoordinateDistanceFilter parse(final BenchmarkIndex index)
+        throws Exception {
+        return index.newSpatial().getDistanceFilter();
+    }
+
+    /**
+     * Find the documents in the bounding box.
+     */
+    @Benchmark
+    public int boundingBoxFilter(final BenchmarkIndex index)
+        throws IOException {
+        return count(index.distanceFilter.getStartingFilter(),
+                     index.searcher.getReader());
+    }
+
+    /**
+     * Find the documents within the radius.
+     */
+    @Benchmark
+    public int distanceFilter(final BenchmarkIndex index)
+        throws IOException {
+        return count(index.distanceFilter, index.searcher.getReader());
+    }
+
+    /**
+     * Sort the documents within the radius and matching the filter query.
+     */
+    @Benchmark
+    public TopDocs distanceSort(final BenchmarkIndex index)
+        throws IOException {
+        return index.searcher.search(new MatchAllDocsQuery(),
+                                     index.hits.getTopFilter(),
+                                     BenchmarkIndex.ROWS, index.sort);
+    }
+
+    /**
+     * Add the distances of a page of results to the response.
+     */
+    @Benchmark
+    public SolrQueryResponse responseBuilding(final BenchmarkIndex index)
+        throws IOException {
+        final ResponseBuilder rb = new ResponseBuilder();
+        rb.req = index.request;
+        rb.rsp = new SolrQueryResponse();
+        rb.setResults(index.results);
+        index.request.getContext().put("distanceFilter", index.responseFilter);
+        index.component.process(rb);
+        return rb.rsp;
+    }
+
+    /**
+     * Run a whole search that misses Solr's caches.
+     */
+    @Benchmark
+    public QueryResponse endToEnd(final BenchmarkIndex index)
+        throws Exception {
+        return index.server.query(index.newQuery(true));
+    }
+
+    /**
+     * Run the same whole search again and again.
+     */
+    @Benchmark
+    public QueryResponse endToEndCached(final BenchmarkIndex index)
+        throws Exception {
+        return index.server.query(index.newQuery(false));
+    }
+
+    private static int count(final Filter filter,
+                             final SolrIndexReader reader)
+        throws IOException {
+        int count = 0;
+        final SolrIndexReader[] segments = reader.getLeafReaders();
+        for (int i = 0; i < segments.length; i++) {
+            final DocIdSet docIdSet = filter.getDocIdSet(segments[i]);
+            if (docIdSet == null) {
+                continue;
+            }
+            final DocIdSetIterator it = docIdSet.iterator();
+            if (it == null) {
+                continue;
+            }
+            while (it.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,305 @@
+package me.outofti.solrspatiallight;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Runs a mixed spatial workload from several client threads at once against
+ * an embedded server, and reports throughput, latency percentiles and the
+ * memory allocated per query.
+ *
+ * Configured by system properties: threads, documents, warmup and seconds
+ * (the last two being the lengths of the warmup and measured phases).
+ */
+public class LoadTest {
+    private static final int CITIES = 50;
+    private static final int HOT_CENTERS = 100;
+    private static final double CITY_SPREAD = 0.1;
+    private static final int BATCH_SIZE = 1000;
+    private static final long SEED = 20100401L;
+    private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+
+    private final int threads;
+    private final int documents;
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final double[] cityLats = new double[CITIES];
+    private final double[] cityLngs = new double[CITIES];
+    private final double[][] hotCenters = new double[HOT_CENTERS][];
+
+    private SolrServer server;
+
+    public LoadTest(final int numThreads, final int numDocuments,
+                    final long warmupSeconds, final long measureSeconds) {
+        threads = numThreads;
+        documents = numDocuments;
+        warmupMillis = warmupSeconds * 1000L;
+        measureMillis = measureSeconds * 1000L;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        final LoadTest test = new LoadTest(
+                Integer.getInteger("threads",
+                    Runtime.getRuntime().availableProcessors()).intValue(),
+                Integer.getInteger("documents", 100000).intValue(),
+                Long.getLong("warmup", 10L).longValue(),
+                Long.getLong("seconds", 30L).longValue());
+        test.prepare();
+        test.run();
+        System.exit(0);
+    }
+
+    /**
+     * Index locations clustered around cities all over the map; most
+     * searches are centered on or near a city, as real ones are.
+     */
+    public final void prepare() throws Exception {
+        server = EmbeddedSolrServerFactory.getInstance().getServer();
+        server.deleteByQuery("*:*");
+        final Random random = new Random(SEED);
+        for (int i = 0; i < CITIES; i++) {
+            cityLats[i] = random.nextDouble() * 120.0 - 60.0;
+            cityLngs[i] = random.nextDouble() * 360.0 - 180.0;
+        }
+        for (int i = 0; i < HOT_CENTERS; i++) {
+            hotCenters[i] = nearCity(random);
+        }
+
+        final Collection<SolrInputDocument> batch =
+            new ArrayList<SolrInputDocument>(BATCH_SIZE);
+        for (int i = 0; i < documents; i++) {
+            final double[] location = nearCity(random);
+            final SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("id", Integer.toString(i));
+            doc.addField("name", "Location " + i);
+            doc.addField("rating", random.nextDouble() * 5.0);
+            doc.addField("lat", Double.toString(location[0]));
+            doc.addField("lng", Double.toString(location[1]));
+            batch.add(doc);
+            if (batch.size() == BATCH_SIZE) {
+                server.add(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            server.add(batch);
+        }
+        server.commit();
+    }
+
+    public final void run() throws Exception {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Client[] clients = new Client[threads];
+        for (int i = 0; i < threads; i++) {
+            clients[i] = new Client(i, ready, start);
+            clients[i].start();
+        }
+        ready.await();
+        final long startTime = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            clients[i].measureFrom = startTime + warmupMillis;
+            clients[i].measureUntil = startTime + warmupMillis + measureMillis;
+        }
+        start.countDown();
+
+        int queries = 0;
+        long allocated = 0L;
+        boolean allocationKnown = true;
+        for (int i = 0; i < threads; i++) {
+            clients[i].join();
+            if (clients[i].failure != null) {
+                throw clients[i].failure;
+            }
+            queries += clients[i].count;
+            if (clients[i].allocated < 0L) {
+                allocationKnown = false;
+            } else {
+                allocated += clients[i].allocated;
+            }
+        }
+
+        final long[] latencies = new long[queries];
+        int position = 0;
+        for (int i = 0; i < threads; i++) {
+            System.arraycopy(clients[i].latencies, 0, latencies, position,
+                             clients[i].count);
+            position += clients[i].count;
+        }
+        Arrays.sort(latencies);
+        report(latencies, allocationKnown ? allocated : -1L);
+    }
+
+    private void report(final long[] latencies, final long allocated) {
+        final double seconds = measureMillis / 1000.0;
+        System.out.format("%d documents; %d threads; %d queries in %.0fs%n",
+                          documents, threads, latencies.length, seconds);
+        if (latencies.length == 0) {
+            return;
+        }
+        System.out.format("Throughput: %.1f queries/s%n",
+                          latencies.length / seconds);
+        for (final double percentile : PERCENTILES) {
+            System.out.format("p%-5s %8.3fms%n", format(percentile),
+                              toMillis(percentile(latencies, percentile)));
+        }
+        System.out.format("max    %8.3fms%n",
+                          toMillis(latencies[latencies.length - 1]));
+        if (allocated < 0L) {
+            System.out.println("Allocation: not supported by this JVM");
+        } else {
+            System.out.format("Allocation: %.1fKB/query; %.1fMB/s%n",
+                              allocated / 1024.0 / latencies.length,
+                              allocated / 1024.0 / 1024.0 / seconds);
+        }
+    }
+
+    private static long percentile(final long[] sorted,
+                                   final double percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, index) - 1)];
+    }
+
+    private static String format(final double percentile) {
+        if (percentile == Math.floor(percentile)) {
+            return Long.toString((long) percentile);
+        }
+        return Double.toString(percentile);
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    private double[] nearCity(final Random random) {
+        final int city = random.nextInt(CITIES);
+        return new double[] {
+            cityLats[city] + random.nextGaussian() * CITY_SPREAD,
+            cityLngs[city] + random.nextGaussian() * CITY_SPREAD
+        };
+    }
+
+    /**
+     * Build a query from the workload mix: mostly radius searches sorted by
+     * distance, some narrowed by a filter query, some nearest-neighbor
+     * searches, and some using geohash cells or unit vectors. Half are
+     * centered on a popular spot, so the caches see repeats.
+     */
+    private SolrQuery nextQuery(final Random random) {
+        final double[] center;
+        if (random.nextBoolean()) {
+            center = hotCenters[random.nextInt(HOT_CENTERS)];
+        } else {
+            center = nearCity(random);
+        }
+        final String point =
+            String.format(Locale.US, "%.6f,%.6f", center[0], center[1]);
+        final double miles = 1.0 + random.nextDouble() * 9.0;
+        final SolrQuery query = new SolrQuery();
+        query.setQuery("*:*");
+        query.setRows(10);
+
+        final int kind = random.nextInt(100);
+        final String spatial;
+        if (kind < 40) {
+            spatial = "{!radius=" + miles + " sort=true}";
+        } else if (kind < 60) {
+            query.addFilterQuery("rating:[4.0 TO 5.0]");
+            spatial = "{!radius=" + miles + " sort=true filterFirst=true}";
+        } else if (kind < 75) {
+            spatial = "{!k=10 radius=50}";
+        } else if (kind < 90) {
+            spatial = "{!radius=" + miles + " sort=true cells=geohash}";
+        } else {
+            spatial = "{!radius=" + miles + " sort=true vectors=vector}";
+        }
+        query.add("spatial", spatial + point);
+        return query;
+    }
+
+    private final class Client extends Thread {
+        private final CountDownLatch ready;
+        private final CountDownLatch start;
+        private final Random random;
+
+        private volatile long measureFrom;
+        private volatile long measureUntil;
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private long allocated = -1L;
+        private Exception failure;
+
+        Client(final int index, final CountDownLatch readyLatch,
+               final CountDownLatch startLatch) {
+            super("load-client-" + index);
+            ready = readyLatch;
+            start = startLatch;
+            random = new Random(SEED + index);
+        }
+
+        public void run() {
+            try {
+                ready.countDown();
+                start.await();
+                long now = System.currentTimeMillis();
+                while (now < measureFrom) {
+                    server.query(nextQuery(random));
+                    now = System.currentTimeMillis();
+                }
+                final long allocatedBefore = getAllocatedBytes();
+                while (now < measureUntil) {
+                    final SolrQuery query = nextQuery(random);
+                    final long before = System.nanoTime();
+                    server.query(query);
+                    record(System.nanoTime() - before);
+                    now = System.currentTimeMillis();
+                }
+                final long allocatedAfter = getAllocatedBytes();
+                if (allocatedBefore >= 0L && allocatedAfter >= 0L) {
+                    allocated = allocatedAfter - allocatedBefore;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+
+        private void record(final long nanos) {
+            if (count == latencies.length) {
+                final long[] grown = new long[count * 2];
+                System.arraycopy(latencies, 0, grown, 0, count);
+                latencies = grown;
+            }
+            latencies[count++] = nanos;
+        }
+
+        /**
+         * Bytes allocated by this thread so far, or -1 if the JVM can't
+         * tell. Queries run on the calling thread in an embedded server, so
+         * this covers the server's work too.
+         */
+        private long getAllocatedBytes() {
+            final java.lang.management.ThreadMXBean bean =
+                ManagementFactory.getThreadMXBean();
+            if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+                return -1L;
+            }
+            final com.sun.management.ThreadMXBean sunBean =
+                (com.sun.management.ThreadMXBean) bean;
+            if (!sunBean.isThreadAllocatedMemorySupported()
+                    || !sunBean.isThreadAllocatedMemoryEnabled()) {
+                return -1L;
+            }
+            return sunBean.getThreadAllocatedBytes(getId());
+        }
+    }
+}
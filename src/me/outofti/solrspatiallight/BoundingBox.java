@@ -0,0 +1,287 @@
+package me.outofti.solrspatiallight;
+
+/**
+ * Latitude and longitude bounds of a circle on the earth's surface, or a box
+ * given by its edges.
+ *
+ * The latitude bounds are clamped to the poles. If the circle contains a
+ * pole, every longitude is within it; otherwise the longitude bounds are
+ * the tightest that contain the circle, which at high latitudes is much less
+ * than the radius divided by the cosine of the latitude. Longitude bounds
+ * crossing the antimeridian are split into two ranges.
+ */
+public final class BoundingBox extends Shape {
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Southern edge of the box.
+     */
+    private final double minLat;
+
+    /**
+     * Northern edge of the box.
+     */
+    private final double maxLat;
+
+    /**
+     * Western edge of the box, which may be less than -180 if the box
+     * crosses the antimeridian.
+     */
+    private final double minLng;
+
+    /**
+     * Eastern edge of the box, which may be more than 180 if the box crosses
+     * the antimeridian.
+     */
+    private final double maxLng;
+
+    /**
+     * Whether the box spans every longitude.
+     */
+    private final boolean wholeWidth;
+
+    /**
+     * Compute the bounding box of a circle.
+     *
+     * @param lat           latitude of the centerpoint
+     * @param lng           longitude of the centerpoint
+     * @param radiusDegrees radius of the circle, as an angle in degrees
+     */
+    public BoundingBox(final double lat, final double lng,
+                       final double radiusDegrees) {
+        final double radius = Math.abs(radiusDegrees);
+        final double south = lat - radius;
+        final double north = lat + radius;
+        minLat = Math.max(south, -MAX_LAT);
+        maxLat = Math.min(north, MAX_LAT);
+        if (south <= -MAX_LAT || north >= MAX_LAT || radius >= MAX_LNG) {
+            wholeWidth = true;
+            minLng = -MAX_LNG;
+            maxLng = MAX_LNG;
+            return;
+        }
+        final double lngRadius = Math.toDegrees(Math.asin(Math.min(1.0,
+                Math.sin(Math.toRadians(radius))
+                / Math.cos(Math.toRadians(lat)))));
+        wholeWidth = false;
+        minLng = lng - lngRadius;
+        maxLng = lng + lngRadius;
+    }
+
+    /**
+     * Construct a box from its edges.
+     *
+     * @param south southern edge
+     * @param north northern edge
+     * @param west  western edge
+     * @param east  eastern edge, more than 180 if the box crosses the
+     *              antimeridian
+     * @param whole whether the box spans every longitude
+     */
+    private BoundingBox(final double south, final double north,
+                        final double west, final double east,
+                        final boolean whole) {
+        minLat = south;
+        maxLat = north;
+        minLng = west;
+        maxLng = east;
+        wholeWidth = whole;
+    }
+
+    /**
+     * Construct a box from its edges.
+     *
+     * If the western edge is east of the eastern edge, the box crosses the
+     * antimeridian.
+     *
+     * @param south southern edge, from -90 to 90
+     * @param west  western edge, from -180 to 180
+     * @param north northern edge, from south to 90
+     * @param east  eastern edge, from -180 to 180
+     *
+     * @return box
+     */
+    public static BoundingBox fromEdges(final double south, final double west,
+                                        final double north,
+                                        final double east) {
+        double unwrappedEast = east;
+        if (west > east) {
+            unwrappedEast += 2 * MAX_LNG;
+        }
+        return new BoundingBox(south, north, west, unwrappedEast,
+                               unwrappedEast - west >= 2 * MAX_LNG);
+    }
+
+    /**
+     * Whether a point is in the box.
+     *
+     * @param lat latitude of the point
+     * @param lng longitude of the point, from -180 to 180
+     *
+     * @return true if the point is in the box or on its edge
+     */
+    @Override
+    public boolean contains(final double lat, final double lng) {
+        if (lat < minLat || lat > maxLat) {
+            return false;
+        }
+        if (wholeWidth) {
+            return true;
+        }
+        return lng >= minLng && lng <= maxLng
+            || lng + 2 * MAX_LNG >= minLng && lng + 2 * MAX_LNG <= maxLng
+            || lng - 2 * MAX_LNG >= minLng && lng - 2 * MAX_LNG <= maxLng;
+    }
+
+    /**
+     * Get the box itself.
+     *
+     * @return this box
+     */
+    @Override
+    public BoundingBox getBounds() {
+        return this;
+    }
+
+    /**
+     * Boxes are equal if they have the same edges.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal box
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof BoundingBox)) {
+            return false;
+        }
+        final BoundingBox other = (BoundingBox) o;
+        return minLat == other.minLat && maxLat == other.maxLat
+            && minLng == other.minLng && maxLng == other.maxLng
+            && wholeWidth == other.wholeWidth;
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        int h = Double.valueOf(minLat).hashCode();
+        h = h * HASH_MULTIPLIER + Double.valueOf(maxLat).hashCode();
+        h = h * HASH_MULTIPLIER + Double.valueOf(minLng).hashCode();
+        return h * HASH_MULTIPLIER + Double.valueOf(maxLng).hashCode();
+    }
+
+    /**
+     * Get the southern edge of the box.
+     *
+     * @return latitude, not less than -90
+     */
+    public double getMinLat() {
+        return minLat;
+    }
+
+    /**
+     * Get the northern edge of the box.
+     *
+     * @return latitude, not more than 90
+     */
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    /**
+     * Get the western edge of the box.
+     *
+     * @return longitude, which is less than -180 if the box crosses the
+     *         antimeridian
+     */
+    public double getMinLng() {
+        return minLng;
+    }
+
+    /**
+     * Get the eastern edge of the box.
+     *
+     * @return longitude, which is more than 180 if the box crosses the
+     *         antimeridian
+     */
+    public double getMaxLng() {
+        return maxLng;
+    }
+
+    /**
+     * Whether the box spans every longitude, in which case documents need
+     * not be filtered by longitude at all.
+     *
+     * @return true if every longitude is within the box
+     */
+    public boolean isWholeWidth() {
+        return wholeWidth;
+    }
+
+    /**
+     * Get the ranges of longitudes within the box, each within -180 to 180.
+     *
+     * @return one range, or two if the box crosses the antimeridian, as
+     *         {min, max} pairs; empty if the box spans every longitude
+     */
+    public double[][] getLngRanges() {
+        if (wholeWidth) {
+            return new double[0][];
+        }
+        if (minLng < -MAX_LNG) {
+            return new double[][] {
+                {minLng + 2 * MAX_LNG, MAX_LNG},
+                {-MAX_LNG, maxLng}
+            };
+        }
+        if (maxLng > MAX_LNG) {
+            return new double[][] {
+                {minLng, MAX_LNG},
+                {-MAX_LNG, maxLng - 2 * MAX_LNG}
+            };
+        }
+        return new double[][] {{minLng, maxLng}};
+    }
+
+    /**
+     * Whether the box overlaps a range of latitudes and longitudes.
+     *
+     * @param latRange {min, max} latitudes
+     * @param lngRange {min, max} longitudes, each within -180 to 180
+     *
+     * @return true if some location in both ranges is within the box
+     */
+    public boolean overlaps(final double[] latRange, final double[] lngRange) {
+        if (maxLat < latRange[0] || minLat > latRange[1]) {
+            return false;
+        }
+        if (wholeWidth) {
+            return true;
+        }
+        final double[][] lngRanges = getLngRanges();
+        for (int i = 0; i < lngRanges.length; i++) {
+            if (lngRanges[i][1] >= lngRange[0]
+                    && lngRanges[i][0] <= lngRange[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
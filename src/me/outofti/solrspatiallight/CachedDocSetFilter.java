@@ -0,0 +1,187 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.util.OpenBitSetDISI;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Filter matching the intersection of a list of filter queries.
+ *
+ * The filter holds nothing but its queries, as it may outlive the searcher
+ * it was built for: it is part of the distance filters kept as keys in
+ * Solr's caches, which are autowarmed by running the old keys against each
+ * new searcher. Each reader it is given is traced to its top-level reader;
+ * if that reader belongs to a searcher registered by a spatial search, the
+ * DocSet for each query comes from that searcher's filter cache, so filter
+ * queries shared with other requests are not re-evaluated. Otherwise, as
+ * while a new searcher is autowarmed, the queries are evaluated directly
+ * against the reader.
+ */
+public final class CachedDocSetFilter extends Filter {
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Searchers whose filter caches may be used, keyed by their top-level
+     * readers; neither is kept alive by the map.
+     */
+    private static final Map<Object, WeakReference<SolrIndexSearcher>>
+        SEARCHERS = new WeakHashMap<Object,
+                                    WeakReference<SolrIndexSearcher>>();
+
+    /**
+     * Filter queries to intersect.
+     */
+    private final List<Query> queries;
+
+    /**
+     * Construct the filter.
+     *
+     * @param filterQueries filter queries to intersect; the list is copied
+     */
+    public CachedDocSetFilter(final List<Query> filterQueries) {
+        queries = new ArrayList<Query>(filterQueries);
+    }
+
+    /**
+     * Let filters use the filter cache of a searcher for its readers.
+     *
+     * @param searcher searcher of a request
+     */
+    public static void registerSearcher(final SolrIndexSearcher searcher) {
+        synchronized (SEARCHERS) {
+            SEARCHERS.put(searcher.getReader(),
+                          new WeakReference<SolrIndexSearcher>(searcher));
+        }
+    }
+
+    /**
+     * Get the matching documents in the given reader.
+     *
+     * @param reader index reader, normally a single segment of a searcher
+     *
+     * @throws IOException on index read error
+     * @return matching documents
+     */
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+        final SolrIndexSearcher searcher = getSearcher(reader);
+        if (searcher != null) {
+            return searcher.getDocSet(queries).getTopFilter()
+                .getDocIdSet(reader);
+        }
+        OpenBitSetDISI matches = null;
+        for (final Iterator<Query> it = queries.iterator(); it.hasNext();) {
+            final DocIdSet docs = new QueryWrapperFilter(
+                    makeQueryable(it.next())).getDocIdSet(reader);
+            final DocIdSetIterator docIt = docs.iterator();
+            if (docIt == null) {
+                return DocIdSet.EMPTY_DOCIDSET;
+            }
+            if (matches == null) {
+                matches = new OpenBitSetDISI(docIt, reader.maxDoc());
+            } else {
+                matches.inPlaceAnd(docIt);
+            }
+        }
+        if (matches == null) {
+            return DocIdSet.EMPTY_DOCIDSET;
+        }
+        return matches;
+    }
+
+    /**
+     * Find the registered searcher owning a reader.
+     *
+     * @param reader index reader
+     *
+     * @return searcher whose top-level reader holds the reader, or null if
+     *         it is not registered
+     */
+    private static SolrIndexSearcher getSearcher(final IndexReader reader) {
+        if (!(reader instanceof SolrIndexReader)) {
+            return null;
+        }
+        SolrIndexReader top = (SolrIndexReader) reader;
+        while (top.getParent() != null) {
+            top = top.getParent();
+        }
+        WeakReference<SolrIndexSearcher> ref;
+        synchronized (SEARCHERS) {
+            ref = SEARCHERS.get(top);
+        }
+        if (ref == null) {
+            return null;
+        }
+        final SolrIndexSearcher searcher = ref.get();
+        if (searcher == null || searcher.getReader() != top) {
+            return null;
+        }
+        return searcher;
+    }
+
+    /**
+     * Make a purely negative query match the documents it excludes from
+     * the whole index, as Solr does for filter queries.
+     *
+     * @param query filter query
+     *
+     * @return query matching the same documents as the filter query
+     */
+    private static Query makeQueryable(final Query query) {
+        if (!(query instanceof BooleanQuery)) {
+            return query;
+        }
+        final BooleanClause[] clauses = ((BooleanQuery) query).getClauses();
+        for (int i = 0; i < clauses.length; i++) {
+            if (!clauses[i].isProhibited()) {
+                return query;
+            }
+        }
+        final BooleanQuery positive = (BooleanQuery) query.clone();
+        positive.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        return positive;
+    }
+
+    /**
+     * Filters are equal if they intersect the same filter queries.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal filter
+     */
+    @Override
+    public boolean equals(final Object o) {
+        return o instanceof CachedDocSetFilter
+            && queries.equals(((CachedDocSetFilter) o).queries);
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        return queries.hashCode();
+    }
+}
@@ -0,0 +1,234 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Cache of coordinate values, stored as one primitive array per field per
+ * index reader.
+ *
+ * Spatial filters and sorts are evaluated one segment at a time, so the
+ * readers handed to this cache are normally segment readers. Entries are
+ * keyed on the reader's field cache key, so they are shared by every
+ * concurrent request against the same segment, and are released along with
+ * the segment once the searcher that opened it is closed.
+ *
+ * Values are decoded directly from the full-precision terms of a
+ * TrieDoubleField. Documents without a value in the field get 0.0, as they
+ * would in Lucene's FieldCache. The least and greatest values indexed in
+ * each segment are kept alongside, so that filters can skip segments with
+ * no documents in range.
+ */
+public final class CoordinateCache {
+    /**
+     * Shared instance used by the spatial filters and sorts.
+     */
+    public static final CoordinateCache DEFAULT = new CoordinateCache();
+
+    /**
+     * Per-field value arrays, keyed by reader.
+     */
+    private final Map<Object, Map<String, FieldValues>> readerCache =
+        new WeakHashMap<Object, Map<String, FieldValues>>();
+
+    /**
+     * Only the shared instance should be used.
+     */
+    private CoordinateCache() { }
+
+    /**
+     * Get the values of a coordinate field for every document in a reader.
+     *
+     * The array is built the first time it is requested for a given reader
+     * and field; concurrent requests for the same array wait for it to be
+     * built rather than building their own.
+     *
+     * @param reader index reader, normally a single segment
+     * @param field  name of a TrieDoubleField
+     *
+     * @throws IOException on index read error
+     * @return array of field values, indexed by document ID within reader
+     */
+    public double[] getValues(final IndexReader reader, final String field)
+        throws IOException {
+        return getFieldValues(reader, field).getValues();
+    }
+
+    /**
+     * Get the least and greatest values of a coordinate field indexed in a
+     * reader, loading the field's values if need be.
+     *
+     * Values of deleted documents are included, so the range may be wider
+     * than that of the live documents.
+     *
+     * @param reader index reader, normally a single segment
+     * @param field  name of a TrieDoubleField
+     *
+     * @throws IOException on index read error
+     * @return {min, max}, or null if no document has a value in the field
+     */
+    public double[] getRange(final IndexReader reader, final String field)
+        throws IOException {
+        return getFieldValues(reader, field).getRange();
+    }
+
+    /**
+     * Get the key under which per-segment data is cached for a reader.
+     *
+     * Lucene 2.9 deprecates the field cache key, but offers no other key
+     * that is shared by a segment's reopened readers yet released along
+     * with the segment; it is the key Lucene's own FieldCache uses. Every
+     * per-segment cache in the plugin goes through this method, so there is
+     * one place to change when the key is replaced.
+     *
+     * @param reader index reader, normally a single segment
+     *
+     * @return key shared by every reader of the reader's segment
+     */
+    @SuppressWarnings("deprecation")
+    static Object getSegmentKey(final IndexReader reader) {
+        return reader.getFieldCacheKey();
+    }
+
+    /**
+     * Get the cached values of a field, building them the first time they
+     * are requested for a given reader and field.
+     *
+     * @param reader index reader
+     * @param field  name of a TrieDoubleField
+     *
+     * @throws IOException on index read error
+     * @return values of the field
+     */
+    private FieldValues getFieldValues(final IndexReader reader,
+                                       final String field)
+        throws IOException {
+        Map<String, FieldValues> fieldCache;
+        synchronized (readerCache) {
+            fieldCache = readerCache.get(getSegmentKey(reader));
+            if (fieldCache == null) {
+                fieldCache = new HashMap<String, FieldValues>();
+                readerCache.put(getSegmentKey(reader), fieldCache);
+            }
+        }
+        synchronized (fieldCache) {
+            FieldValues fieldValues = fieldCache.get(field);
+            if (fieldValues == null) {
+                fieldValues = loadValues(reader, field);
+                fieldCache.put(field, fieldValues);
+            }
+            return fieldValues;
+        }
+    }
+
+    /**
+     * Read the values of a field out of the index.
+     *
+     * Trie fields index each value at several precisions; the full-precision
+     * terms sort first, so reading stops at the first reduced-precision term.
+     *
+     * @param reader index reader
+     * @param field  name of a TrieDoubleField
+     *
+     * @throws IOException on index read error
+     * @return values of the field
+     */
+    private static FieldValues loadValues(final IndexReader reader,
+                                          final String field)
+        throws IOException {
+        final FieldValues fieldValues = new FieldValues(reader.maxDoc());
+        final double[] values = fieldValues.getValues();
+        final TermEnum terms = reader.terms(new Term(field, ""));
+        final TermDocs termDocs = reader.termDocs();
+        try {
+            do {
+                final Term term = terms.term();
+                if (term == null || !term.field().equals(field)) {
+                    break;
+                }
+                final String text = term.text();
+                if (text.charAt(0) != NumericUtils.SHIFT_START_LONG) {
+                    break;
+                }
+                final double value = NumericUtils.prefixCodedToDouble(text);
+                fieldValues.include(value);
+                termDocs.seek(terms);
+                while (termDocs.next()) {
+                    values[termDocs.doc()] = value;
+                }
+            } while (terms.next());
+        } finally {
+            termDocs.close();
+            terms.close();
+        }
+        return fieldValues;
+    }
+
+    /**
+     * Values of a field for every document in a reader, with their range.
+     */
+    private static final class FieldValues {
+        /**
+         * Field values, indexed by document ID within the reader.
+         */
+        private final double[] values;
+
+        /**
+         * Least value indexed, or positive infinity if there is none.
+         */
+        private double min = Double.POSITIVE_INFINITY;
+
+        /**
+         * Greatest value indexed, or negative infinity if there is none.
+         */
+        private double max = Double.NEGATIVE_INFINITY;
+
+        /**
+         * Construct the values, all 0.0.
+         *
+         * @param maxDoc number of documents in the reader
+         */
+        FieldValues(final int maxDoc) {
+            values = new double[maxDoc];
+        }
+
+        /**
+         * Get the field values.
+         *
+         * @return values, indexed by document ID within the reader
+         */
+        double[] getValues() {
+            return values;
+        }
+
+        /**
+         * Widen the range to include a value indexed.
+         *
+         * @param value value indexed
+         */
+        void include(final double value) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Get the range of the values indexed.
+         *
+         * @return least and greatest values, or null if none are indexed
+         */
+        double[] getRange() {
+            if (min > max) {
+                return null;
+            }
+            return new double[] {min, max};
+        }
+    }
+}
@@ -0,0 +1,812 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.OpenBitSetDISI;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexReader;
+
+/**
+ * Distance filter reading coordinates from the shared CoordinateCache.
+ *
+ * Documents matched by the starting filter are kept if they lie within the
+ * given distance of the centerpoint. A filter may also have several
+ * centerpoints, each with its own distance; documents are then kept if they
+ * lie within the distance of any of them, and their distance is that from
+ * the nearest. If the filter is given a DistanceTable,
+ * the distance of each kept document is recorded in it under its top-level
+ * document ID; otherwise the filter only selects documents, and distances
+ * can be computed later for just the documents that need them.
+ *
+ * The filter can also be told to evaluate every segment of a searcher at
+ * once on a ParallelDistanceEvaluator. Nothing is computed until Solr asks
+ * the filter for its first segment, which only happens if the filter cache
+ * misses; the other segments are then served from the combined result.
+ *
+ * Segments whose indexed coordinates all lie outside the bounding boxes of
+ * the centerpoints' radii are skipped without looking at their candidates.
+ *
+ * If its result depends only on the contents of each segment, the filter
+ * can be told to keep its result for each segment in the
+ * SegmentResultCache, so that searchers opened by later commits only
+ * evaluate their new segments.
+ */
+public final class CoordinateDistanceFilter extends Filter {
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Filter supplying candidate documents.
+     */
+    private final Filter startingFilter;
+
+    /**
+     * Maximum distance from each centerpoint, in miles.
+     */
+    private final double[] radii;
+
+    /**
+     * Distances of the documents kept by the filter, or null if distances are
+     * not recorded.
+     */
+    private final transient DistanceTable distances;
+
+    /**
+     * Calculators for distances from each centerpoint.
+     */
+    private final DistanceCalculator[] calculators;
+
+    /**
+     * Fields from which locations are read.
+     */
+    private final LocationFields fields;
+
+    /**
+     * Bounding boxes of the radii around each centerpoint.
+     */
+    private final transient BoundingBox[] boxes;
+
+    /**
+     * Whether results are kept in the SegmentResultCache.
+     */
+    private transient boolean segmentCached;
+
+    /**
+     * Evaluator for all segments at once, or null to evaluate segments
+     * separately.
+     */
+    private transient ParallelDistanceEvaluator evaluator;
+
+    /**
+     * Top-level reader whose segments the evaluator is used for.
+     */
+    private transient SolrIndexReader topReader;
+
+    /**
+     * Documents matched by the evaluator, once computed.
+     */
+    private transient DocSet evaluated;
+
+    /**
+     * Distances recorded by the evaluator, once computed.
+     */
+    private transient DistanceTable evaluatedDistances;
+
+    /**
+     * Number of candidate documents whose distances have been computed.
+     */
+    private transient long candidatesExamined;
+
+    /**
+     * Number of candidate documents found within the distance.
+     */
+    private transient long candidatesAccepted;
+
+    /**
+     * Time spent computing distances, in nanoseconds.
+     */
+    private transient long evaluationNanos;
+
+    /**
+     * Number of segments skipped because none of their documents could be
+     * in range; counted without locking the filter, as segments are checked
+     * by the worker threads of a parallel evaluation while it is held.
+     */
+    private final transient AtomicLong segmentsSkipped = new AtomicLong();
+
+    /**
+     * Construct the filter.
+     *
+     * @param candidates     filter supplying candidate documents
+     * @param lat            latitude of the centerpoint
+     * @param lng            longitude of the centerpoint
+     * @param miles          maximum distance from the centerpoint
+     * @param locationFields fields from which locations are read
+     * @param table          table in which to record distances, or null
+     */
+    public CoordinateDistanceFilter(final Filter candidates,
+                                    final double lat, final double lng,
+                                    final double miles,
+                                    final LocationFields locationFields,
+                                    final DistanceTable table) {
+        this(candidates,
+             new DistanceCalculator[] {new DistanceCalculator(lat, lng)},
+             new double[] {miles}, locationFields, table);
+    }
+
+    /**
+     * Construct a filter with several centerpoints.
+     *
+     * @param candidates     filter supplying candidate documents
+     * @param centers        calculators for distances from each centerpoint
+     * @param miles          maximum distance from each centerpoint
+     * @param locationFields fields from which locations are read
+     * @param table          table in which to record distances, or null
+     */
+    public CoordinateDistanceFilter(final Filter candidates,
+                                    final DistanceCalculator[] centers,
+                                    final double[] miles,
+                                    final LocationFields locationFields,
+                                    final DistanceTable table) {
+        startingFilter = candidates;
+        radii = miles.clone();
+        distances = table;
+        calculators = centers.clone();
+        fields = locationFields;
+        boxes = new BoundingBox[calculators.length];
+        for (int i = 0; i < calculators.length; i++) {
+            boxes[i] = new BoundingBox(calculators[i].getLat(),
+                                       calculators[i].getLng(),
+                                       radii[i] / Spatial.DEGREES_TO_MILES);
+        }
+    }
+
+    /**
+     * Get the table in which distances are recorded.
+     *
+     * @return distance table, or null if distances are not recorded
+     */
+    public synchronized DistanceTable getDistanceTable() {
+        if (evaluatedDistances != null) {
+            return evaluatedDistances;
+        }
+        return distances;
+    }
+
+    /**
+     * Evaluate the filter on all segments of a reader at once, the first
+     * time any of them is filtered.
+     *
+     * @param parallelEvaluator evaluator for all segments at once
+     * @param reader            top-level reader of the searcher
+     */
+    public synchronized void evaluateInParallel(
+            final ParallelDistanceEvaluator parallelEvaluator,
+            final SolrIndexReader reader) {
+        evaluator = parallelEvaluator;
+        topReader = reader;
+    }
+
+    /**
+     * Keep the filter's result for each segment in the SegmentResultCache.
+     *
+     * Only filters whose candidates depend on nothing but the contents of
+     * each segment may be cached this way, so filters reading locations from
+     * an overlay are not.
+     */
+    public void cacheSegmentResults() {
+        segmentCached = !fields.isOverlaid();
+    }
+
+    /**
+     * Whether the filter's results are kept in the SegmentResultCache.
+     *
+     * @return true if results are kept
+     */
+    boolean isSegmentCached() {
+        return segmentCached;
+    }
+
+    /**
+     * Get the filter's cached result for a segment.
+     *
+     * @param reader segment reader
+     *
+     * @return documents matched in the segment, or null if the result is not
+     *         cached or the filter's results are not kept
+     */
+    DocIdSet getCachedResult(final IndexReader reader) {
+        if (!segmentCached) {
+            return null;
+        }
+        return SegmentResultCache.DEFAULT.get(reader, getCacheKey());
+    }
+
+    /**
+     * Keep the filter's result for a segment.
+     *
+     * @param reader segment reader
+     * @param docs   documents matched in the segment, in ascending order
+     * @param count  number of documents in docs
+     */
+    void cacheResult(final IndexReader reader, final int[] docs,
+                     final int count) {
+        SegmentResultCache.DEFAULT.put(reader, getCacheKey(), docs, count);
+    }
+
+    /**
+     * Get a key equal to the filter but holding none of its per-request
+     * state, under which its results are cached.
+     *
+     * @return cache key
+     */
+    private CoordinateDistanceFilter getCacheKey() {
+        return new CoordinateDistanceFilter(startingFilter, calculators,
+                                            radii, fields, null);
+    }
+
+    /**
+     * Forget the result of a parallel evaluation, once the search using it
+     * is done, so that it is not kept alive by the filter.
+     */
+    public synchronized void clearEvaluation() {
+        evaluator = null;
+        topReader = null;
+        evaluated = null;
+        evaluatedDistances = null;
+    }
+
+    /**
+     * Record the work done by one pass over the candidates.
+     *
+     * @param examined number of candidates whose distances were computed
+     * @param accepted number of them within the distance
+     * @param nanos    time taken, in nanoseconds
+     */
+    synchronized void recordEvaluation(final long examined,
+                                       final long accepted,
+                                       final long nanos) {
+        candidatesExamined += examined;
+        candidatesAccepted += accepted;
+        evaluationNanos += nanos;
+    }
+
+    /**
+     * Get the number of segments skipped so far because none of their
+     * documents could be in range.
+     *
+     * @return number of segments skipped
+     */
+    public long getSegmentsSkipped() {
+        return segmentsSkipped.get();
+    }
+
+    /**
+     * Whether any document of a segment may be within range, judging by
+     * the least and greatest coordinates indexed in it. Segments with
+     * overlaid locations are never skipped. Segments found to be out of
+     * range are counted as skipped.
+     *
+     * @param reader segment reader
+     *
+     * @throws IOException on index read error
+     * @return false if every indexed location is outside the bounding boxes
+     *         of the radii
+     */
+    boolean mayMatch(final IndexReader reader) throws IOException {
+        if (fields.getSegmentOverlay(reader) != null) {
+            return true;
+        }
+        final double[] latRange =
+            CoordinateCache.DEFAULT.getRange(reader, fields.getLatField());
+        final double[] lngRange =
+            CoordinateCache.DEFAULT.getRange(reader, fields.getLngField());
+        if (latRange != null && lngRange != null) {
+            for (int i = 0; i < boxes.length; i++) {
+                if (boxes[i].overlaps(latRange, lngRange)) {
+                    return true;
+                }
+            }
+        }
+        segmentsSkipped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Get the number of candidate documents whose distances have been
+     * computed, over every segment filtered so far.
+     *
+     * @return number of candidates examined
+     */
+    public synchronized long getCandidatesExamined() {
+        return candidatesExamined;
+    }
+
+    /**
+     * Get the number of candidate documents found within the distance, over
+     * every segment filtered so far.
+     *
+     * @return number of candidates accepted
+     */
+    public synchronized long getCandidatesAccepted() {
+        return candidatesAccepted;
+    }
+
+    /**
+     * Get the time spent computing distances so far.
+     *
+     * Filtering a segment is timed from the first document asked of it to
+     * the last, so the time includes whatever work Solr interleaves with
+     * the filter, which for a filter query is little.
+     *
+     * @return time in nanoseconds
+     */
+    public synchronized long getEvaluationNanos() {
+        return evaluationNanos;
+    }
+
+    /**
+     * Get the filter supplying candidate documents.
+     *
+     * @return starting filter
+     */
+    public Filter getStartingFilter() {
+        return startingFilter;
+    }
+
+    /**
+     * Get the calculators for distances from each centerpoint.
+     *
+     * @return distance calculators
+     */
+    public DistanceCalculator[] getCalculators() {
+        return calculators.clone();
+    }
+
+    /**
+     * Get the fields from which locations are read.
+     *
+     * @return location fields
+     */
+    public LocationFields getLocationFields() {
+        return fields;
+    }
+
+    /**
+     * Load the distances of a segment's documents, checked against the
+     * filter's radii.
+     *
+     * @param reader segment reader
+     *
+     * @throws IOException on index read error
+     * @return distances of the segment's documents
+     */
+    public SegmentDistances getSegmentDistances(final IndexReader reader)
+        throws IOException {
+        return fields.getDistances(reader, calculators, radii);
+    }
+
+    /**
+     * Load the distances of a segment's documents, checked against the same
+     * radius around every centerpoint.
+     *
+     * @param reader segment reader
+     * @param miles  radius in miles
+     *
+     * @throws IOException on index read error
+     * @return distances of the segment's documents
+     */
+    public SegmentDistances getSegmentDistances(final IndexReader reader,
+                                                final double miles)
+        throws IOException {
+        final double[] uniform = new double[calculators.length];
+        Arrays.fill(uniform, miles);
+        return fields.getDistances(reader, calculators, uniform);
+    }
+
+    /**
+     * Compute the distance of a single document from the nearest
+     * centerpoint.
+     *
+     * @param reader top-level reader of the searcher
+     * @param doc    top-level document ID
+     *
+     * @throws IOException on index read error
+     * @return distance in miles
+     */
+    public double getDistance(final SolrIndexReader reader, final int doc)
+        throws IOException {
+        final int[] offsets = reader.getLeafOffsets();
+        final int leaf = SolrIndexReader.readerIndex(doc, offsets);
+        final SolrIndexReader segment = reader.getLeafReaders()[leaf];
+        final SegmentDistances segmentDistances =
+            getSegmentDistances(segment);
+        return fields.toMiles(
+                segmentDistances.getKey(doc - offsets[leaf]));
+    }
+
+    /**
+     * Get the documents within the distance in the given reader.
+     *
+     * @param reader index reader, normally a single segment
+     *
+     * @throws IOException on index read error
+     * @return documents within the distance
+     */
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+        final DocSet docSet = getEvaluatedDocSet(reader);
+        if (docSet != null) {
+            return docSet.getTopFilter().getDocIdSet(reader);
+        }
+        if (!mayMatch(reader)) {
+            return DocIdSet.EMPTY_DOCIDSET;
+        }
+        final DocIdSet cached = getCachedResult(reader);
+        if (cached != null && distances == null) {
+            return cached;
+        }
+        DocIdSet candidates = cached;
+        if (candidates == null) {
+            candidates = getCandidates(reader);
+        }
+        final DocIdSet matches = new DistanceDocIdSet(
+                candidates, getSegmentDistances(reader), getDocBase(reader));
+        if (cached == null && segmentCached) {
+            return SegmentResultCache.DEFAULT.put(reader, getCacheKey(),
+                                                  matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Get the candidate documents of a segment: those of the starting
+     * filter, along with any live documents whose locations are overlaid,
+     * which may have moved into range since they were indexed.
+     *
+     * @param reader segment reader
+     *
+     * @throws IOException on index read error
+     * @return candidate documents, or null if there are none
+     */
+    DocIdSet getCandidates(final IndexReader reader) throws IOException {
+        return addOverlaid(startingFilter.getDocIdSet(reader), reader,
+                           fields);
+    }
+
+    /**
+     * Add the live documents of a segment whose locations are overlaid to a
+     * set of candidates found by their indexed locations.
+     *
+     * @param candidates documents found by their indexed locations, or null
+     * @param reader     segment reader
+     * @param fields     fields from which locations are read
+     *
+     * @throws IOException on index read error
+     * @return candidate documents, or null if there are none
+     */
+    static DocIdSet addOverlaid(final DocIdSet candidates,
+                                final IndexReader reader,
+                                final LocationFields fields)
+        throws IOException {
+        final LocationOverlay.SegmentOverlay overlay =
+            fields.getSegmentOverlay(reader);
+        if (overlay == null) {
+            return candidates;
+        }
+        final OpenBitSetDISI union = new OpenBitSetDISI(reader.maxDoc());
+        if (candidates != null) {
+            final DocIdSetIterator it = candidates.iterator();
+            if (it != null) {
+                union.inPlaceOr(it);
+            }
+        }
+        final int[] overlaid = overlay.getDocs();
+        for (int i = 0; i < overlaid.length; i++) {
+            if (!reader.isDeleted(overlaid[i])) {
+                union.fastSet(overlaid[i]);
+            }
+        }
+        return union;
+    }
+
+    /**
+     * Get the result of the parallel evaluation covering a reader,
+     * evaluating it if necessary.
+     *
+     * @param reader index reader, normally a single segment
+     *
+     * @throws IOException on index read error
+     * @return matching documents of the whole top-level reader, or null if
+     *         the reader is not covered by a parallel evaluation
+     */
+    private synchronized DocSet getEvaluatedDocSet(final IndexReader reader)
+        throws IOException {
+        if (evaluator == null || !isCovered(reader)) {
+            return null;
+        }
+        if (evaluated == null) {
+            final DistanceTable table = new DistanceTable(topReader.maxDoc());
+            evaluated = evaluator.evaluate(topReader, this, table);
+            evaluatedDistances = table;
+        }
+        return evaluated;
+    }
+
+    /**
+     * Whether a reader is the top-level reader given to evaluateInParallel()
+     * or one of its segments.
+     *
+     * @param reader index reader
+     *
+     * @return true if the parallel evaluation covers the reader
+     */
+    private boolean isCovered(final IndexReader reader) {
+        if (reader == topReader) {
+            return true;
+        }
+        final SolrIndexReader[] segments = topReader.getLeafReaders();
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] == reader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Offset of the given reader's documents in the top-level reader.
+     *
+     * @param reader index reader
+     *
+     * @return document ID base
+     */
+    private static int getDocBase(final IndexReader reader) {
+        if (reader instanceof SolrIndexReader) {
+            return ((SolrIndexReader) reader).getBase();
+        }
+        return 0;
+    }
+
+    /**
+     * Filters are equal if they select the same documents.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal filter
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CoordinateDistanceFilter)) {
+            return false;
+        }
+        final CoordinateDistanceFilter other = (CoordinateDistanceFilter) o;
+        return Arrays.equals(radii, other.radii)
+            && Arrays.equals(calculators, other.calculators)
+            && fields.equals(other.fields)
+            && startingFilter.equals(other.startingFilter);
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        int h = Arrays.hashCode(radii);
+        h = h * HASH_MULTIPLIER + Arrays.hashCode(calculators);
+        h = h * HASH_MULTIPLIER + fields.hashCode();
+        return h * HASH_MULTIPLIER + startingFilter.hashCode();
+    }
+
+    /**
+     * Candidate documents of a segment that lie within the distance,
+     * counting and timing the distance computations.
+     */
+    private final class DistanceDocIdSet extends FilteredDocIdSet {
+        /**
+         * Distances of the segment's documents.
+         */
+        private final SegmentDistances segmentDistances;
+
+        /**
+         * Offset of the segment's documents in the top-level reader.
+         */
+        private final int docBase;
+
+        /**
+         * Number of candidates whose distances have been computed.
+         */
+        private long examined;
+
+        /**
+         * Number of candidates found within the distance.
+         */
+        private long accepted;
+
+        /**
+         * Construct the set.
+         *
+         * @param candidates      candidate documents of the segment
+         * @param distancesToDocs distances of the segment's documents
+         * @param segmentBase     offset of the segment's documents
+         */
+        DistanceDocIdSet(final DocIdSet candidates,
+                         final SegmentDistances distancesToDocs,
+                         final int segmentBase) {
+            super(candidates);
+            segmentDistances = distancesToDocs;
+            docBase = segmentBase;
+        }
+
+        /**
+         * Whether a candidate lies within the distance, recording its
+         * distance if the filter keeps a table.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return true if the document is within the distance
+         */
+        @Override
+        protected boolean match(final int doc) {
+            examined++;
+            final double key = segmentDistances.getKeyWithin(doc);
+            if (!Double.isNaN(key)) {
+                accepted++;
+                if (distances != null) {
+                    distances.put(docBase + doc, fields.toMiles(key));
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Iterate over the documents within the distance, recording the
+         * work done once the iteration is exhausted.
+         *
+         * @throws IOException on index read error
+         * @return iterator
+         */
+        @Override
+        public DocIdSetIterator iterator() throws IOException {
+            return new TimedIterator(this, super.iterator());
+        }
+    }
+
+    /**
+     * Iterator recording the work done by a DistanceDocIdSet's iteration
+     * with the filter once it is exhausted.
+     */
+    private final class TimedIterator extends DocIdSetIterator {
+        /**
+         * Set being iterated.
+         */
+        private final DistanceDocIdSet set;
+
+        /**
+         * Iterator of the set.
+         */
+        private final DocIdSetIterator iterator;
+
+        /**
+         * Candidates the set had examined before this iteration.
+         */
+        private final long examinedBefore;
+
+        /**
+         * Candidates the set had accepted before this iteration.
+         */
+        private final long acceptedBefore;
+
+        /**
+         * Time of the first call.
+         */
+        private long start;
+
+        /**
+         * Whether the first call has been made.
+         */
+        private boolean started;
+
+        /**
+         * Whether the iteration has been recorded.
+         */
+        private boolean recorded;
+
+        /**
+         * Construct the iterator.
+         *
+         * @param docIdSet         set being iterated
+         * @param docIdSetIterator iterator of the set
+         */
+        TimedIterator(final DistanceDocIdSet docIdSet,
+                      final DocIdSetIterator docIdSetIterator) {
+            set = docIdSet;
+            iterator = docIdSetIterator;
+            examinedBefore = docIdSet.examined;
+            acceptedBefore = docIdSet.accepted;
+        }
+
+        /**
+         * Current document.
+         *
+         * @return document ID
+         */
+        @Override
+        public int docID() {
+            return iterator.docID();
+        }
+
+        /**
+         * Advance to the next document.
+         *
+         * @throws IOException on index read error
+         * @return document ID, or NO_MORE_DOCS
+         */
+        @Override
+        public int nextDoc() throws IOException {
+            begin();
+            return end(iterator.nextDoc());
+        }
+
+        /**
+         * Advance to the first document at or beyond a target.
+         *
+         * @param target document ID
+         *
+         * @throws IOException on index read error
+         * @return document ID, or NO_MORE_DOCS
+         */
+        @Override
+        public int advance(final int target) throws IOException {
+            begin();
+            return end(iterator.advance(target));
+        }
+
+        /**
+         * Start the clock on the first call.
+         */
+        private void begin() {
+            if (!started) {
+                started = true;
+                start = System.nanoTime();
+            }
+        }
+
+        /**
+         * Record the iteration if it is exhausted.
+         *
+         * @param doc document ID returned by the wrapped iterator
+         *
+         * @return the same document ID
+         */
+        private int end(final int doc) {
+            if (doc == NO_MORE_DOCS && !recorded) {
+                recorded = true;
+                recordEvaluation(set.examined - examinedBefore,
+                                 set.accepted - acceptedBefore,
+                                 System.nanoTime() - start);
+            }
+            return doc;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package me.outofti.solrspatiallight;
+
+/**
+ * Great-circle distance calculator for a fixed centerpoint.
+ *
+ * Uses the spherical law of cosines with the same earth radius as
+ * lucene-spatial, so distances agree with those it computes; the trig
+ * functions of the centerpoint are computed once rather than per document.
+ *
+ * Distances can also be measured between unit vectors, for documents whose
+ * location was indexed by UnitVectorUpdateProcessorFactory. The cosine of
+ * the angle between two points is then the dot product of their vectors,
+ * which needs no trig functions at all.
+ */
+public final class DistanceCalculator {
+    /**
+     * Radius of the earth in statute miles.
+     */
+    public static final double EARTH_RADIUS_MILES = 3963.205;
+
+    /**
+     * Degrees between the equator and the poles.
+     */
+    private static final double RIGHT_ANGLE = 90.0;
+
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Latitude of the centerpoint.
+     */
+    private final double centerLat;
+
+    /**
+     * Longitude of the centerpoint.
+     */
+    private final double centerLng;
+
+    /**
+     * Cosine of the centerpoint's colatitude.
+     */
+    private final double cosCenterColat;
+
+    /**
+     * Sine of the centerpoint's colatitude.
+     */
+    private final double sinCenterColat;
+
+    /**
+     * Unit vector of the centerpoint.
+     */
+    private final double[] centerVector;
+
+    /**
+     * Construct a calculator measuring distances from the given centerpoint.
+     *
+     * @param lat latitude of the centerpoint
+     * @param lng longitude of the centerpoint
+     */
+    public DistanceCalculator(final double lat, final double lng) {
+        centerLat = lat;
+        centerLng = lng;
+        final double colat = Math.toRadians(RIGHT_ANGLE - lat);
+        cosCenterColat = Math.cos(colat);
+        sinCenterColat = Math.sin(colat);
+        centerVector = getUnitVector(lat, lng);
+    }
+
+    /**
+     * Get the unit vector of a point, in earth-centered coordinates with the
+     * z axis through the north pole and the x axis through longitude 0.
+     *
+     * @param lat latitude of the point
+     * @param lng longitude of the point
+     *
+     * @return x, y and z components
+     */
+    public static double[] getUnitVector(final double lat, final double lng) {
+        final double latRadians = Math.toRadians(lat);
+        final double lngRadians = Math.toRadians(lng);
+        final double cosLat = Math.cos(latRadians);
+        return new double[] {
+            cosLat * Math.cos(lngRadians),
+            cosLat * Math.sin(lngRadians),
+            Math.sin(latRadians),
+        };
+    }
+
+    /**
+     * Convert the dot product of two unit vectors to the distance between
+     * their points.
+     *
+     * @param dot dot product, the cosine of the angle between the points
+     *
+     * @return great-circle distance in miles
+     */
+    public static double dotProductToMiles(final double dot) {
+        if (dot <= -1.0) {
+            return Math.PI * EARTH_RADIUS_MILES;
+        } else if (dot >= 1.0) {
+            return 0.0;
+        }
+        return Math.acos(dot) * EARTH_RADIUS_MILES;
+    }
+
+    /**
+     * Convert a distance to the least dot product of the unit vectors of
+     * two points that distance apart or closer.
+     *
+     * @param miles great-circle distance in miles
+     *
+     * @return least dot product, or negative infinity if the distance spans
+     *         the globe
+     */
+    public static double milesToDotProduct(final double miles) {
+        final double angle = miles / EARTH_RADIUS_MILES;
+        if (angle >= Math.PI) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Math.cos(angle);
+    }
+
+    /**
+     * Get the latitude of the centerpoint.
+     *
+     * @return latitude
+     */
+    public double getLat() {
+        return centerLat;
+    }
+
+    /**
+     * Get the longitude of the centerpoint.
+     *
+     * @return longitude
+     */
+    public double getLng() {
+        return centerLng;
+    }
+
+    /**
+     * Distance in miles from the centerpoint to a given point.
+     *
+     * @param lat latitude of the point
+     * @param lng longitude of the point
+     *
+     * @return great-circle distance in miles
+     */
+    public double getMiles(final double lat, final double lng) {
+        if (lat == centerLat && lng == centerLng) {
+            return 0.0;
+        }
+        final double colat = Math.toRadians(RIGHT_ANGLE - lat);
+        final double cosAngle = cosCenterColat * Math.cos(colat)
+            + sinCenterColat * Math.sin(colat)
+            * Math.cos(Math.toRadians(lng - centerLng));
+        if (cosAngle <= -1.0) {
+            return Math.PI * EARTH_RADIUS_MILES;
+        } else if (cosAngle >= 1.0) {
+            return 0.0;
+        }
+        return Math.acos(cosAngle) * EARTH_RADIUS_MILES;
+    }
+
+    /**
+     * Calculators are equal if they measure from the same centerpoint.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal calculator
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof DistanceCalculator)) {
+            return false;
+        }
+        final DistanceCalculator other = (DistanceCalculator) o;
+        return centerLat == other.centerLat && centerLng == other.centerLng;
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        return Double.valueOf(centerLat).hashCode() * HASH_MULTIPLIER
+            + Double.valueOf(centerLng).hashCode();
+    }
+
+    /**
+     * Dot product of the centerpoint's unit vector with a given unit vector.
+     *
+     * @param x x component of the vector
+     * @param y y component of the vector
+     * @param z z component of the vector
+     *
+     * @return cosine of the angle between the centerpoint and the point
+     */
+    public double getDotProduct(final double x, final double y,
+                                final double z) {
+        return centerVector[0] * x + centerVector[1] * y
+            + centerVector[2] * z;
+    }
+}
@@ -0,0 +1,251 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+
+/**
+ * Sorts documents by distance from a centerpoint, or from the nearest of
+ * several.
+ *
+ * Distances are computed as documents are collected, from the coordinate
+ * arrays of the segment being searched, so nothing is computed ahead of the
+ * search and memory use is proportional to the number of hits collected
+ * rather than the number of candidates. The queue holds the sort keys given
+ * by SegmentDistances, which are only converted to miles when read back.
+ */
+public final class DistanceComparatorSource extends FieldComparatorSource {
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Calculators for distances from each centerpoint.
+     */
+    private final DistanceCalculator[] calculators;
+
+    /**
+     * Unbounded radius for each centerpoint.
+     */
+    private final double[] unbounded;
+
+    /**
+     * Fields from which locations are read.
+     */
+    private final LocationFields fields;
+
+    /**
+     * Construct the comparator source.
+     *
+     * @param distanceCalculator calculator for distances from the centerpoint
+     * @param locationFields     fields from which locations are read
+     */
+    public DistanceComparatorSource(
+            final DistanceCalculator distanceCalculator,
+            final LocationFields locationFields) {
+        this(new DistanceCalculator[] {distanceCalculator}, locationFields);
+    }
+
+    /**
+     * Construct a comparator source sorting by distance from the nearest of
+     * several centerpoints.
+     *
+     * @param distanceCalculators calculators for distances from each
+     *                            centerpoint
+     * @param locationFields      fields from which locations are read
+     */
+    public DistanceComparatorSource(
+            final DistanceCalculator[] distanceCalculators,
+            final LocationFields locationFields) {
+        calculators = distanceCalculators.clone();
+        unbounded = new double[calculators.length];
+        Arrays.fill(unbounded, Double.POSITIVE_INFINITY);
+        fields = locationFields;
+    }
+
+    /**
+     * Create a comparator for a search.
+     *
+     * @param fieldname ignored
+     * @param numHits   number of hits being collected
+     * @param sortPos   ignored
+     * @param reversed  ignored
+     *
+     * @return comparator
+     */
+    @Override
+    public FieldComparator newComparator(final String fieldname,
+                                         final int numHits,
+                                         final int sortPos,
+                                         final boolean reversed) {
+        return new DistanceComparator(numHits);
+    }
+
+    /**
+     * Comparator sources are equal if they sort by distance from the same
+     * centerpoints, so that equal sorts share queryResultCache entries.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal comparator source
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof DistanceComparatorSource)) {
+            return false;
+        }
+        final DistanceComparatorSource other = (DistanceComparatorSource) o;
+        return Arrays.equals(calculators, other.calculators)
+            && fields.equals(other.fields);
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(calculators) * HASH_MULTIPLIER
+            + fields.hashCode();
+    }
+
+    /**
+     * Comparator computing distances as documents are collected.
+     */
+    private final class DistanceComparator extends FieldComparator {
+        /**
+         * Distance keys of the documents in each queue slot.
+         */
+        private final double[] slots;
+
+        /**
+         * Distance key of the weakest document in the queue.
+         */
+        private double bottom;
+
+        /**
+         * Distances of the current segment's documents.
+         */
+        private SegmentDistances distances;
+
+        /**
+         * Document whose distance was computed most recently.
+         */
+        private int lastDoc = -1;
+
+        /**
+         * Distance key of lastDoc.
+         */
+        private double lastDistance;
+
+        /**
+         * Construct the comparator.
+         *
+         * @param numHits number of queue slots
+         */
+        DistanceComparator(final int numHits) {
+            slots = new double[numHits];
+        }
+
+        /**
+         * Distance key of a document in the current segment.
+         *
+         * The collector usually copies a document right after comparing it
+         * with the bottom of the queue, so the last distance is remembered.
+         *
+         * @param doc document ID within the current segment
+         *
+         * @return distance key
+         */
+        private double getDistance(final int doc) {
+            if (doc != lastDoc) {
+                lastDoc = doc;
+                lastDistance = distances.getKey(doc);
+            }
+            return lastDistance;
+        }
+
+        /**
+         * Compare two slots.
+         *
+         * @param slot1 first slot
+         * @param slot2 second slot
+         *
+         * @return comparison
+         */
+        @Override
+        public int compare(final int slot1, final int slot2) {
+            return Double.compare(slots[slot1], slots[slot2]);
+        }
+
+        /**
+         * Compare the bottom of the queue with a document.
+         *
+         * @param doc document ID within the current segment
+         *
+         * @return comparison
+         */
+        @Override
+        public int compareBottom(final int doc) {
+            return Double.compare(bottom, getDistance(doc));
+        }
+
+        /**
+         * Copy a document's distance into a slot.
+         *
+         * @param slot queue slot
+         * @param doc  document ID within the current segment
+         */
+        @Override
+        public void copy(final int slot, final int doc) {
+            slots[slot] = getDistance(doc);
+        }
+
+        /**
+         * Set the bottom of the queue.
+         *
+         * @param slot queue slot
+         */
+        @Override
+        public void setBottom(final int slot) {
+            bottom = slots[slot];
+        }
+
+        /**
+         * Move on to a new segment.
+         *
+         * @param reader segment reader
+         * @param docBase document ID base of the segment
+         *
+         * @throws IOException on index read error
+         */
+        @Override
+        public void setNextReader(final IndexReader reader, final int docBase)
+            throws IOException {
+            distances = fields.getDistances(reader, calculators, unbounded);
+            lastDoc = -1;
+        }
+
+        /**
+         * Distance in a slot.
+         *
+         * @param slot queue slot
+         *
+         * @return distance in miles
+         */
+        @Override
+        public Comparable<Double> value(final int slot) {
+            return Double.valueOf(fields.toMiles(slots[slot]));
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexReader;
+
+/**
+ * Counts of the documents within each of several distances of a
+ * centerpoint, or of the nearest of several.
+ *
+ * The counts are cumulative, so a document within one mile is also counted
+ * as within five. They are taken in a single pass over the documents,
+ * computing each document's distance once from the coordinate arrays and
+ * finding the least distance it is within; a document is within a distance
+ * exactly when a radius search for that distance would return it.
+ */
+public final class DistanceFacets {
+    /**
+     * Distances in miles, in ascending order.
+     */
+    private final double[] bounds;
+
+    /**
+     * Labels of the distances as given in the request, parallel to bounds.
+     */
+    private final String[] labels;
+
+    /**
+     * Construct the facets.
+     *
+     * @param miles       distances in miles, in ascending order
+     * @param milesLabels labels of the distances, parallel to miles
+     */
+    private DistanceFacets(final double[] miles, final String[] milesLabels) {
+        bounds = miles;
+        labels = milesLabels;
+    }
+
+    /**
+     * Parse a comma-separated list of distances in miles.
+     *
+     * @param ranges distances, such as "1,5,10,25"
+     *
+     * @throws ParseException if a distance is not a positive number
+     * @return facets counting the documents within each distance
+     */
+    public static DistanceFacets parse(final String ranges)
+        throws ParseException {
+        final String[] parts = ranges.split(",");
+        final Bound[] parsed = new Bound[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            final String label = parts[i].trim();
+            double miles;
+            try {
+                miles = Double.parseDouble(label);
+            } catch (NumberFormatException e) {
+                miles = Double.NaN;
+            }
+            if (!(miles > 0.0)) {
+                throw new ParseException(
+                        "Distance facet ranges should be positive numbers of "
+                        + "miles, separated by commas");
+            }
+            parsed[i] = new Bound(miles, label);
+        }
+        Arrays.sort(parsed);
+        final double[] miles = new double[parsed.length];
+        final String[] milesLabels = new String[parsed.length];
+        for (int i = 0; i < parsed.length; i++) {
+            miles[i] = parsed[i].miles;
+            milesLabels[i] = parsed[i].label;
+        }
+        return new DistanceFacets(miles, milesLabels);
+    }
+
+    /**
+     * Count the documents of a result set within each distance of the
+     * distance filter's centerpoint.
+     *
+     * @param reader top-level reader of the searcher
+     * @param docs   documents to count
+     * @param filter distance filter whose centerpoint and fields are used
+     *
+     * @throws IOException on index read error
+     * @return number of documents within each distance, keyed by the
+     *         distance as given in the request, in ascending order
+     */
+    public NamedList<Integer> count(final SolrIndexReader reader,
+                                    final DocSet docs,
+                                    final CoordinateDistanceFilter filter)
+        throws IOException {
+        final SolrIndexReader[] segments = reader.getLeafReaders();
+        final int[] offsets = reader.getLeafOffsets();
+        final SegmentDistances[][] distances =
+            new SegmentDistances[segments.length][];
+        final int[] counts = new int[bounds.length];
+        int leaf = -1;
+        int leafStart = 0;
+        int leafEnd = 0;
+        for (final DocIterator it = docs.iterator(); it.hasNext();) {
+            final int doc = it.nextDoc();
+            if (doc < leafStart || doc >= leafEnd) {
+                leaf = SolrIndexReader.readerIndex(doc, offsets);
+                leafStart = offsets[leaf];
+                leafEnd = leafStart + segments[leaf].maxDoc();
+                if (distances[leaf] == null) {
+                    distances[leaf] = getDistances(segments[leaf], filter);
+                }
+            }
+            final SegmentDistances[] within = distances[leaf];
+            final double key = within[0].getKey(doc - leafStart);
+            for (int i = 0; i < within.length; i++) {
+                if (within[i].isWithin(key)) {
+                    counts[i]++;
+                    break;
+                }
+            }
+        }
+
+        final NamedList<Integer> facets = new SimpleOrderedMap<Integer>();
+        int total = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            total += counts[i];
+            facets.add(labels[i], Integer.valueOf(total));
+        }
+        return facets;
+    }
+
+    /**
+     * Merge the counts taken by several shards of a distributed search.
+     *
+     * @param shardCounts counts returned by each shard's count()
+     *
+     * @return total number of documents within each distance, keyed by the
+     *         distance as given in the request, in ascending order
+     */
+    public NamedList<Integer> merge(final List<NamedList<?>> shardCounts) {
+        final int[] totals = new int[bounds.length];
+        for (final Iterator<NamedList<?>> it = shardCounts.iterator();
+                it.hasNext();) {
+            final NamedList<?> counts = it.next();
+            for (int i = 0; i < bounds.length; i++) {
+                final Number count = (Number) counts.get(labels[i]);
+                if (count != null) {
+                    totals[i] += count.intValue();
+                }
+            }
+        }
+        final NamedList<Integer> facets = new SimpleOrderedMap<Integer>();
+        for (int i = 0; i < bounds.length; i++) {
+            facets.add(labels[i], Integer.valueOf(totals[i]));
+        }
+        return facets;
+    }
+
+    /**
+     * Load a segment's distances, checked against each of the distances.
+     *
+     * @param segment segment reader
+     * @param filter  distance filter whose centerpoint and fields are used
+     *
+     * @throws IOException on index read error
+     * @return distances for each bound, in ascending order of bound
+     */
+    private SegmentDistances[] getDistances(
+            final SolrIndexReader segment,
+            final CoordinateDistanceFilter filter) throws IOException {
+        final SegmentDistances[] within = new SegmentDistances[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            within[i] = filter.getSegmentDistances(segment, bounds[i]);
+        }
+        return within;
+    }
+
+    /**
+     * A distance and the label it was given by, ordered by distance.
+     */
+    private static final class Bound implements Comparable<Bound> {
+        /**
+         * Distance in miles.
+         */
+        private final double miles;
+
+        /**
+         * Distance as given in the request.
+         */
+        private final String label;
+
+        /**
+         * Construct the bound.
+         *
+         * @param distance distance in miles
+         * @param text     distance as given in the request
+         */
+        Bound(final double distance, final String text) {
+            miles = distance;
+            label = text;
+        }
+
+        /**
+         * Order bounds by distance.
+         *
+         * @param other other bound
+         *
+         * @return negative, zero or positive as this bound is nearer, as
+         *         near or farther than the other
+         */
+        public int compareTo(final Bound other) {
+            return Double.compare(miles, other.miles);
+        }
+    }
+}
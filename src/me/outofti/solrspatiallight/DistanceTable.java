@@ -0,0 +1,187 @@
+package me.outofti.solrspatiallight;
+
+import java.util.Arrays;
+
+/**
+ * Distances keyed by top-level document ID, stored without boxing.
+ *
+ * While few documents have been added, the table is an open-addressing hash
+ * from document ID to distance. Once it holds enough documents that a
+ * double[] spanning the whole index would be no larger, it switches to that
+ * dense representation, in which absent documents are marked with NaN.
+ */
+public final class DistanceTable {
+    /**
+     * Number of slots in a new hash table; must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Multiplier used to spread document IDs across hash slots.
+     */
+    private static final int HASH_MIX = 0x9E3779B9;
+
+    /**
+     * Bytes used by one hash slot: an int key and a double value.
+     */
+    private static final int SPARSE_SLOT_BYTES = 12;
+
+    /**
+     * Bytes used by one document in the dense representation.
+     */
+    private static final int DENSE_SLOT_BYTES = 8;
+
+    /**
+     * Number of documents in the index.
+     */
+    private final int maxDoc;
+
+    /**
+     * Hash keys, holding document ID plus one; zero marks an empty slot.
+     */
+    private int[] keys;
+
+    /**
+     * Hash values, parallel to keys.
+     */
+    private double[] values;
+
+    /**
+     * Dense distances by document ID, or null while the table is sparse.
+     */
+    private double[] dense;
+
+    /**
+     * Number of documents in the table.
+     */
+    private int size;
+
+    /**
+     * Construct an empty table.
+     *
+     * @param numDocs maximum document ID plus one of the top-level reader
+     */
+    public DistanceTable(final int numDocs) {
+        maxDoc = numDocs;
+        if ((long) INITIAL_CAPACITY * SPARSE_SLOT_BYTES
+                >= (long) numDocs * DENSE_SLOT_BYTES) {
+            makeDense();
+        } else {
+            keys = new int[INITIAL_CAPACITY];
+            values = new double[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Record the distance of a document.
+     *
+     * @param doc   top-level document ID
+     * @param miles distance in miles
+     */
+    public void put(final int doc, final double miles) {
+        if (dense != null) {
+            if (Double.isNaN(dense[doc])) {
+                size++;
+            }
+            dense[doc] = miles;
+            return;
+        }
+        final int slot = findSlot(doc);
+        if (keys[slot] == 0) {
+            keys[slot] = doc + 1;
+            size++;
+        }
+        values[slot] = miles;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /**
+     * Get the distance of a document.
+     *
+     * @param doc top-level document ID
+     *
+     * @return distance in miles, or NaN if the document is not in the table
+     */
+    public double get(final int doc) {
+        if (dense != null) {
+            return dense[doc];
+        }
+        final int slot = findSlot(doc);
+        if (keys[slot] == 0) {
+            return Double.NaN;
+        }
+        return values[slot];
+    }
+
+    /**
+     * Whether the table has a distance for a document.
+     *
+     * @param doc top-level document ID
+     *
+     * @return true if the document's distance is known
+     */
+    public boolean contains(final int doc) {
+        return !Double.isNaN(get(doc));
+    }
+
+    /**
+     * Number of documents in the table.
+     *
+     * @return size
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the hash slot holding a document, or the empty slot where it
+     * belongs.
+     *
+     * @param doc top-level document ID
+     *
+     * @return slot index
+     */
+    private int findSlot(final int doc) {
+        final int mask = keys.length - 1;
+        int slot = (doc * HASH_MIX) & mask;
+        while (keys[slot] != 0 && keys[slot] != doc + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Double the hash table, or switch to the dense representation if that
+     * would take no more memory.
+     */
+    private void grow() {
+        final int[] oldKeys = keys;
+        final double[] oldValues = values;
+        final int capacity = oldKeys.length * 2;
+        if ((long) capacity * SPARSE_SLOT_BYTES
+                >= (long) maxDoc * DENSE_SLOT_BYTES) {
+            makeDense();
+        } else {
+            keys = new int[capacity];
+            values = new double[capacity];
+        }
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                put(oldKeys[i] - 1, oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Switch to the dense representation.
+     */
+    private void makeDense() {
+        dense = new double[maxDoc];
+        Arrays.fill(dense, Double.NaN);
+        keys = null;
+        values = null;
+    }
+}
@@ -0,0 +1,196 @@
+package me.outofti.solrspatiallight;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.spatial.geohash.GeoHashUtils;
+
+/**
+ * Geohash cells used to index and look up locations by term.
+ *
+ * A document is indexed with every prefix of its geohash up to
+ * MAX_PRECISION characters, so each prefix names a cell that contains the
+ * document. A bounding box is then covered with a few cells of a single
+ * precision, and the documents in the box are the union of a few postings
+ * lists rather than the intersection of two bands around the globe.
+ */
+public final class GeoHashCells {
+    /**
+     * Length of the longest geohash prefix indexed, a cell of roughly five
+     * meters square.
+     */
+    public static final int MAX_PRECISION = 9;
+
+    /**
+     * Most cells used to cover a bounding box.
+     */
+    private static final int MAX_COVER_CELLS = 32;
+
+    /**
+     * Bits encoded by each geohash character.
+     */
+    private static final int BITS_PER_CHAR = 5;
+
+    /**
+     * Greatest latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Utility class; not instantiated.
+     */
+    private GeoHashCells() {
+    }
+
+    /**
+     * Get the cells containing a location, from the coarsest to the finest.
+     *
+     * @param lat latitude of the location
+     * @param lng longitude of the location
+     *
+     * @return geohash prefixes of length 1 through MAX_PRECISION
+     */
+    public static String[] getCells(final double lat, final double lng) {
+        final String hash = GeoHashUtils.encode(lat, lng);
+        final String[] cells = new String[MAX_PRECISION];
+        for (int i = 0; i < MAX_PRECISION; i++) {
+            cells[i] = hash.substring(0, i + 1);
+        }
+        return cells;
+    }
+
+    /**
+     * Get a set of cells covering a bounding box.
+     *
+     * The finest precision whose cover needs no more than MAX_COVER_CELLS
+     * cells is used. Longitudes outside -180 to 180 wrap around the
+     * antimeridian, and latitudes are clamped at the poles.
+     *
+     * @param minLat southern edge of the box
+     * @param maxLat northern edge of the box
+     * @param minLng western edge of the box
+     * @param maxLng eastern edge of the box
+     *
+     * @return geohashes of the covering cells
+     */
+    public static List<String> getCover(final double minLat,
+                                        final double maxLat,
+                                        final double minLng,
+                                        final double maxLng) {
+        final double south = Math.max(minLat, -MAX_LAT);
+        final double north = Math.min(maxLat, MAX_LAT);
+        final boolean wholeWidth = !(maxLng - minLng < 2 * MAX_LNG);
+
+        int precision = 1;
+        while (precision < MAX_PRECISION
+               && countCells(precision + 1, south, north, minLng, maxLng,
+                             wholeWidth) <= MAX_COVER_CELLS) {
+            precision++;
+        }
+
+        final long rows = getRows(precision);
+        final long columns = getColumns(precision);
+        final double height = 2 * MAX_LAT / rows;
+        final double width = 2 * MAX_LNG / columns;
+        final long firstRow = getRow(south, height, rows);
+        final long lastRow = getRow(north, height, rows);
+        long firstColumn = 0;
+        long columnCount = columns;
+        if (!wholeWidth) {
+            firstColumn = (long) Math.floor((minLng + MAX_LNG) / width);
+            columnCount = Math.min(columns,
+                    (long) Math.floor((maxLng + MAX_LNG) / width)
+                    - firstColumn + 1);
+        }
+
+        final List<String> cells = new ArrayList<String>();
+        for (long row = firstRow; row <= lastRow; row++) {
+            final double lat = -MAX_LAT + row * height + height / 2;
+            for (long i = 0; i < columnCount; i++) {
+                long column = (firstColumn + i) % columns;
+                if (column < 0) {
+                    column += columns;
+                }
+                final double lng = -MAX_LNG + column * width + width / 2;
+                cells.add(GeoHashUtils.encode(lat, lng)
+                          .substring(0, precision));
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Count the cells of a precision needed to cover a bounding box.
+     *
+     * @param precision  geohash length
+     * @param south      southern edge of the box
+     * @param north      northern edge of the box
+     * @param minLng     western edge of the box
+     * @param maxLng     eastern edge of the box
+     * @param wholeWidth whether the box spans every longitude
+     *
+     * @return number of cells
+     */
+    private static long countCells(final int precision, final double south,
+                                   final double north, final double minLng,
+                                   final double maxLng,
+                                   final boolean wholeWidth) {
+        final long rows = getRows(precision);
+        final long columns = getColumns(precision);
+        final double height = 2 * MAX_LAT / rows;
+        final double width = 2 * MAX_LNG / columns;
+        final long rowCount = getRow(north, height, rows)
+            - getRow(south, height, rows) + 1;
+        long columnCount = columns;
+        if (!wholeWidth) {
+            columnCount = Math.min(columns,
+                    (long) Math.floor((maxLng + MAX_LNG) / width)
+                    - (long) Math.floor((minLng + MAX_LNG) / width) + 1);
+        }
+        return rowCount * columnCount;
+    }
+
+    /**
+     * Row of the cell grid containing a latitude.
+     *
+     * @param lat    latitude, between -90 and 90
+     * @param height height of a cell in degrees
+     * @param rows   number of rows in the grid
+     *
+     * @return row index, counted from the south pole
+     */
+    private static long getRow(final double lat, final double height,
+                               final long rows) {
+        return Math.min(rows - 1, (long) Math.floor((lat + MAX_LAT) / height));
+    }
+
+    /**
+     * Number of rows in the cell grid of a precision.
+     *
+     * Geohashes interleave bits starting with longitude, so latitude gets
+     * the smaller half of the bits.
+     *
+     * @param precision geohash length
+     *
+     * @return number of rows
+     */
+    private static long getRows(final int precision) {
+        return 1L << (precision * BITS_PER_CHAR / 2);
+    }
+
+    /**
+     * Number of columns in the cell grid of a precision.
+     *
+     * @param precision geohash length
+     *
+     * @return number of columns
+     */
+    private static long getColumns(final int precision) {
+        return 1L << ((precision * BITS_PER_CHAR + 1) / 2);
+    }
+}
@@ -0,0 +1,66 @@
+package me.outofti.solrspatiallight;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Update processor indexing the geohash cells containing each document.
+ *
+ * Documents with both a latitude and a longitude get every geohash prefix
+ * of their location added to the cell field; see GeoHashCells. The cell
+ * field should be an indexed, multivalued string field. Configure the
+ * processor in an update chain in solrconfig.xml:
+ *
+ * <pre>
+ * &lt;updateRequestProcessorChain name="spatial" default="true"&gt;
+ *   &lt;processor
+ *     class="me.outofti.solrspatiallight.GeoHashUpdateProcessorFactory"&gt;
+ *     &lt;str name="latField"&gt;lat&lt;/str&gt;
+ *     &lt;str name="lngField"&gt;lng&lt;/str&gt;
+ *     &lt;str name="cellField"&gt;geohash&lt;/str&gt;
+ *   &lt;/processor&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory" /&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ */
+public final class GeoHashUpdateProcessorFactory
+    extends LocationUpdateProcessorFactory {
+    /**
+     * Default name of the field in which cells are indexed.
+     */
+    public static final String DEFAULT_CELL_FIELD = "geohash";
+
+    /**
+     * Name of the field in which cells are indexed.
+     */
+    private String cellField = DEFAULT_CELL_FIELD;
+
+    /**
+     * Read the name of the cell field.
+     *
+     * @param args configuration
+     */
+    @Override
+    protected void configure(final NamedList args) {
+        if (args.get("cellField") != null) {
+            cellField = args.get("cellField").toString();
+        }
+    }
+
+    /**
+     * Add the cells containing a document's location.
+     *
+     * @param doc document being added
+     * @param lat latitude of the document
+     * @param lng longitude of the document
+     */
+    @Override
+    protected void addLocation(final SolrInputDocument doc, final double lat,
+                               final double lng) {
+        doc.removeField(cellField);
+        final String[] cells = GeoHashCells.getCells(lat, lng);
+        for (int i = 0; i < cells.length; i++) {
+            doc.addField(cellField, cells[i]);
+        }
+    }
+}
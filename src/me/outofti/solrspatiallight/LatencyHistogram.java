@@ -0,0 +1,145 @@
+package me.outofti.solrspatiallight;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Lock-free record of how long a phase of a search takes.
+ *
+ * Times are counted in buckets whose bounds are powers of two microseconds,
+ * so recording is a few atomic increments and percentiles are accurate to
+ * within a factor of two.
+ */
+public final class LatencyHistogram {
+    /**
+     * Number of buckets; the last holds everything over half an hour.
+     */
+    private static final int BUCKETS = 32;
+
+    /**
+     * Nanoseconds per microsecond.
+     */
+    private static final long NANOS_PER_MICRO = 1000L;
+
+    /**
+     * Microseconds per millisecond.
+     */
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    /**
+     * Nanoseconds per millisecond.
+     */
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    /**
+     * Percentiles reported by addStatistics.
+     */
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};
+
+    /**
+     * Names under which the percentiles are reported.
+     */
+    private static final String[] PERCENTILE_NAMES = {
+        "P50Ms", "P99Ms", "P999Ms"
+    };
+
+    /**
+     * Number of times in each bucket; bucket i holds times under 2^i
+     * microseconds and at least 2^(i-1).
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of times recorded.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of the times recorded, in nanoseconds.
+     */
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /**
+     * Longest time recorded, in nanoseconds.
+     */
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record a time.
+     *
+     * @param nanos time in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long micros = nanos / NANOS_PER_MICRO;
+        final int bucket = Math.min(BUCKETS - 1,
+                                    Long.SIZE
+                                    - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Get the number of times recorded.
+     *
+     * @return count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Get an upper bound of a percentile of the times recorded.
+     *
+     * @param fraction percentile as a fraction, e.g. 0.99
+     *
+     * @return upper bound of the bucket holding the percentile, or the
+     *         maximum if it is lower, in milliseconds; 0 if nothing has
+     *         been recorded
+     */
+    public double getPercentileMillis(final double fraction) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0.0;
+        }
+        final long rank = (long) Math.ceil(fraction * total);
+        final double max = maxNanos.get() / NANOS_PER_MILLI;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(max, (1L << i) / MICROS_PER_MILLI);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Add count, average, maximum and percentiles to a component's
+     * statistics.
+     *
+     * @param stats  statistics to add to
+     * @param prefix prefix of the statistics' names, naming the phase
+     */
+    public void addStatistics(final NamedList<Object> stats,
+                              final String prefix) {
+        final long total = count.get();
+        stats.add(prefix + "Count", total);
+        double average = 0.0;
+        if (total > 0) {
+            average = totalNanos.get() / NANOS_PER_MILLI / total;
+        }
+        stats.add(prefix + "AvgMs", average);
+        stats.add(prefix + "MaxMs", maxNanos.get() / NANOS_PER_MILLI);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            stats.add(prefix + PERCENTILE_NAMES[i],
+                      getPercentileMillis(PERCENTILES[i]));
+        }
+    }
+}
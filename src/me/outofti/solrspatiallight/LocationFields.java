@@ -0,0 +1,664 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Fields from which the locations of documents are read.
+ *
+ * Latitude and longitude are always indexed. If the name of a unit vector
+ * field is also given, distances are measured by dot product against the
+ * vector components indexed by UnitVectorUpdateProcessorFactory instead of
+ * by trig functions of latitude and longitude.
+ *
+ * Fields may also carry a LocationOverlay, whose locations are read ahead
+ * of the indexed ones. Fields with an overlay are only equal to fields
+ * taken at the same version of it in the searcher's segments, so cached
+ * results never outlive an update to a document they may hold.
+ */
+public final class LocationFields {
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Suffixes of the fields holding the x, y and z components of a unit
+     * vector.
+     */
+    private static final String[] COMPONENT_SUFFIXES = {"_x", "_y", "_z"};
+
+    /**
+     * Name of the latitude field.
+     */
+    private final String latField;
+
+    /**
+     * Name of the longitude field.
+     */
+    private final String lngField;
+
+    /**
+     * Name of the unit vector field, or null if there is none.
+     */
+    private final String vectorField;
+
+    /**
+     * Overlay of updated locations, or null if there is none.
+     */
+    private final LocationOverlay overlay;
+
+    /**
+     * Version of the overlay in the searcher's segments when the fields
+     * were taken, or -1 if there is no overlay.
+     */
+    private final long overlayVersion;
+
+    /**
+     * Construct the field set.
+     *
+     * @param latFieldName    name of the latitude field
+     * @param lngFieldName    name of the longitude field
+     * @param vectorFieldName name of the unit vector field, or null
+     */
+    public LocationFields(final String latFieldName,
+                          final String lngFieldName,
+                          final String vectorFieldName) {
+        this(latFieldName, lngFieldName, vectorFieldName, null, -1);
+    }
+
+    /**
+     * Construct the field set with an overlay.
+     *
+     * @param latFieldName    name of the latitude field
+     * @param lngFieldName    name of the longitude field
+     * @param vectorFieldName name of the unit vector field, or null
+     * @param locationOverlay overlay of updated locations, or null
+     * @param version         version of the overlay, or -1
+     */
+    private LocationFields(final String latFieldName,
+                           final String lngFieldName,
+                           final String vectorFieldName,
+                           final LocationOverlay locationOverlay,
+                           final long version) {
+        latField = latFieldName;
+        lngField = lngFieldName;
+        vectorField = vectorFieldName;
+        overlay = locationOverlay;
+        overlayVersion = version;
+    }
+
+    /**
+     * Get the same fields, reading locations from an overlay ahead of the
+     * indexed ones.
+     *
+     * @param locationOverlay overlay of updated locations
+     * @param reader          top-level reader of the searcher searched
+     *
+     * @throws IOException on index read error
+     * @return fields with the overlay, at its current version in the
+     *         searcher's segments
+     */
+    public LocationFields withOverlay(final LocationOverlay locationOverlay,
+                                      final IndexReader reader)
+        throws IOException {
+        return new LocationFields(latField, lngField, vectorField,
+                                  locationOverlay,
+                                  locationOverlay.getVersion(reader));
+    }
+
+    /**
+     * Whether locations are read from an overlay ahead of the indexed ones.
+     *
+     * @return true if the fields have an overlay
+     */
+    public boolean isOverlaid() {
+        return overlay != null;
+    }
+
+    /**
+     * Get the overlaid locations of a segment's documents.
+     *
+     * @param reader segment reader
+     *
+     * @throws IOException on index read error
+     * @return locations, or null if the fields have no overlay or none of
+     *         the segment's documents are in it
+     */
+    public LocationOverlay.SegmentOverlay getSegmentOverlay(
+            final IndexReader reader) throws IOException {
+        if (overlay == null) {
+            return null;
+        }
+        return overlay.getSegmentOverlay(reader);
+    }
+
+    /**
+     * Get the name of the field holding one component of a unit vector.
+     *
+     * @param vectorFieldName name of the unit vector field
+     * @param axis            0, 1 or 2 for the x, y or z component
+     *
+     * @return field name
+     */
+    public static String getComponentField(final String vectorFieldName,
+                                           final int axis) {
+        return vectorFieldName + COMPONENT_SUFFIXES[axis];
+    }
+
+    /**
+     * Get the name of the latitude field.
+     *
+     * @return field name
+     */
+    public String getLatField() {
+        return latField;
+    }
+
+    /**
+     * Get the name of the longitude field.
+     *
+     * @return field name
+     */
+    public String getLngField() {
+        return lngField;
+    }
+
+    /**
+     * Get the name of the unit vector field.
+     *
+     * @return field name, or null if distances are computed from latitude
+     *         and longitude
+     */
+    public String getVectorField() {
+        return vectorField;
+    }
+
+    /**
+     * Load the distances of a segment's documents from a centerpoint.
+     *
+     * @param reader     segment reader
+     * @param calculator calculator for distances from the centerpoint
+     * @param miles      radius against which keys are checked by isWithin
+     *
+     * @throws IOException on index read error
+     * @return distances of the segment's documents
+     */
+    public SegmentDistances getDistances(final IndexReader reader,
+                                         final DistanceCalculator calculator,
+                                         final double miles)
+        throws IOException {
+        final SegmentDistances indexed =
+            getIndexedDistances(reader, calculator, miles);
+        final LocationOverlay.SegmentOverlay segmentOverlay =
+            getSegmentOverlay(reader);
+        if (segmentOverlay == null) {
+            return indexed;
+        }
+        SegmentDistances overlaid;
+        if (vectorField == null) {
+            overlaid = new LatLngDistances(calculator, miles,
+                                           segmentOverlay.getLats(),
+                                           segmentOverlay.getLngs());
+        } else {
+            final double[][] vectors = segmentOverlay.getVectors();
+            overlaid = new VectorDistances(calculator, miles, vectors[0],
+                                           vectors[1], vectors[2]);
+        }
+        return new OverlaidDistances(indexed, overlaid, segmentOverlay);
+    }
+
+    /**
+     * Load the distances of a segment's documents from a centerpoint, as
+     * indexed.
+     *
+     * @param reader     segment reader
+     * @param calculator calculator for distances from the centerpoint
+     * @param miles      radius against which keys are checked by isWithin
+     *
+     * @throws IOException on index read error
+     * @return distances of the segment's documents
+     */
+    private SegmentDistances getIndexedDistances(
+            final IndexReader reader, final DistanceCalculator calculator,
+            final double miles) throws IOException {
+        if (vectorField == null) {
+            return new LatLngDistances(
+                    calculator, miles,
+                    CoordinateCache.DEFAULT.getValues(reader, latField),
+                    CoordinateCache.DEFAULT.getValues(reader, lngField));
+        }
+        return new VectorDistances(
+                calculator, miles,
+                CoordinateCache.DEFAULT.getValues(
+                    reader, getComponentField(vectorField, 0)),
+                CoordinateCache.DEFAULT.getValues(
+                    reader, getComponentField(vectorField, 1)),
+                CoordinateCache.DEFAULT.getValues(
+                    reader, getComponentField(vectorField, 2)));
+    }
+
+    /**
+     * Load the distances of a segment's documents from the nearest of
+     * several centerpoints, each with its own radius.
+     *
+     * Keys from different centerpoints are comparable, so the key of a
+     * document is the least of its keys from each centerpoint, and the
+     * document is within the radius if it is within the radius of any
+     * centerpoint. The coordinate arrays are shared, so each additional
+     * centerpoint only adds a distance computation per document.
+     *
+     * @param reader      segment reader
+     * @param calculators calculators for distances from each centerpoint
+     * @param radii       radius of each centerpoint in miles
+     *
+     * @throws IOException on index read error
+     * @return distances of the segment's documents
+     */
+    public SegmentDistances getDistances(final IndexReader reader,
+                                         final DistanceCalculator[] calculators,
+                                         final double[] radii)
+        throws IOException {
+        if (calculators.length == 1) {
+            return getDistances(reader, calculators[0], radii[0]);
+        }
+        final SegmentDistances[] distances =
+            new SegmentDistances[calculators.length];
+        for (int i = 0; i < calculators.length; i++) {
+            distances[i] = getDistances(reader, calculators[i], radii[i]);
+        }
+        return new NearestCenterDistances(distances);
+    }
+
+    /**
+     * Convert a key given by SegmentDistances to a distance.
+     *
+     * @param key sort key of a document
+     *
+     * @return distance in miles
+     */
+    public double toMiles(final double key) {
+        if (vectorField == null) {
+            return key;
+        }
+        return DistanceCalculator.dotProductToMiles(-key);
+    }
+
+    /**
+     * Field sets are equal if they name the same fields.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal field set
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof LocationFields)) {
+            return false;
+        }
+        final LocationFields other = (LocationFields) o;
+        return latField.equals(other.latField)
+            && lngField.equals(other.lngField)
+            && overlay == other.overlay
+            && overlayVersion == other.overlayVersion
+            && (vectorField == null
+                && other.vectorField == null
+                || vectorField != null
+                && vectorField.equals(other.vectorField));
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        int h = latField.hashCode() * HASH_MULTIPLIER + lngField.hashCode();
+        if (vectorField != null) {
+            h = h * HASH_MULTIPLIER + vectorField.hashCode();
+        }
+        return h * HASH_MULTIPLIER + (int) overlayVersion;
+    }
+
+    /**
+     * Distances computed from latitude and longitude; keys are miles.
+     */
+    private static final class LatLngDistances extends SegmentDistances {
+        /**
+         * Calculator for distances from the centerpoint.
+         */
+        private final DistanceCalculator calculator;
+
+        /**
+         * Radius in miles.
+         */
+        private final double radius;
+
+        /**
+         * Latitudes of the segment's documents.
+         */
+        private final double[] lats;
+
+        /**
+         * Longitudes of the segment's documents.
+         */
+        private final double[] lngs;
+
+        /**
+         * Construct the distances.
+         *
+         * @param distanceCalculator calculator for distances from the
+         *                           centerpoint
+         * @param miles              radius in miles
+         * @param latValues          latitudes of the segment's documents
+         * @param lngValues          longitudes of the segment's documents
+         */
+        LatLngDistances(final DistanceCalculator distanceCalculator,
+                        final double miles, final double[] latValues,
+                        final double[] lngValues) {
+            calculator = distanceCalculator;
+            radius = miles;
+            lats = latValues;
+            lngs = lngValues;
+        }
+
+        /**
+         * Get the distance of a document.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return distance in miles
+         */
+        @Override
+        public double getKey(final int doc) {
+            return calculator.getMiles(lats[doc], lngs[doc]);
+        }
+
+        /**
+         * Whether a distance is less than the radius.
+         *
+         * @param key distance in miles
+         *
+         * @return true if the distance is within the radius
+         */
+        @Override
+        public boolean isWithin(final double key) {
+            return key < radius;
+        }
+
+        /**
+         * Get the key of a document if it is within the radius.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return key, or NaN if the document is beyond the radius
+         */
+        @Override
+        public double getKeyWithin(final int doc) {
+            final double key = getKey(doc);
+            if (isWithin(key)) {
+                return key;
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Distances read from an overlay for the documents in it, and from the
+     * index for the rest; keys are those of the indexed distances.
+     */
+    private static final class OverlaidDistances extends SegmentDistances {
+        /**
+         * Distances of the segment's documents as indexed.
+         */
+        private final SegmentDistances indexed;
+
+        /**
+         * Distances of the overlaid documents, by position in the overlay.
+         */
+        private final SegmentDistances overlaid;
+
+        /**
+         * Overlaid documents of the segment.
+         */
+        private final LocationOverlay.SegmentOverlay segmentOverlay;
+
+        /**
+         * Construct the distances.
+         *
+         * @param indexedDistances  distances as indexed
+         * @param overlaidDistances distances of the overlaid documents
+         * @param overlay           overlaid documents of the segment
+         */
+        OverlaidDistances(final SegmentDistances indexedDistances,
+                          final SegmentDistances overlaidDistances,
+                          final LocationOverlay.SegmentOverlay overlay) {
+            indexed = indexedDistances;
+            overlaid = overlaidDistances;
+            segmentOverlay = overlay;
+        }
+
+        /**
+         * Get the key of a document, from its overlaid location if it has
+         * one.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return key growing with distance
+         */
+        @Override
+        public double getKey(final int doc) {
+            final int i = segmentOverlay.indexOf(doc);
+            if (i >= 0) {
+                return overlaid.getKey(i);
+            }
+            return indexed.getKey(doc);
+        }
+
+        /**
+         * Whether a key is within the radius.
+         *
+         * @param key sort key of a document
+         *
+         * @return true if the document is within the radius
+         */
+        @Override
+        public boolean isWithin(final double key) {
+            return indexed.isWithin(key);
+        }
+
+        /**
+         * Get the key of a document if it is within the radius, from its
+         * overlaid location if it has one.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return key, or NaN if the document is beyond the radius
+         */
+        @Override
+        public double getKeyWithin(final int doc) {
+            final int i = segmentOverlay.indexOf(doc);
+            if (i >= 0) {
+                return overlaid.getKeyWithin(i);
+            }
+            return indexed.getKeyWithin(doc);
+        }
+    }
+
+    /**
+     * Distances from the nearest of several centerpoints; keys are those of
+     * the distances from each centerpoint.
+     */
+    private static final class NearestCenterDistances
+        extends SegmentDistances {
+        /**
+         * Distances from each centerpoint.
+         */
+        private final SegmentDistances[] centers;
+
+        /**
+         * Construct the distances.
+         *
+         * @param distances distances from each centerpoint
+         */
+        NearestCenterDistances(final SegmentDistances[] distances) {
+            centers = distances;
+        }
+
+        /**
+         * Get the key of a document's distance from the nearest centerpoint.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return least key
+         */
+        @Override
+        public double getKey(final int doc) {
+            double nearest = centers[0].getKey(doc);
+            for (int i = 1; i < centers.length; i++) {
+                nearest = Math.min(nearest, centers[i].getKey(doc));
+            }
+            return nearest;
+        }
+
+        /**
+         * Whether a key is within the radius of any centerpoint.
+         *
+         * This is only exact if every centerpoint has the same radius;
+         * otherwise a key from one centerpoint may be checked against
+         * another's radius, and getKeyWithin() must be used instead.
+         *
+         * @param key least key of a document
+         *
+         * @return true if the key is within any centerpoint's radius
+         */
+        @Override
+        public boolean isWithin(final double key) {
+            for (int i = 0; i < centers.length; i++) {
+                if (centers[i].isWithin(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Get the key of a document's distance from the nearest centerpoint,
+         * if it is within the radius of any centerpoint.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return least key, or NaN if the document is beyond every radius
+         */
+        @Override
+        public double getKeyWithin(final int doc) {
+            double nearest = Double.POSITIVE_INFINITY;
+            boolean within = false;
+            for (int i = 0; i < centers.length; i++) {
+                final double key = centers[i].getKey(doc);
+                nearest = Math.min(nearest, key);
+                within = within || centers[i].isWithin(key);
+            }
+            if (within) {
+                return nearest;
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Distances computed from unit vectors; keys are negated dot products.
+     */
+    private static final class VectorDistances extends SegmentDistances {
+        /**
+         * Calculator for distances from the centerpoint.
+         */
+        private final DistanceCalculator calculator;
+
+        /**
+         * Negation of the least dot product within the radius.
+         */
+        private final double maxKey;
+
+        /**
+         * X components of the segment's documents.
+         */
+        private final double[] xs;
+
+        /**
+         * Y components of the segment's documents.
+         */
+        private final double[] ys;
+
+        /**
+         * Z components of the segment's documents.
+         */
+        private final double[] zs;
+
+        /**
+         * Construct the distances.
+         *
+         * @param distanceCalculator calculator for distances from the
+         *                           centerpoint
+         * @param miles              radius in miles
+         * @param xValues            x components of the segment's documents
+         * @param yValues            y components of the segment's documents
+         * @param zValues            z components of the segment's documents
+         */
+        VectorDistances(final DistanceCalculator distanceCalculator,
+                        final double miles, final double[] xValues,
+                        final double[] yValues, final double[] zValues) {
+            calculator = distanceCalculator;
+            maxKey = -DistanceCalculator.milesToDotProduct(miles);
+            xs = xValues;
+            ys = yValues;
+            zs = zValues;
+        }
+
+        /**
+         * Get the negated dot product of a document's vector with the
+         * centerpoint's.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return key growing with distance
+         */
+        @Override
+        public double getKey(final int doc) {
+            return -calculator.getDotProduct(xs[doc], ys[doc], zs[doc]);
+        }
+
+        /**
+         * Whether a key is within the radius.
+         *
+         * The comparison is strict, like that of distances in miles, so
+         * documents exactly at the radius are left out in either mode.
+         *
+         * @param key negated dot product
+         *
+         * @return true if the document is within the radius
+         */
+        @Override
+        public boolean isWithin(final double key) {
+            return key < maxKey;
+        }
+
+        /**
+         * Get the key of a document if it is within the radius.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return key, or NaN if the document is beyond the radius
+         */
+        @Override
+        public double getKeyWithin(final int doc) {
+            final double key = getKey(doc);
+            if (isWithin(key)) {
+                return key;
+            }
+            return Double.NaN;
+        }
+    }
+}
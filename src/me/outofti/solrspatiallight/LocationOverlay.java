@@ -0,0 +1,729 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.util.ReaderUtil;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Locations of documents updated since they were indexed, keyed by unique
+ * key, read by spatial searches ahead of the indexed coordinates.
+ *
+ * Fast-moving documents, such as vehicles reporting their positions every
+ * few seconds, can have their locations updated here through
+ * LocationUpdateHandler without being reindexed or committed. Radius
+ * filters, distance sorts, distance facets, nearest-neighbor searches and
+ * the distances returned all use the newest location of each document in
+ * the overlay; grids, boxes and polygons use the indexed coordinates.
+ *
+ * Updates go into a ConcurrentHashMap and are appended to a lock-free log
+ * of updated keys, so they take no lock and never block searches or each
+ * other. Each segment keeps its own snapshot of the locations of its
+ * documents, along with its place in the log; the updates past that place
+ * are the segment's pending updates. The first search after an update
+ * brings the snapshot up to date by applying only the keys pending, off
+ * any lock, and publishes the new snapshot with a compare-and-set; a search
+ * racing it uses its own. Updates to documents in other segments leave the
+ * snapshot untouched. Each snapshot also has its own version, the number of
+ * the last update that changed it, so that cached results only go stale
+ * when a document of the searcher they were cached for has moved. The log
+ * is only kept from the oldest place of a segment still open. Locations
+ * stay in the overlay until they are removed, typically once the document
+ * has been reindexed with them.
+ */
+public final class LocationOverlay {
+    /**
+     * Overlaid locations, keyed by unique key.
+     */
+    private final Map<String, Location> locations =
+        new ConcurrentHashMap<String, Location>();
+
+    /**
+     * Last update appended to the log of updated keys.
+     */
+    private final AtomicReference<Update> lastUpdate =
+        new AtomicReference<Update>(new Update(null, 0));
+
+    /**
+     * State of the overlay in each segment, keyed by the field cache key of
+     * the segment.
+     */
+    private final Map<Object, SegmentState> segments =
+        new WeakHashMap<Object, SegmentState>();
+
+    /**
+     * Unique key field of the index.
+     */
+    private final SchemaField uniqueKeyField;
+
+    /**
+     * Construct an empty overlay.
+     *
+     * @param keyField unique key field of the index
+     */
+    public LocationOverlay(final SchemaField keyField) {
+        uniqueKeyField = keyField;
+    }
+
+    /**
+     * Set the location of a document.
+     *
+     * @param id  unique key of the document
+     * @param lat latitude
+     * @param lng longitude
+     */
+    public void put(final String id, final double lat, final double lng) {
+        locations.put(id, new Location(lat, lng));
+        changed(id);
+    }
+
+    /**
+     * Go back to the indexed location of a document.
+     *
+     * @param id unique key of the document
+     *
+     * @return true if the document was in the overlay
+     */
+    public boolean remove(final String id) {
+        final boolean removed = locations.remove(id) != null;
+        if (removed) {
+            changed(id);
+        }
+        return removed;
+    }
+
+    /**
+     * Whether no document is overlaid, so searches can use the indexed
+     * coordinates alone.
+     *
+     * @return true if the overlay is empty
+     */
+    public boolean isEmpty() {
+        return locations.isEmpty();
+    }
+
+    /**
+     * Get the number of documents overlaid.
+     *
+     * @return number of documents
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * Get the version of the overlay in a searcher's segments, which
+     * identifies its state in cache keys: the number of the last update
+     * that changed the locations of any of their documents, or 0 if none
+     * ever has.
+     *
+     * @param reader top-level reader of the searcher
+     *
+     * @throws IOException on index read error
+     * @return version
+     */
+    public long getVersion(final IndexReader reader) throws IOException {
+        final List<IndexReader> leaves = new ArrayList<IndexReader>();
+        ReaderUtil.gatherSubReaders(leaves, reader);
+        long version = 0;
+        for (final Iterator<IndexReader> it = leaves.iterator();
+                it.hasNext();) {
+            final IndexReader leaf = it.next();
+            version = Math.max(version,
+                               getSegmentState(leaf).getSnapshot(leaf)
+                               .getVersion());
+        }
+        return version;
+    }
+
+    /**
+     * Get the overlaid locations of a segment's documents.
+     *
+     * @param reader segment reader
+     *
+     * @throws IOException on index read error
+     * @return locations, or null if none of the segment's documents are
+     *         overlaid
+     */
+    public SegmentOverlay getSegmentOverlay(final IndexReader reader)
+        throws IOException {
+        final SegmentOverlay overlay =
+            getSegmentState(reader).getSnapshot(reader).getOverlay();
+        if (overlay.size() == 0) {
+            return null;
+        }
+        return overlay;
+    }
+
+    /**
+     * Get the state of the overlay in a segment, creating it if need be.
+     *
+     * @param reader segment reader
+     *
+     * @return state of the segment
+     */
+    private SegmentState getSegmentState(final IndexReader reader) {
+        final Object key = CoordinateCache.getSegmentKey(reader);
+        synchronized (segments) {
+            SegmentState state = segments.get(key);
+            if (state == null) {
+                state = new SegmentState();
+                segments.put(key, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Append an updated key to the log.
+     *
+     * @param id unique key of the updated document
+     */
+    private void changed(final String id) {
+        while (true) {
+            final Update last = lastUpdate.get();
+            final Update next = last.getNext();
+            if (next != null) {
+                // help along an update appended but not yet made the last
+                lastUpdate.compareAndSet(last, next);
+                continue;
+            }
+            final Update update = new Update(id, last.getNumber() + 1);
+            if (last.append(update)) {
+                lastUpdate.compareAndSet(last, update);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Entry in the log of updated keys.
+     */
+    private static final class Update {
+        /**
+         * Unique key of the updated document, or null for the entry the
+         * log starts with.
+         */
+        private final String id;
+
+        /**
+         * Number of the update, counting from 1.
+         */
+        private final long number;
+
+        /**
+         * Following update, or null if this is the last.
+         */
+        private final AtomicReference<Update> next =
+            new AtomicReference<Update>();
+
+        /**
+         * Construct the update.
+         *
+         * @param updatedId    unique key of the updated document
+         * @param updateNumber number of the update
+         */
+        Update(final String updatedId, final long updateNumber) {
+            id = updatedId;
+            number = updateNumber;
+        }
+
+        /**
+         * Get the unique key of the updated document.
+         *
+         * @return unique key
+         */
+        String getId() {
+            return id;
+        }
+
+        /**
+         * Get the number of the update.
+         *
+         * @return number
+         */
+        long getNumber() {
+            return number;
+        }
+
+        /**
+         * Get the following update.
+         *
+         * @return update, or null if this is the last
+         */
+        Update getNext() {
+            return next.get();
+        }
+
+        /**
+         * Make an update the following one, unless there already is one.
+         *
+         * @param update following update
+         *
+         * @return true if it was appended
+         */
+        boolean append(final Update update) {
+            return next.compareAndSet(null, update);
+        }
+    }
+
+    /**
+     * Location of an overlaid document.
+     */
+    private static final class Location {
+        /**
+         * Latitude.
+         */
+        private final double lat;
+
+        /**
+         * Longitude.
+         */
+        private final double lng;
+
+        /**
+         * Construct the location.
+         *
+         * @param latitude  latitude
+         * @param longitude longitude
+         */
+        Location(final double latitude, final double longitude) {
+            lat = latitude;
+            lng = longitude;
+        }
+
+        /**
+         * Get the latitude.
+         *
+         * @return latitude
+         */
+        double getLat() {
+            return lat;
+        }
+
+        /**
+         * Get the longitude.
+         *
+         * @return longitude
+         */
+        double getLng() {
+            return lng;
+        }
+    }
+
+    /**
+     * Latest snapshot of the overlay in one segment, and the documents of
+     * the keys looked up in it.
+     */
+    private final class SegmentState {
+        /**
+         * Document ID of each key looked up, or -1 if it is not in the
+         * segment. A key's document never changes, so searches racing to
+         * fill this in agree.
+         */
+        private final Map<String, Integer> docs =
+            new ConcurrentHashMap<String, Integer>();
+
+        /**
+         * Latest snapshot published, or null until the segment is first
+         * searched.
+         */
+        private final AtomicReference<Snapshot> latest =
+            new AtomicReference<Snapshot>();
+
+        /**
+         * Get a snapshot of the overlay including every update so far,
+         * applying the pending updates if there are any.
+         *
+         * @param reader segment reader
+         *
+         * @throws IOException on index read error
+         * @return snapshot
+         */
+        Snapshot getSnapshot(final IndexReader reader) throws IOException {
+            final Snapshot current = latest.get();
+            if (current != null && current.getLastApplied().getNext() == null) {
+                return current;
+            }
+            final TermDocs termDocs = reader.termDocs();
+            try {
+                final Snapshot updated;
+                if (current == null) {
+                    updated = scan(termDocs);
+                } else {
+                    updated = applyPending(termDocs, current);
+                }
+                // a search that loses the race still uses its own snapshot,
+                // which has every update logged before it began
+                latest.compareAndSet(current, updated);
+                return updated;
+            } finally {
+                termDocs.close();
+            }
+        }
+
+        /**
+         * Take a snapshot from the whole overlay.
+         *
+         * @param termDocs term docs of the segment
+         *
+         * @throws IOException on index read error
+         * @return snapshot
+         */
+        private Snapshot scan(final TermDocs termDocs) throws IOException {
+            // updates during the scan are applied again from the log
+            final Update scanned = lastUpdate.get();
+            final SortedMap<Integer, Location> overlaid =
+                new TreeMap<Integer, Location>();
+            for (final Iterator<String> it = locations.keySet().iterator();
+                    it.hasNext();) {
+                final String id = it.next();
+                final Location location = locations.get(id);
+                final int doc = getDoc(termDocs, id, location);
+                if (doc >= 0 && location != null) {
+                    overlaid.put(Integer.valueOf(doc), location);
+                }
+            }
+            long version = 0;
+            if (!overlaid.isEmpty()) {
+                version = scanned.getNumber();
+            }
+            return new Snapshot(overlaid, scanned, version);
+        }
+
+        /**
+         * Take a snapshot from an earlier one and the updates logged since.
+         *
+         * @param termDocs term docs of the segment
+         * @param current  earlier snapshot
+         *
+         * @throws IOException on index read error
+         * @return snapshot
+         */
+        private Snapshot applyPending(final TermDocs termDocs,
+                                      final Snapshot current)
+            throws IOException {
+            final Map<String, Update> pending =
+                new LinkedHashMap<String, Update>();
+            Update last = current.getLastApplied();
+            for (Update next = last.getNext(); next != null;
+                    next = next.getNext()) {
+                pending.put(next.getId(), next);
+                last = next;
+            }
+            SortedMap<Integer, Location> overlaid = null;
+            long version = current.getVersion();
+            for (final Iterator<Update> it = pending.values().iterator();
+                    it.hasNext();) {
+                final Update update = it.next();
+                final Location location = locations.get(update.getId());
+                final int doc = getDoc(termDocs, update.getId(), location);
+                if (doc < 0) {
+                    continue;
+                }
+                if (overlaid == null) {
+                    overlaid = current.copyOverlaid();
+                }
+                if (location == null) {
+                    overlaid.remove(Integer.valueOf(doc));
+                } else {
+                    overlaid.put(Integer.valueOf(doc), location);
+                }
+                version = update.getNumber();
+            }
+            if (overlaid == null) {
+                return current.advance(last);
+            }
+            return new Snapshot(overlaid, last, version);
+        }
+
+        /**
+         * Get the document with a key in the segment, remembering it while
+         * the key is overlaid.
+         *
+         * @param termDocs term docs of the segment
+         * @param id       unique key
+         * @param location current location of the key, or null if it is no
+         *                 longer overlaid
+         *
+         * @throws IOException on index read error
+         * @return document ID within the segment, or -1 if it is not there
+         */
+        private int getDoc(final TermDocs termDocs, final String id,
+                           final Location location) throws IOException {
+            Integer doc = docs.get(id);
+            if (doc == null) {
+                doc = Integer.valueOf(findDoc(termDocs, id));
+            }
+            if (location == null) {
+                docs.remove(id);
+            } else {
+                docs.put(id, doc);
+            }
+            return doc.intValue();
+        }
+
+        /**
+         * Look up the document with a unique key.
+         *
+         * @param termDocs term docs of the segment
+         * @param id       unique key
+         *
+         * @throws IOException on index read error
+         * @return document ID within the segment, or -1 if it is not there
+         */
+        private int findDoc(final TermDocs termDocs, final String id)
+            throws IOException {
+            termDocs.seek(new Term(uniqueKeyField.getName(),
+                                   uniqueKeyField.getType().toInternal(id)));
+            if (termDocs.next()) {
+                return termDocs.doc();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Overlaid locations of a segment's documents as of an update in the
+     * log, never changed once taken.
+     */
+    private static final class Snapshot {
+        /**
+         * Locations of the segment's overlaid documents, by document ID.
+         */
+        private final SortedMap<Integer, Location> overlaid;
+
+        /**
+         * The same locations, as searches read them.
+         */
+        private final SegmentOverlay overlay;
+
+        /**
+         * Last update in the log applied to the snapshot.
+         */
+        private final Update lastApplied;
+
+        /**
+         * Number of the last update that changed the snapshot.
+         */
+        private final long version;
+
+        /**
+         * Construct the snapshot.
+         *
+         * @param locations     locations of the overlaid documents, by
+         *                      document ID, no longer changed by the caller
+         * @param applied       last update applied
+         * @param updateVersion number of the last update that changed the
+         *                      locations
+         */
+        Snapshot(final SortedMap<Integer, Location> locations,
+                 final Update applied, final long updateVersion) {
+            this(locations, new SegmentOverlay(locations), applied,
+                 updateVersion);
+        }
+
+        /**
+         * Construct the snapshot.
+         *
+         * @param locations      locations of the overlaid documents, by
+         *                       document ID
+         * @param segmentOverlay the same locations, as searches read them
+         * @param applied        last update applied
+         * @param updateVersion  number of the last update that changed the
+         *                       locations
+         */
+        private Snapshot(final SortedMap<Integer, Location> locations,
+                         final SegmentOverlay segmentOverlay,
+                         final Update applied, final long updateVersion) {
+            overlaid = locations;
+            overlay = segmentOverlay;
+            lastApplied = applied;
+            version = updateVersion;
+        }
+
+        /**
+         * Get the same snapshot as of a later update, which changed none of
+         * its locations.
+         *
+         * @param applied later update
+         *
+         * @return snapshot
+         */
+        Snapshot advance(final Update applied) {
+            return new Snapshot(overlaid, overlay, applied, version);
+        }
+
+        /**
+         * Copy the locations, to be changed for a later snapshot.
+         *
+         * @return locations of the overlaid documents, by document ID
+         */
+        SortedMap<Integer, Location> copyOverlaid() {
+            return new TreeMap<Integer, Location>(overlaid);
+        }
+
+        /**
+         * Get the locations, as searches read them.
+         *
+         * @return segment overlay
+         */
+        SegmentOverlay getOverlay() {
+            return overlay;
+        }
+
+        /**
+         * Get the last update in the log applied to the snapshot.
+         *
+         * @return update
+         */
+        Update getLastApplied() {
+            return lastApplied;
+        }
+
+        /**
+         * Get the number of the last update that changed the snapshot.
+         *
+         * @return version
+         */
+        long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Snapshot of the overlaid locations of a segment's documents.
+     */
+    public static final class SegmentOverlay {
+        /**
+         * Overlaid documents, in ascending order.
+         */
+        private final int[] docs;
+
+        /**
+         * Latitude of each overlaid document.
+         */
+        private final double[] lats;
+
+        /**
+         * Longitude of each overlaid document.
+         */
+        private final double[] lngs;
+
+        /**
+         * Unit vector components of each overlaid document, computed when
+         * first needed.
+         */
+        private double[][] vectors;
+
+        /**
+         * Construct the snapshot.
+         *
+         * @param overlaid locations of the overlaid documents, by document
+         *                 ID
+         */
+        private SegmentOverlay(final SortedMap<Integer, Location> overlaid) {
+            docs = new int[overlaid.size()];
+            lats = new double[docs.length];
+            lngs = new double[docs.length];
+            int i = 0;
+            for (final Iterator<Map.Entry<Integer, Location>> it =
+                    overlaid.entrySet().iterator(); it.hasNext(); i++) {
+                final Map.Entry<Integer, Location> entry = it.next();
+                docs[i] = entry.getKey().intValue();
+                lats[i] = entry.getValue().getLat();
+                lngs[i] = entry.getValue().getLng();
+            }
+        }
+
+        /**
+         * Get the number of overlaid documents.
+         *
+         * @return number of documents
+         */
+        public int size() {
+            return docs.length;
+        }
+
+        /**
+         * Get the position of a document among the overlaid documents.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return position, or a negative number if the document is not
+         *         overlaid
+         */
+        public int indexOf(final int doc) {
+            if (docs.length == 0 || doc < docs[0]
+                    || doc > docs[docs.length - 1]) {
+                return -1;
+            }
+            return Arrays.binarySearch(docs, doc);
+        }
+
+        /**
+         * Get the overlaid documents.
+         *
+         * @return document IDs within the segment, in ascending order
+         */
+        public int[] getDocs() {
+            return docs;
+        }
+
+        /**
+         * Get the latitudes of the overlaid documents.
+         *
+         * @return latitudes, by position
+         */
+        public double[] getLats() {
+            return lats;
+        }
+
+        /**
+         * Get the longitudes of the overlaid documents.
+         *
+         * @return longitudes, by position
+         */
+        public double[] getLngs() {
+            return lngs;
+        }
+
+        /**
+         * Get the unit vectors of the overlaid documents.
+         *
+         * @return x, y and z components, each by position
+         */
+        public synchronized double[][] getVectors() {
+            if (vectors == null) {
+                final double[][] components = new double[][] {
+                    new double[docs.length],
+                    new double[docs.length],
+                    new double[docs.length]
+                };
+                for (int i = 0; i < docs.length; i++) {
+                    final double[] vector =
+                        DistanceCalculator.getUnitVector(lats[i], lngs[i]);
+                    for (int c = 0; c < components.length; c++) {
+                        components[c][i] = vector[c];
+                    }
+                }
+                vectors = components;
+            }
+            return vectors;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package me.outofti.solrspatiallight;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+
+/**
+ * Request handler updating the locations of documents in the core's
+ * LocationOverlay, without reindexing or committing them.
+ *
+ * A single location is given by the "id", "lat" and "lng" params. Any
+ * number may be posted as the body of the request, one per line in the
+ * format <strong>id,lat,lng</strong>. Each "remove" param names a document
+ * to take out of the overlay, so that searches go back to its indexed
+ * location; this is normally done once it has been reindexed. Updates are
+ * visible to the next search.
+ *
+ * Register the handler in solrconfig.xml alongside SpatialQueryComponent,
+ * whose overlay it updates:
+ *
+ * <pre>
+ *   &lt;requestHandler name="/location"
+ *     class="me.outofti.solrspatiallight.LocationUpdateHandler"/&gt;
+ * </pre>
+ */
+public class LocationUpdateHandler extends RequestHandlerBase {
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Number of comma-separated values on each line of a posted body.
+     */
+    private static final int LINE_VALUES = 3;
+
+    /**
+     * Where the plugin's source lives.
+     */
+    private static final String SOURCE =
+        "http://github.com/outoftime/solr-spatial-light";
+
+    /**
+     * Update the overlay.
+     *
+     * @param req request
+     * @param rsp response, given the numbers of locations updated and
+     *            removed
+     *
+     * @throws IOException on error reading the request body
+     */
+    @Override
+    public final void handleRequestBody(final SolrQueryRequest req,
+                                        final SolrQueryResponse rsp)
+        throws IOException {
+        final SpatialQueryComponent component =
+            SpatialQueryComponent.forCore(req.getCore());
+        if (component == null || component.getLocationOverlay() == null) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+                                    "Location updates need a spatial search"
+                                    + " component and a unique key field");
+        }
+        final LocationOverlay overlay = component.getLocationOverlay();
+        final SolrParams params = req.getParams();
+        int updated = 0;
+        if (params.get("id") != null) {
+            put(overlay, params.get("id"), params.get("lat"),
+                params.get("lng"));
+            updated++;
+        }
+        final Iterable<ContentStream> streams = req.getContentStreams();
+        if (streams != null) {
+            for (final Iterator<ContentStream> it = streams.iterator();
+                    it.hasNext();) {
+                updated += putAll(overlay, it.next());
+            }
+        }
+        int removed = 0;
+        final String[] removes = params.getParams("remove");
+        if (removes != null) {
+            for (int i = 0; i < removes.length; i++) {
+                if (overlay.remove(removes[i])) {
+                    removed++;
+                }
+            }
+        }
+        rsp.add("updated", Integer.valueOf(updated));
+        rsp.add("removed", Integer.valueOf(removed));
+    }
+
+    /**
+     * Update the locations posted in a request body.
+     *
+     * @param overlay overlay to update
+     * @param stream  request body, one id,lat,lng line per location
+     *
+     * @throws IOException on error reading the body
+     * @return number of locations updated
+     */
+    private static int putAll(final LocationOverlay overlay,
+                              final ContentStream stream)
+        throws IOException {
+        final BufferedReader reader =
+            new BufferedReader(stream.getReader());
+        int updated = 0;
+        try {
+            for (String line = reader.readLine(); line != null;
+                    line = reader.readLine()) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                final String[] values = line.split(",");
+                if (values.length != LINE_VALUES) {
+                    throw new SolrException(
+                            SolrException.ErrorCode.BAD_REQUEST,
+                            "Locations should be posted as id,lat,lng: "
+                            + line);
+                }
+                put(overlay, values[0].trim(), values[1], values[2]);
+                updated++;
+            }
+        } finally {
+            reader.close();
+        }
+        return updated;
+    }
+
+    /**
+     * Update the location of a document.
+     *
+     * @param overlay overlay to update
+     * @param id      unique key of the document
+     * @param lat     latitude
+     * @param lng     longitude
+     */
+    private static void put(final LocationOverlay overlay, final String id,
+                            final String lat, final String lng) {
+        overlay.put(id, parseCoordinate(lat, "lat", MAX_LAT),
+                    parseCoordinate(lng, "lng", MAX_LNG));
+    }
+
+    /**
+     * Parse a coordinate given to a document.
+     *
+     * @param value coordinate as given
+     * @param name  name of the coordinate, for error messages
+     * @param max   greatest absolute value of the coordinate
+     *
+     * @return coordinate in degrees
+     */
+    private static double parseCoordinate(final String value,
+                                          final String name,
+                                          final double max) {
+        double coordinate;
+        try {
+            coordinate = Double.parseDouble(String.valueOf(value).trim());
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                    "Invalid " + name + ": " + value, e);
+        }
+        if (Math.abs(coordinate) > max) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                    "Invalid " + name + ": " + value);
+        }
+        return coordinate;
+    }
+
+    /////////////////////////
+    //    SolrInfoMBean    //
+    /////////////////////////
+
+    /**
+     * Name of the class.
+     *
+     * @return description
+     */
+    public final String getDescription() {
+        return "location updates";
+    }
+
+    /**
+     * Source.
+     *
+     * @return source
+     */
+    public final String getSource() {
+        return SOURCE;
+    }
+
+    /**
+     * Source ID.
+     *
+     * @return source ID
+     */
+    public final String getSourceId() {
+        return "solr-spatial-light " + getVersion();
+    }
+
+    /**
+     * Revision, as recorded in the manifest of the plugin's jar.
+     *
+     * @return revision number
+     */
+    public final String getVersion() {
+        final String version =
+            LocationUpdateHandler.class.getPackage()
+            .getImplementationVersion();
+        if (version == null) {
+            return "unknown";
+        }
+        return version;
+    }
+}
@@ -0,0 +1,143 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.update.AddUpdateCommand;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * Base for update processors indexing fields derived from each document's
+ * location.
+ *
+ * Documents with both a latitude and a longitude are passed to
+ * addLocation() before being indexed; others are indexed unchanged. The
+ * latitude and longitude fields are read from the "latField" and
+ * "lngField" arguments of the processor's configuration.
+ */
+public abstract class LocationUpdateProcessorFactory
+    extends UpdateRequestProcessorFactory {
+    /**
+     * Name of the latitude field.
+     */
+    private String latField = Spatial.DEFAULT_LAT_FIELD;
+
+    /**
+     * Name of the longitude field.
+     */
+    private String lngField = Spatial.DEFAULT_LNG_FIELD;
+
+    /**
+     * Read the processor's configuration.
+     *
+     * @param args configuration
+     */
+    @Override
+    public final void init(final NamedList args) {
+        if (args == null) {
+            return;
+        }
+        if (args.get("latField") != null) {
+            latField = args.get("latField").toString();
+        }
+        if (args.get("lngField") != null) {
+            lngField = args.get("lngField").toString();
+        }
+        configure(args);
+    }
+
+    /**
+     * Read the configuration specific to a subclass.
+     *
+     * @param args configuration
+     */
+    protected abstract void configure(NamedList args);
+
+    /**
+     * Add the fields derived from a document's location.
+     *
+     * @param doc document being added
+     * @param lat latitude of the document
+     * @param lng longitude of the document
+     */
+    protected abstract void addLocation(SolrInputDocument doc, double lat,
+                                        double lng);
+
+    /**
+     * Create a processor for an update request.
+     *
+     * @param req  update request
+     * @param rsp  update response
+     * @param next next processor in the chain
+     *
+     * @return processor
+     */
+    @Override
+    public final UpdateRequestProcessor getInstance(
+            final SolrQueryRequest req, final SolrQueryResponse rsp,
+            final UpdateRequestProcessor next) {
+        return new LocationUpdateProcessor(next);
+    }
+
+    /**
+     * Parse a coordinate given to a document.
+     *
+     * @param value field value
+     * @param field field name, for error messages
+     *
+     * @return coordinate in degrees
+     */
+    private static double parseCoordinate(final Object value,
+                                          final String field) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                                    "Invalid coordinate in " + field + ": "
+                                    + value, e);
+        }
+    }
+
+    /**
+     * Processor passing each added document's location to addLocation().
+     */
+    private final class LocationUpdateProcessor
+        extends UpdateRequestProcessor {
+        /**
+         * Construct the processor.
+         *
+         * @param next next processor in the chain
+         */
+        LocationUpdateProcessor(final UpdateRequestProcessor next) {
+            super(next);
+        }
+
+        /**
+         * Add the fields derived from the document's location, then pass it
+         * on.
+         *
+         * @param cmd add command
+         *
+         * @throws IOException on index write error
+         */
+        @Override
+        public void processAdd(final AddUpdateCommand cmd) throws IOException {
+            final SolrInputDocument doc = cmd.getSolrInputDocument();
+            final Object lat = doc.getFieldValue(latField);
+            final Object lng = doc.getFieldValue(lngField);
+            if (lat != null && lng != null) {
+                addLocation(doc, parseCoordinate(lat, latField),
+                            parseCoordinate(lng, lngField));
+            }
+            super.processAdd(cmd);
+        }
+    }
+}
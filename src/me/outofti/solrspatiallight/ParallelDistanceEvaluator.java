@@ -0,0 +1,290 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SortedIntDocSet;
+
+/**
+ * Evaluates a distance filter on several segments at once.
+ *
+ * Each segment of the searcher is filtered by a separate task on a shared
+ * executor. The matches are then merged in segment order, so the resulting
+ * DocSet and distances are the same as if the segments had been filtered one
+ * after another on the request thread.
+ */
+public final class ParallelDistanceEvaluator {
+    /**
+     * Shift giving the largest set kept as a sorted int array, as a fraction
+     * of the index size; matches Solr's DocSetCollector.
+     */
+    private static final int SMALL_SET_SHIFT = 6;
+
+    /**
+     * Extra capacity of the largest set kept as a sorted int array.
+     */
+    private static final int SMALL_SET_EXTRA = 5;
+
+    /**
+     * Executor running the per-segment tasks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Construct the evaluator.
+     *
+     * @param executorService executor running the per-segment tasks
+     */
+    public ParallelDistanceEvaluator(final ExecutorService executorService) {
+        executor = executorService;
+    }
+
+    /**
+     * Get the documents matching a distance filter.
+     *
+     * @param reader top-level reader of the searcher
+     * @param filter distance filter
+     * @param table  table in which to record the distances of matching
+     *               documents, or null
+     *
+     * @throws IOException on index read error, or if interrupted
+     * @return matching documents
+     */
+    public DocSet evaluate(final SolrIndexReader reader,
+                           final CoordinateDistanceFilter filter,
+                           final DistanceTable table) throws IOException {
+        final long start = System.nanoTime();
+        final SolrIndexReader[] segments = reader.getLeafReaders();
+        final int[] offsets = reader.getLeafOffsets();
+        final List<Callable<SegmentMatches>> tasks =
+            new ArrayList<Callable<SegmentMatches>>(segments.length);
+        for (int i = 0; i < segments.length; i++) {
+            tasks.add(new SegmentTask(segments[i], offsets[i], filter));
+        }
+
+        final List<Future<SegmentMatches>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final IOException ioe =
+                new IOException("Interrupted while computing distances");
+            ioe.initCause(e);
+            throw ioe;
+        }
+
+        final SegmentMatches[] matches = new SegmentMatches[futures.size()];
+        int total = 0;
+        long examined = 0;
+        for (int i = 0; i < matches.length; i++) {
+            matches[i] = getMatches(futures.get(i));
+            total += matches[i].count;
+            examined += matches[i].examined;
+        }
+
+        final int[] docs = new int[total];
+        int position = 0;
+        for (int i = 0; i < matches.length; i++) {
+            System.arraycopy(matches[i].docs, 0, docs, position,
+                             matches[i].count);
+            if (table != null) {
+                for (int j = 0; j < matches[i].count; j++) {
+                    table.put(matches[i].docs[j],
+                              filter.getLocationFields().toMiles(
+                                  matches[i].keys[j]));
+                }
+            }
+            position += matches[i].count;
+        }
+
+        filter.recordEvaluation(examined, total, System.nanoTime() - start);
+
+        final int maxDoc = reader.maxDoc();
+        if (total <= (maxDoc >> SMALL_SET_SHIFT) + SMALL_SET_EXTRA) {
+            return new SortedIntDocSet(docs);
+        }
+        final OpenBitSet bits = new OpenBitSet(maxDoc);
+        for (int i = 0; i < total; i++) {
+            bits.fastSet(docs[i]);
+        }
+        return new BitDocSet(bits, total);
+    }
+
+    /**
+     * Get the result of a per-segment task, rethrowing its exception if it
+     * failed.
+     *
+     * @param future task result
+     *
+     * @throws IOException if the task failed
+     * @return matches in the task's segment
+     */
+    private static SegmentMatches getMatches(
+            final Future<SegmentMatches> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final IOException ioe =
+                new IOException("Interrupted while computing distances");
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            final IOException ioe = new IOException(cause.toString());
+            ioe.initCause(cause);
+            throw ioe;
+        }
+    }
+
+    /**
+     * Documents matching the filter in one segment.
+     */
+    private static final class SegmentMatches {
+        /**
+         * Initial capacity of the arrays.
+         */
+        private static final int INITIAL_CAPACITY = 16;
+
+        /**
+         * Top-level IDs of the matching documents, in ascending order.
+         */
+        private int[] docs = new int[INITIAL_CAPACITY];
+
+        /**
+         * Distance keys of the matching documents.
+         */
+        private double[] keys = new double[INITIAL_CAPACITY];
+
+        /**
+         * Number of matching documents.
+         */
+        private int count;
+
+        /**
+         * Number of candidate documents whose distances were computed.
+         */
+        private long examined;
+
+        /**
+         * Record a matching document.
+         *
+         * @param doc top-level document ID
+         * @param key distance key of the document
+         */
+        void add(final int doc, final double key) {
+            if (count == docs.length) {
+                final int[] grownDocs = new int[count * 2];
+                System.arraycopy(docs, 0, grownDocs, 0, count);
+                docs = grownDocs;
+                final double[] grownKeys = new double[count * 2];
+                System.arraycopy(keys, 0, grownKeys, 0, count);
+                keys = grownKeys;
+            }
+            docs[count] = doc;
+            keys[count] = key;
+            count++;
+        }
+    }
+
+    /**
+     * Task filtering one segment.
+     */
+    private static final class SegmentTask
+        implements Callable<SegmentMatches> {
+        /**
+         * Segment to filter.
+         */
+        private final SolrIndexReader segment;
+
+        /**
+         * Offset of the segment's documents in the top-level reader.
+         */
+        private final int docBase;
+
+        /**
+         * Distance filter.
+         */
+        private final CoordinateDistanceFilter filter;
+
+        /**
+         * Construct the task.
+         *
+         * @param segmentReader  segment to filter
+         * @param segmentBase    offset of the segment's documents
+         * @param distanceFilter distance filter
+         */
+        SegmentTask(final SolrIndexReader segmentReader,
+                    final int segmentBase,
+                    final CoordinateDistanceFilter distanceFilter) {
+            segment = segmentReader;
+            docBase = segmentBase;
+            filter = distanceFilter;
+        }
+
+        /**
+         * Filter the segment, skipping it if it has no documents in range,
+         * starting from its cached result if the filter keeps one, and
+         * caching the result otherwise.
+         *
+         * @throws IOException on index read error
+         * @return matching documents
+         */
+        public SegmentMatches call() throws IOException {
+            final SegmentMatches matches = new SegmentMatches();
+            if (!filter.mayMatch(segment)) {
+                return matches;
+            }
+            final SegmentDistances distances =
+                filter.getSegmentDistances(segment);
+            final DocIdSet cached = filter.getCachedResult(segment);
+            DocIdSet candidates = cached;
+            if (candidates == null) {
+                candidates = filter.getCandidates(segment);
+            }
+            final DocIdSetIterator it;
+            if (candidates == null) {
+                it = null;
+            } else {
+                it = candidates.iterator();
+            }
+            if (it != null) {
+                for (int doc = it.nextDoc();
+                        doc != DocIdSetIterator.NO_MORE_DOCS;
+                        doc = it.nextDoc()) {
+                    matches.examined++;
+                    final double key = distances.getKeyWithin(doc);
+                    if (!Double.isNaN(key)) {
+                        matches.add(docBase + doc, key);
+                    }
+                }
+            }
+            if (cached == null && filter.isSegmentCached()) {
+                final int[] docs = new int[matches.count];
+                for (int i = 0; i < docs.length; i++) {
+                    docs[i] = matches.docs[i] - docBase;
+                }
+                filter.cacheResult(segment, docs, docs.length);
+            }
+            return matches;
+        }
+    }
+}
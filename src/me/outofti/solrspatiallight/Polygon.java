@@ -0,0 +1,343 @@
+package me.outofti.solrspatiallight;
+
+import java.util.Arrays;
+
+import org.apache.lucene.queryParser.ParseException;
+
+/**
+ * A polygon on the earth's surface, whose edges are straight lines in
+ * latitude and longitude.
+ *
+ * The polygon's bounding box is divided into a grid, each cell of which is
+ * classified when the polygon is built: cells crossed by no edge are wholly
+ * inside or wholly outside, so a point in one of them is answered without
+ * looking at the edges at all. Only points in the cells an edge passes
+ * through are tested by counting edge crossings, and then only against the
+ * edges spanning the cell's row of the grid.
+ *
+ * Polygons may not cross the antimeridian. Points lying exactly on an edge
+ * may be found inside or outside.
+ */
+public final class Polygon extends Shape {
+    /**
+     * Number of grid cells along each side of the bounding box.
+     */
+    private static final int GRID_SIZE = 32;
+
+    /**
+     * Cell state of cells wholly outside the polygon.
+     */
+    private static final byte OUTSIDE = 0;
+
+    /**
+     * Cell state of cells wholly inside the polygon.
+     */
+    private static final byte INSIDE = 1;
+
+    /**
+     * Cell state of cells crossed by an edge.
+     */
+    private static final byte BOUNDARY = 2;
+
+    /**
+     * Offset of a cell's center from its corner, in cells.
+     */
+    private static final double HALF = 0.5;
+
+    /**
+     * Least number of vertices of a polygon.
+     */
+    private static final int MIN_VERTICES = 3;
+
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Latitudes of the vertices.
+     */
+    private final double[] lats;
+
+    /**
+     * Longitudes of the vertices.
+     */
+    private final double[] lngs;
+
+    /**
+     * Bounding box of the polygon.
+     */
+    private final BoundingBox bounds;
+
+    /**
+     * Height of a grid cell, in degrees.
+     */
+    private final double cellHeight;
+
+    /**
+     * Width of a grid cell, in degrees.
+     */
+    private final double cellWidth;
+
+    /**
+     * State of each grid cell, row by row from the south-west corner.
+     */
+    private final byte[] cells = new byte[GRID_SIZE * GRID_SIZE];
+
+    /**
+     * Indexes of the edges spanning each row of the grid; edge i runs from
+     * vertex i to the next.
+     */
+    private final int[][] rowEdges = new int[GRID_SIZE][];
+
+    /**
+     * Construct the polygon.
+     *
+     * @param vertexLats latitudes of the vertices, in order
+     * @param vertexLngs longitudes of the vertices, in order
+     */
+    private Polygon(final double[] vertexLats, final double[] vertexLngs) {
+        lats = vertexLats;
+        lngs = vertexLngs;
+        double south = lats[0];
+        double north = lats[0];
+        double west = lngs[0];
+        double east = lngs[0];
+        for (int i = 1; i < lats.length; i++) {
+            south = Math.min(south, lats[i]);
+            north = Math.max(north, lats[i]);
+            west = Math.min(west, lngs[i]);
+            east = Math.max(east, lngs[i]);
+        }
+        bounds = BoundingBox.fromEdges(south, west, north, east);
+        cellHeight = (north - south) / GRID_SIZE;
+        cellWidth = (east - west) / GRID_SIZE;
+        buildGrid();
+    }
+
+    /**
+     * Parse a polygon from its vertices.
+     *
+     * @param vertices vertices in order, as "lat,lng" pairs separated by
+     *                 semicolons; the polygon is closed from the last vertex
+     *                 back to the first
+     *
+     * @throws ParseException if the vertices are malformed, or the polygon
+     *                        has no area
+     * @return polygon
+     */
+    public static Polygon parse(final String vertices) throws ParseException {
+        final String[] points = vertices.split(";");
+        int count = points.length;
+        final double[] vertexLats = new double[count];
+        final double[] vertexLngs = new double[count];
+        for (int i = 0; i < count; i++) {
+            final String[] coordinates = points[i].split(",");
+            if (coordinates.length != 2) {
+                throw new ParseException("Polygons should be of the format "
+                                         + "LAT,LNG;LAT,LNG;LAT,LNG...");
+            }
+            try {
+                vertexLats[i] = Double.parseDouble(coordinates[0].trim());
+                vertexLngs[i] = Double.parseDouble(coordinates[1].trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("Polygons should be of the format "
+                                         + "LAT,LNG;LAT,LNG;LAT,LNG...");
+            }
+            if (!(Math.abs(vertexLats[i]) <= MAX_LAT
+                  && Math.abs(vertexLngs[i]) <= MAX_LNG)) {
+                throw new ParseException("Polygon vertex is out of bounds");
+            }
+        }
+        if (count > 1 && vertexLats[count - 1] == vertexLats[0]
+                && vertexLngs[count - 1] == vertexLngs[0]) {
+            count--;
+        }
+        if (count < MIN_VERTICES) {
+            throw new ParseException("Polygons need at least " + MIN_VERTICES
+                                     + " vertices");
+        }
+        final Polygon polygon = new Polygon(copyOf(vertexLats, count),
+                                            copyOf(vertexLngs, count));
+        if (polygon.cellHeight == 0.0 || polygon.cellWidth == 0.0) {
+            throw new ParseException("Polygons should enclose an area");
+        }
+        return polygon;
+    }
+
+    /**
+     * Whether a point is in the polygon.
+     *
+     * @param lat latitude of the point
+     * @param lng longitude of the point
+     *
+     * @return true if the point is in the polygon
+     */
+    @Override
+    public boolean contains(final double lat, final double lng) {
+        if (lat < bounds.getMinLat() || lat > bounds.getMaxLat()
+                || lng < bounds.getMinLng() || lng > bounds.getMaxLng()) {
+            return false;
+        }
+        final int row = getRow(lat);
+        final byte state = cells[row * GRID_SIZE + getColumn(lng)];
+        if (state == BOUNDARY) {
+            return isInside(lat, lng, rowEdges[row]);
+        }
+        return state == INSIDE;
+    }
+
+    /**
+     * Get the bounding box of the polygon.
+     *
+     * @return bounding box
+     */
+    @Override
+    public BoundingBox getBounds() {
+        return bounds;
+    }
+
+    /**
+     * Polygons are equal if they have the same vertices in the same order.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal polygon
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof Polygon)) {
+            return false;
+        }
+        final Polygon other = (Polygon) o;
+        return Arrays.equals(lats, other.lats)
+            && Arrays.equals(lngs, other.lngs);
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(lats) ^ Arrays.hashCode(lngs);
+    }
+
+    /**
+     * Assign the edges to the grid rows they span, and classify the cells.
+     */
+    private void buildGrid() {
+        final int[] rowCounts = new int[GRID_SIZE];
+        for (int i = 0; i < lats.length; i++) {
+            final int next = (i + 1) % lats.length;
+            final int firstRow = getRow(Math.min(lats[i], lats[next]));
+            final int lastRow = getRow(Math.max(lats[i], lats[next]));
+            final int firstColumn = getColumn(Math.min(lngs[i], lngs[next]));
+            final int lastColumn = getColumn(Math.max(lngs[i], lngs[next]));
+            for (int row = firstRow; row <= lastRow; row++) {
+                rowCounts[row]++;
+                for (int column = firstColumn; column <= lastColumn;
+                        column++) {
+                    cells[row * GRID_SIZE + column] = BOUNDARY;
+                }
+            }
+        }
+        for (int row = 0; row < GRID_SIZE; row++) {
+            rowEdges[row] = new int[rowCounts[row]];
+            rowCounts[row] = 0;
+        }
+        for (int i = 0; i < lats.length; i++) {
+            final int next = (i + 1) % lats.length;
+            final int firstRow = getRow(Math.min(lats[i], lats[next]));
+            final int lastRow = getRow(Math.max(lats[i], lats[next]));
+            for (int row = firstRow; row <= lastRow; row++) {
+                rowEdges[row][rowCounts[row]++] = i;
+            }
+        }
+
+        for (int row = 0; row < GRID_SIZE; row++) {
+            final double lat = bounds.getMinLat() + (row + HALF) * cellHeight;
+            for (int column = 0; column < GRID_SIZE; column++) {
+                final int cell = row * GRID_SIZE + column;
+                if (cells[cell] != BOUNDARY) {
+                    final double lng =
+                        bounds.getMinLng() + (column + HALF) * cellWidth;
+                    if (isInside(lat, lng, rowEdges[row])) {
+                        cells[cell] = INSIDE;
+                    } else {
+                        cells[cell] = OUTSIDE;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether a point is inside the polygon, counting the edges crossed by
+     * a line running east from it.
+     *
+     * @param lat   latitude of the point
+     * @param lng   longitude of the point
+     * @param edges edges spanning the point's latitude, and maybe others
+     *
+     * @return true if the line crosses an odd number of edges
+     */
+    private boolean isInside(final double lat, final double lng,
+                             final int[] edges) {
+        boolean inside = false;
+        for (int e = 0; e < edges.length; e++) {
+            final int i = edges[e];
+            final int j = (i + 1) % lats.length;
+            if ((lats[i] > lat) != (lats[j] > lat)
+                    && lng < (lngs[j] - lngs[i]) * (lat - lats[i])
+                    / (lats[j] - lats[i]) + lngs[i]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /**
+     * Get the grid row containing a latitude.
+     *
+     * @param lat latitude within the bounding box
+     *
+     * @return row
+     */
+    private int getRow(final double lat) {
+        return Math.min(GRID_SIZE - 1,
+                        (int) ((lat - bounds.getMinLat()) / cellHeight));
+    }
+
+    /**
+     * Get the grid column containing a longitude.
+     *
+     * @param lng longitude within the bounding box
+     *
+     * @return column
+     */
+    private int getColumn(final double lng) {
+        return Math.min(GRID_SIZE - 1,
+                        (int) ((lng - bounds.getMinLng()) / cellWidth));
+    }
+
+    /**
+     * Copy the start of an array.
+     *
+     * @param values array
+     * @param length number of values to copy
+     *
+     * @return copy
+     */
+    private static double[] copyOf(final double[] values, final int length) {
+        final double[] copy = new double[length];
+        System.arraycopy(values, 0, copy, 0, length);
+        return copy;
+    }
+}
@@ -0,0 +1,263 @@
+package me.outofti.solrspatiallight;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+
+/**
+ * Spatial searches handled since the searcher was last warmed, with the
+ * number of times each was seen.
+ *
+ * Paging and response format params are dropped, so searches differing
+ * only in which results are returned and how are counted together. The
+ * least recently seen searches are forgotten once there are too many to
+ * keep. Searches are recorded without taking a lock, so that recording
+ * doesn't serialize the requests of a busy core.
+ */
+public final class RecentSearches {
+    /**
+     * Params dropped from each search, as they only affect which results
+     * are returned and how.
+     */
+    private static final Set<String> DROPPED_PARAMS =
+        new HashSet<String>(Arrays.asList(new String[] {
+            CommonParams.START, CommonParams.ROWS, CommonParams.FL,
+            CommonParams.WT, CommonParams.VERSION, CommonParams.DEBUG_QUERY,
+            "indent", "echoParams", "omitHeader", "json.nl",
+        }));
+
+    /**
+     * Greatest number of distinct searches kept.
+     */
+    private static final int MAX_SEARCHES = 1024;
+
+    /**
+     * Number of searches left once the least recently seen are forgotten,
+     * so that they are forgotten in batches rather than one at a time.
+     */
+    private static final int TRIMMED_SEARCHES = 768;
+
+    /**
+     * Searches seen, keyed by their kept param names and values.
+     */
+    private final ConcurrentMap<List<Object>, Search> searches =
+        new ConcurrentHashMap<List<Object>, Search>();
+
+    /**
+     * Counter ordering the sightings of searches.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * Whether a thread is forgetting the least recently seen searches.
+     */
+    private final AtomicBoolean trimming = new AtomicBoolean();
+
+    /**
+     * Record a search. No lock is taken, and the kept params are only
+     * copied the first time the search is seen.
+     *
+     * @param params params of the search
+     */
+    public void record(final SolrParams params) {
+        final List<Object> key = new ArrayList<Object>();
+        for (final Iterator<String> it = params.getParameterNamesIterator();
+                it.hasNext();) {
+            final String name = it.next();
+            if (!DROPPED_PARAMS.contains(name)) {
+                key.add(name);
+                key.add(Arrays.asList(params.getParams(name)));
+            }
+        }
+        Search search = searches.get(key);
+        if (search == null) {
+            final Search added = new Search(getParams(key));
+            search = searches.putIfAbsent(key, added);
+            if (search == null) {
+                added.seen(clock.incrementAndGet());
+                if (searches.size() > MAX_SEARCHES) { trim(); }
+                return;
+            }
+        }
+        search.seen(clock.incrementAndGet());
+    }
+
+    /**
+     * Take the most frequent searches seen since the last call, and forget
+     * the rest.
+     *
+     * @param limit greatest number of searches to return
+     *
+     * @return params of the searches, most frequent first; of equally
+     *         frequent searches, the most recently seen comes first
+     */
+    public List<SolrParams> drainMostFrequent(final int limit) {
+        final List<Search> seen = new ArrayList<Search>();
+        for (final Iterator<Search> it = searches.values().iterator();
+                it.hasNext();) {
+            seen.add(it.next().copy());
+            it.remove();
+        }
+        Collections.sort(seen, new Comparator<Search>() {
+            public int compare(final Search a, final Search b) {
+                if (a.getCount() != b.getCount()) {
+                    return b.getCount() - a.getCount();
+                }
+                if (a.getLastSeen() < b.getLastSeen()) { return 1; }
+                if (a.getLastSeen() > b.getLastSeen()) { return -1; }
+                return 0;
+            }
+        });
+        final List<SolrParams> mostFrequent = new ArrayList<SolrParams>();
+        for (int i = 0; i < seen.size() && i < limit; i++) {
+            mostFrequent.add(seen.get(i).getParams());
+        }
+        return mostFrequent;
+    }
+
+    /**
+     * Forget the least recently seen searches, leaving TRIMMED_SEARCHES of
+     * them, unless another thread is already doing so.
+     */
+    private void trim() {
+        if (!trimming.compareAndSet(false, true)) { return; }
+        try {
+            final List<Search> seen = new ArrayList<Search>(searches.values());
+            if (seen.size() <= TRIMMED_SEARCHES) { return; }
+            final long[] lastSeen = new long[seen.size()];
+            for (int i = 0; i < lastSeen.length; i++) {
+                lastSeen[i] = seen.get(i).getLastSeen();
+            }
+            Arrays.sort(lastSeen);
+            final long oldestKept =
+                lastSeen[lastSeen.length - TRIMMED_SEARCHES];
+            for (final Iterator<Search> it = searches.values().iterator();
+                    it.hasNext();) {
+                if (it.next().getLastSeen() < oldestKept) { it.remove(); }
+            }
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    /**
+     * Get the params of a search from its key.
+     *
+     * @param key kept param names, each followed by a list of its values
+     *
+     * @return params
+     */
+    private static SolrParams getParams(final List<Object> key) {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        for (int i = 0; i < key.size(); i += 2) {
+            final List<?> values = (List<?>) key.get(i + 1);
+            params.set((String) key.get(i),
+                       values.toArray(new String[values.size()]));
+        }
+        return params;
+    }
+
+    /**
+     * A search and the number of times it was seen.
+     */
+    private static final class Search {
+        /**
+         * Kept params of the search.
+         */
+        private final SolrParams params;
+
+        /**
+         * Number of times the search was seen.
+         */
+        private final AtomicInteger count;
+
+        /**
+         * Value of the clock when the search was last seen.
+         */
+        private volatile long lastSeen;
+
+        /**
+         * Construct the search.
+         *
+         * @param searchParams kept params of the search
+         */
+        Search(final SolrParams searchParams) {
+            this(searchParams, 0, 0L);
+        }
+
+        /**
+         * Construct the search.
+         *
+         * @param searchParams kept params of the search
+         * @param timesSeen    number of times the search was seen
+         * @param tick         value of the clock when it was last seen
+         */
+        private Search(final SolrParams searchParams, final int timesSeen,
+                       final long tick) {
+            params = searchParams;
+            count = new AtomicInteger(timesSeen);
+            lastSeen = tick;
+        }
+
+        /**
+         * Count another sighting of the search.
+         *
+         * @param tick value of the clock
+         */
+        void seen(final long tick) {
+            count.incrementAndGet();
+            lastSeen = tick;
+        }
+
+        /**
+         * Copy the search, so that sightings counted while it is sorted
+         * don't change its order.
+         *
+         * @return copy
+         */
+        Search copy() {
+            return new Search(params, count.get(), lastSeen);
+        }
+
+        /**
+         * Get the number of times the search was seen.
+         *
+         * @return count
+         */
+        int getCount() {
+            return count.get();
+        }
+
+        /**
+         * Get the value of the clock when the search was last seen.
+         *
+         * @return tick
+         */
+        long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Get the kept params of the search.
+         *
+         * @return params
+         */
+        SolrParams getParams() {
+            return params;
+        }
+    }
+}
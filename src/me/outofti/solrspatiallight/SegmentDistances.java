@@ -0,0 +1,40 @@
+package me.outofti.solrspatiallight;
+
+/**
+ * Distances from a centerpoint, or from the nearest of several, to the
+ * documents of a single segment.
+ *
+ * Distances are handed out as sort keys that grow with distance but need not
+ * be distances themselves, so that the per-document work can be as cheap as
+ * the indexed fields allow; LocationFields converts a key back to miles for
+ * the documents that need it.
+ */
+public abstract class SegmentDistances {
+    /**
+     * Get the sort key of a document.
+     *
+     * @param doc document ID within the segment
+     *
+     * @return key growing with the document's distance from the centerpoint
+     */
+    public abstract double getKey(int doc);
+
+    /**
+     * Whether a key lies within the radius the distances were loaded for.
+     *
+     * @param key sort key of a document
+     *
+     * @return true if the document is within the radius
+     */
+    public abstract boolean isWithin(double key);
+
+    /**
+     * Get the sort key of a document if it lies within the radius.
+     *
+     * @param doc document ID within the segment
+     *
+     * @return key growing with the document's distance from the centerpoint,
+     *         or NaN if the document is beyond the radius
+     */
+    public abstract double getKeyWithin(int doc);
+}
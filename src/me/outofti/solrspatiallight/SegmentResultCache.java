@@ -0,0 +1,241 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FilteredDocIdSet;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.SortedVIntList;
+
+/**
+ * Cache of the documents matched by spatial filters, stored one segment at
+ * a time.
+ *
+ * Solr's filterCache holds the result of a filter for the whole index, so
+ * every entry is lost when a commit opens a new searcher, even though most
+ * of its segments are unchanged. Entries here are keyed on the segment's
+ * field cache key, as in the CoordinateCache, so they carry over to every
+ * searcher sharing the segment: after a commit only the new segments are
+ * evaluated, and the cost of reopening stays proportional to the documents
+ * added. Entries are released along with the segment.
+ *
+ * Documents deleted from a segment after its result was cached are skipped
+ * when the result is read back. Each segment keeps the results of the
+ * filters used most recently against it.
+ */
+public final class SegmentResultCache {
+    /**
+     * Shared instance used by the spatial filters.
+     */
+    public static final SegmentResultCache DEFAULT = new SegmentResultCache();
+
+    /**
+     * Greatest number of results kept per segment.
+     */
+    private static final int MAX_RESULTS = 64;
+
+    /**
+     * Load factor of the per-segment maps of results.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Results having at most maxDoc >> SPARSE_SHIFT documents are stored as
+     * a list of document IDs rather than as a bit set.
+     */
+    private static final int SPARSE_SHIFT = 3;
+
+    /**
+     * Initial capacity of the buffer into which results are read.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Per-filter results, keyed by reader.
+     */
+    private final Map<Object, Map<Object, DocIdSet>> readerCache =
+        new WeakHashMap<Object, Map<Object, DocIdSet>>();
+
+    /**
+     * Number of results found in the cache.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Number of results not found in the cache.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Only the shared instance should be used.
+     */
+    private SegmentResultCache() { }
+
+    /**
+     * Get the cached result of a filter for a segment.
+     *
+     * @param reader index reader, normally a single segment
+     * @param key    key identifying the filter
+     *
+     * @return documents matched by the filter and not since deleted, or null
+     *         if the result is not cached
+     */
+    public DocIdSet get(final IndexReader reader, final Object key) {
+        final Map<Object, DocIdSet> results = getResults(reader);
+        DocIdSet docs;
+        synchronized (results) {
+            docs = results.get(key);
+        }
+        if (docs == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (reader.hasDeletions()) {
+            return new LiveDocIdSet(docs, reader);
+        }
+        return docs;
+    }
+
+    /**
+     * Read a filter's result for a segment and cache it.
+     *
+     * @param reader index reader, normally a single segment
+     * @param key    key identifying the filter
+     * @param docs   documents matched by the filter, read once
+     *
+     * @throws IOException on index read error
+     * @return the cached documents
+     */
+    public DocIdSet put(final IndexReader reader, final Object key,
+                        final DocIdSet docs) throws IOException {
+        int[] buffer = new int[INITIAL_CAPACITY];
+        int count = 0;
+        final DocIdSetIterator it = docs.iterator();
+        if (it != null) {
+            for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+                    doc = it.nextDoc()) {
+                if (count == buffer.length) {
+                    final int[] grown = new int[count * 2];
+                    System.arraycopy(buffer, 0, grown, 0, count);
+                    buffer = grown;
+                }
+                buffer[count++] = doc;
+            }
+        }
+        return put(reader, key, buffer, count);
+    }
+
+    /**
+     * Cache a filter's result for a segment.
+     *
+     * @param reader index reader, normally a single segment
+     * @param key    key identifying the filter
+     * @param docs   documents matched by the filter, in ascending order
+     * @param count  number of documents in docs
+     *
+     * @return the cached documents
+     */
+    public DocIdSet put(final IndexReader reader, final Object key,
+                        final int[] docs, final int count) {
+        DocIdSet stored;
+        if (count <= reader.maxDoc() >> SPARSE_SHIFT) {
+            stored = new SortedVIntList(docs, count);
+        } else {
+            final OpenBitSet bits = new OpenBitSet(reader.maxDoc());
+            for (int i = 0; i < count; i++) {
+                bits.fastSet(docs[i]);
+            }
+            stored = bits;
+        }
+        final Map<Object, DocIdSet> results = getResults(reader);
+        synchronized (results) {
+            results.put(key, stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Get the number of results found in the cache so far.
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of results not found in the cache so far.
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the results cached for a reader, creating the map if need be.
+     *
+     * @param reader index reader
+     *
+     * @return results keyed by filter, in order of last use
+     */
+    private Map<Object, DocIdSet> getResults(final IndexReader reader) {
+        synchronized (readerCache) {
+            Map<Object, DocIdSet> results =
+                readerCache.get(CoordinateCache.getSegmentKey(reader));
+            if (results == null) {
+                results = new LinkedHashMap<Object, DocIdSet>(
+                        MAX_RESULTS, LOAD_FACTOR, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<Object, DocIdSet> eldest) {
+                        return size() > MAX_RESULTS;
+                    }
+                };
+                readerCache.put(CoordinateCache.getSegmentKey(reader), results);
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Cached documents of a segment that have not since been deleted.
+     */
+    private static final class LiveDocIdSet extends FilteredDocIdSet {
+        /**
+         * Reader of the segment, with its current deletions.
+         */
+        private final IndexReader reader;
+
+        /**
+         * Construct the set.
+         *
+         * @param docs          cached documents
+         * @param segmentReader reader of the segment
+         */
+        LiveDocIdSet(final DocIdSet docs, final IndexReader segmentReader) {
+            super(docs);
+            reader = segmentReader;
+        }
+
+        /**
+         * Whether a cached document has not been deleted.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return true if the document is still live
+         */
+        @Override
+        protected boolean match(final int doc) {
+            return !reader.isDeleted(doc);
+        }
+    }
+}
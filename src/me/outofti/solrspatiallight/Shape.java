@@ -0,0 +1,26 @@
+package me.outofti.solrspatiallight;
+
+/**
+ * An area of the earth's surface to which search results can be restricted.
+ *
+ * Candidates for a shape are found with a range filter on its bounding box,
+ * and only those are tested against the shape itself.
+ */
+public abstract class Shape {
+    /**
+     * Whether a point is in the shape.
+     *
+     * @param lat latitude of the point
+     * @param lng longitude of the point, from -180 to 180
+     *
+     * @return true if the point is in the shape or on its edge
+     */
+    public abstract boolean contains(double lat, double lng);
+
+    /**
+     * Get the latitude and longitude bounds of the shape.
+     *
+     * @return bounding box
+     */
+    public abstract BoundingBox getBounds();
+}
@@ -0,0 +1,165 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredDocIdSet;
+
+/**
+ * Filter keeping the candidate documents that lie in a shape, reading
+ * coordinates from the shared CoordinateCache.
+ *
+ * The candidates are normally the documents in the shape's bounding box, so
+ * only they are tested against the shape.
+ */
+public final class ShapeFilter extends Filter {
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Multiplier used when combining hash codes.
+     */
+    private static final int HASH_MULTIPLIER = 31;
+
+    /**
+     * Filter supplying candidate documents.
+     */
+    private final Filter candidates;
+
+    /**
+     * Shape in which documents must lie.
+     */
+    private final Shape shape;
+
+    /**
+     * Fields from which locations are read.
+     */
+    private final LocationFields fields;
+
+    /**
+     * Construct the filter.
+     *
+     * @param candidateFilter filter supplying candidate documents
+     * @param area            shape in which documents must lie
+     * @param locationFields  fields from which locations are read
+     */
+    public ShapeFilter(final Filter candidateFilter, final Shape area,
+                       final LocationFields locationFields) {
+        candidates = candidateFilter;
+        shape = area;
+        fields = locationFields;
+    }
+
+    /**
+     * Get the shape in which documents must lie.
+     *
+     * @return shape
+     */
+    public Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Get the candidate documents in the given reader that lie in the
+     * shape.
+     *
+     * @param reader index reader, normally a single segment
+     *
+     * @throws IOException on index read error
+     * @return documents in the shape
+     */
+    @Override
+    public DocIdSet getDocIdSet(final IndexReader reader) throws IOException {
+        final DocIdSet candidateDocs = candidates.getDocIdSet(reader);
+        if (candidateDocs == null) {
+            return DocIdSet.EMPTY_DOCIDSET;
+        }
+        return new ShapeDocIdSet(
+                candidateDocs, shape,
+                CoordinateCache.DEFAULT.getValues(reader,
+                                                  fields.getLatField()),
+                CoordinateCache.DEFAULT.getValues(reader,
+                                                  fields.getLngField()));
+    }
+
+    /**
+     * Filters are equal if they select the same documents.
+     *
+     * @param o other object
+     *
+     * @return whether the other object is an equal filter
+     */
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof ShapeFilter)) {
+            return false;
+        }
+        final ShapeFilter other = (ShapeFilter) o;
+        return shape.equals(other.shape) && fields.equals(other.fields)
+            && candidates.equals(other.candidates);
+    }
+
+    /**
+     * Hash code consistent with equals.
+     *
+     * @return hash code
+     */
+    @Override
+    public int hashCode() {
+        int h = shape.hashCode();
+        h = h * HASH_MULTIPLIER + fields.hashCode();
+        return h * HASH_MULTIPLIER + candidates.hashCode();
+    }
+
+    /**
+     * Candidate documents of a segment that lie in the shape.
+     */
+    private static final class ShapeDocIdSet extends FilteredDocIdSet {
+        /**
+         * Shape in which documents must lie.
+         */
+        private final Shape shape;
+
+        /**
+         * Latitudes of the segment's documents.
+         */
+        private final double[] lats;
+
+        /**
+         * Longitudes of the segment's documents.
+         */
+        private final double[] lngs;
+
+        /**
+         * Construct the set.
+         *
+         * @param candidateDocs candidate documents of the segment
+         * @param area          shape in which documents must lie
+         * @param latValues     latitudes of the segment's documents
+         * @param lngValues     longitudes of the segment's documents
+         */
+        ShapeDocIdSet(final DocIdSet candidateDocs, final Shape area,
+                      final double[] latValues, final double[] lngValues) {
+            super(candidateDocs);
+            shape = area;
+            lats = latValues;
+            lngs = lngValues;
+        }
+
+        /**
+         * Whether a candidate lies in the shape.
+         *
+         * @param doc document ID within the segment
+         *
+         * @return true if the document is in the shape
+         */
+        @Override
+        protected boolean match(final int doc) {
+            return shape.contains(lats[doc], lngs[doc]);
+        }
+    }
+}
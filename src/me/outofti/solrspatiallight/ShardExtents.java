@@ -0,0 +1,141 @@
+package me.outofti.solrspatiallight;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Spatial extents last returned by the shards of distributed searches, used
+ * to route later searches only to the shards holding points within their
+ * radius.
+ *
+ * An extent is trusted for a fixed time after it was returned, after which
+ * the shard is searched again whatever its extent, and so returns a fresh
+ * one. Points a shard indexes in a new area may therefore be missed by
+ * searches of that area for up to that time after they are committed.
+ */
+public final class ShardExtents {
+    /**
+     * Nanoseconds per second.
+     */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Extents and the times they were returned, keyed by shard and then by
+     * field pair.
+     */
+    private final ConcurrentMap<String, Map<String, Entry>> extents =
+        new ConcurrentHashMap<String, Map<String, Entry>>();
+
+    /**
+     * Time for which an extent is trusted, in nanoseconds.
+     */
+    private final long ttlNanos;
+
+    /**
+     * Construct the cache.
+     *
+     * @param ttlSeconds time for which an extent is trusted, in seconds
+     */
+    public ShardExtents(final long ttlSeconds) {
+        ttlNanos = ttlSeconds * NANOS_PER_SECOND;
+    }
+
+    /**
+     * Record the extent returned by a shard.
+     *
+     * @param shard  address of the shard
+     * @param extent extent of the shard's index
+     */
+    public void put(final String shard, final SpatialExtent extent) {
+        Map<String, Entry> shardExtents = extents.get(shard);
+        if (shardExtents == null) {
+            extents.putIfAbsent(shard, new ConcurrentHashMap<String, Entry>());
+            shardExtents = extents.get(shard);
+        }
+        shardExtents.put(extent.getKey(),
+                         new Entry(extent, System.nanoTime()));
+    }
+
+    /**
+     * Choose the shards to search.
+     *
+     * A shard is left out only if its extent was returned recently and has
+     * no points within any of the boxes. At least one shard is kept, so the
+     * search still runs and returns its empty results.
+     *
+     * @param shards   addresses of the shards
+     * @param latField name of the latitude field searched
+     * @param lngField name of the longitude field searched
+     * @param boxes    bounding boxes of the search's radii
+     *
+     * @return addresses of the shards to search
+     */
+    public String[] route(final String[] shards, final String latField,
+                          final String lngField, final BoundingBox[] boxes) {
+        final String key = SpatialExtent.getKey(latField, lngField);
+        final long now = System.nanoTime();
+        final List<String> routed = new ArrayList<String>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final Map<String, Entry> shardExtents = extents.get(shards[i]);
+            Entry entry = null;
+            if (shardExtents != null) {
+                entry = shardExtents.get(key);
+            }
+            if (entry == null || now - entry.getReturned() > ttlNanos
+                    || entry.getExtent().mayContain(boxes)) {
+                routed.add(shards[i]);
+            }
+        }
+        if (routed.isEmpty() && shards.length > 0) {
+            routed.add(shards[0]);
+        }
+        return routed.toArray(new String[routed.size()]);
+    }
+
+    /**
+     * Extent returned by a shard, with the time it was returned.
+     */
+    private static final class Entry {
+        /**
+         * Extent of the shard's index.
+         */
+        private final SpatialExtent extent;
+
+        /**
+         * Time the extent was returned, from System.nanoTime().
+         */
+        private final long returned;
+
+        /**
+         * Construct the entry.
+         *
+         * @param shardExtent  extent of the shard's index
+         * @param returnedTime time the extent was returned
+         */
+        Entry(final SpatialExtent shardExtent, final long returnedTime) {
+            extent = shardExtent;
+            returned = returnedTime;
+        }
+
+        /**
+         * Get the extent.
+         *
+         * @return extent of the shard's index
+         */
+        SpatialExtent getExtent() {
+            return extent;
+        }
+
+        /**
+         * Get the time the extent was returned.
+         *
+         * @return time from System.nanoTime()
+         */
+        long getReturned() {
+            return returned;
+        }
+    }
+}
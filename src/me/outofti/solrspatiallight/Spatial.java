@@ -1,26 +1,37 @@
 package me.outofti.solrspatiallight;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanFilter;
 import org.apache.lucene.search.ConstantScoreQuery;
-import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.FilterClause;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.SortField;
-import org.apache.lucene.spatial.tier.DistanceFilter;
-import org.apache.lucene.spatial.tier.DistanceFieldComparatorSource;
-import org.apache.lucene.spatial.tier.LatLongDistanceFilter;
+import org.apache.lucene.search.TermsFilter;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
 
 /**
  * Encapsulates a spatial query component.
@@ -32,7 +43,33 @@ public class Spatial extends QParser {
     private static final Pattern PATTERN =
         Pattern.compile(
                 "^((\\w+): ?)?(-?\\d+(\\.\\d+)?)"
-                + ",\\s*((\\w+): ?)?(-?\\d+(\\.\\d+)?)$");
+                + ",\\s*((\\w+): ?)?(-?\\d+(\\.\\d+)?)"
+                + "(\\s*~\\s*(\\d+(\\.\\d+)?))?$");
+
+    /**
+     * Group of PATTERN holding the latitude field name.
+     */
+    private static final int LAT_FIELD_GROUP = 2;
+
+    /**
+     * Group of PATTERN holding the latitude.
+     */
+    private static final int LAT_GROUP = 3;
+
+    /**
+     * Group of PATTERN holding the longitude field name.
+     */
+    private static final int LNG_FIELD_GROUP = 6;
+
+    /**
+     * Group of PATTERN holding the longitude.
+     */
+    private static final int LNG_GROUP = 7;
+
+    /**
+     * Group of PATTERN holding the centerpoint's own radius.
+     */
+    private static final int RADIUS_GROUP = 10;
 
     /**
      * Default field name for latitude.
@@ -47,7 +84,13 @@ public class Spatial extends QParser {
     /**
      * Ratio between latitude degrees and statute miles.
      */
-    private static final double DEGREES_TO_MILES = 69.047;
+    static final double DEGREES_TO_MILES = 69.047;
+
+    /**
+     * Name of the distance sort field, under which shards return the
+     * distance of each result as its sort value.
+     */
+    public static final String DISTANCE_SORT_FIELD = "spatial_distance";
 
     /**
      * Default radius for search.
@@ -58,16 +101,93 @@ public class Spatial extends QParser {
      */
     private static final double DEFAULT_RADIUS = 24901.46;
 
+    /**
+     * Greatest possible distance between two points on earth.
+     */
+    private static final double MAX_DISTANCE =
+        Math.PI * DistanceCalculator.EARTH_RADIUS_MILES;
+
+    /**
+     * Radius of the first bounding box examined by a nearest-neighbor search.
+     */
+    private static final double INITIAL_NEAREST_RADIUS = 1.0;
+
+    /**
+     * Least factor by which a nearest-neighbor search grows its radius.
+     */
+    private static final double MIN_NEAREST_GROWTH = 2.0;
+
+    /**
+     * Name of the user cache holding nearest-neighbor radii.
+     */
+    public static final String NEAREST_CACHE = "spatialNearest";
+
+    /**
+     * Number of edges of a box.
+     */
+    private static final int BOX_EDGES = 4;
+
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Base of the decimal places kept by the "quantize" local param.
+     */
+    private static final double DECIMAL_BASE = 10.0;
+
     /**
      * Store memoized response of getDistanceFilter() method.
      */
-    private DistanceFilter distanceFilter;
+    private CoordinateDistanceFilter distanceFilter;
 
     /**
      * Store memoized response of getSortField() method.
      */
     private SortField sortField;
 
+    /**
+     * Main query of the search, if known.
+     */
+    private Query searchQuery;
+
+    /**
+     * Other filter queries applied to the search, if known.
+     */
+    private List<Query> searchFilters;
+
+    /**
+     * Plan chosen for the distance filter.
+     */
+    private SpatialPlan plan;
+
+    /**
+     * Shape given by the "box" or "polygon" local param, once parsed.
+     */
+    private Shape shape;
+
+    /**
+     * Time spent building the candidate filter, in nanoseconds.
+     */
+    private long candidateFilterNanos;
+
+    /**
+     * Time spent finding the radius of a nearest-neighbor search, in
+     * nanoseconds.
+     */
+    private long nearestNanos;
+
+    /**
+     * Overlay of updated locations, or null if indexed locations are used.
+     */
+    private LocationOverlay locationOverlay;
+
     /**
      * Construct the object using the superclass arguments.
      *
@@ -81,6 +201,40 @@ public class Spatial extends QParser {
         super(qstr, localParams, params, req);
     }
 
+    /**
+     * Tell the parser about the rest of the search the spatial filter is
+     * attached to.
+     *
+     * The other filter queries are applied before distances are computed if
+     * the "filterFirst" local param is true, or if it is not given and the
+     * planner expects them to rule out most of the index; nearest-neighbor
+     * searches only count documents matching the query and the other filter
+     * queries.
+     * This must be called before the distance filter is built.
+     *
+     * @param query   the search's main query
+     * @param filters the search's other filter queries
+     */
+    public final void setSearch(final Query query, final List<Query> filters) {
+        searchQuery = query;
+        if (filters != null && !filters.isEmpty()) {
+            searchFilters = new ArrayList<Query>(filters);
+        }
+    }
+
+    /**
+     * Read locations from an overlay ahead of the indexed ones.
+     *
+     * Searches restricted to a box or polygon ignore the overlay, as shapes
+     * are tested against the indexed locations. This must be called before
+     * the distance filter is built.
+     *
+     * @param overlay overlay of updated locations
+     */
+    public final void setLocationOverlay(final LocationOverlay overlay) {
+        locationOverlay = overlay;
+    }
+
     /**
      * Return the distance filter as a Query.
      *
@@ -88,77 +242,837 @@ public class Spatial extends QParser {
      * @return distance filter wrapped in Query
      */
     public final Query parse() throws ParseException {
-        return new ConstantScoreQuery(getDistanceFilter());
+        try {
+            if (!hasCenter()) {
+                return new ConstantScoreQuery(getShapeFilter());
+            }
+            return new ConstantScoreQuery(getDistanceFilter());
+        } catch (IOException e) {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+        }
+    }
+
+    /**
+     * Whether the query string gives a centerpoint.
+     *
+     * A search restricted to a shape need not have one, in which case it
+     * has no distances and cannot be sorted by distance.
+     *
+     * @return true if the query string is not empty
+     */
+    public final boolean hasCenter() {
+        return qstr != null && qstr.trim().length() > 0;
+    }
+
+    /**
+     * Get the shape given by the "box" or "polygon" local param.
+     *
+     * A box is given as its south, west, north and east edges, separated by
+     * commas; a polygon as its vertices in order, "lat,lng" pairs separated
+     * by semicolons.
+     *
+     * @throws ParseException if the shape is malformed, or both are given
+     * @return shape, or null if neither param is given
+     */
+    public final Shape getShape() throws ParseException {
+        if (shape != null || localParams == null) {
+            return shape;
+        }
+        final String box = localParams.get("box");
+        final String polygon = localParams.get("polygon");
+        if (box != null && polygon != null) {
+            throw new ParseException(
+                    "Spatial searches take a box or a polygon, not both");
+        }
+        if (box != null) {
+            shape = parseBox(box);
+        } else if (polygon != null) {
+            shape = Polygon.parse(polygon);
+        }
+        return shape;
+    }
+
+    /**
+     * Build a filter restricting results to the shape, for a search with no
+     * centerpoint.
+     *
+     * Locations are read from the "lat" and "lng" fields.
+     *
+     * @throws ParseException if there is no shape, the shape is malformed,
+     *                        or the search is sorted by distance
+     * @return filter matching the documents in the shape
+     */
+    public final Filter getShapeFilter() throws ParseException {
+        if (getShape() == null) {
+            throw new ParseException(
+                    "Spatial queries should be of the format LAT,LNG");
+        }
+        if (isSorted()) {
+            throw new ParseException(
+                    "Sorting by distance needs a centerpoint");
+        }
+        return restrictToShape(null, new LocationFields(
+                    DEFAULT_LAT_FIELD, DEFAULT_LNG_FIELD, null));
     }
 
     /**
      * Build a distance filter out of a spatial query string.
      *
+     * The query string holds one or more centerpoints separated by
+     * semicolons, each of which may give its own radius after a "~". The
+     * candidates are the union of the centerpoints' bounding boxes or cells.
+     *
      * @throws ParseException if query formatting is bad
+     * @throws IOException    on index read error during nearest-neighbor
+     *                        search
      * @return a distance filter
      */
-    public final DistanceFilter getDistanceFilter() throws ParseException {
+    public final CoordinateDistanceFilter getDistanceFilter()
+        throws ParseException, IOException {
         if (distanceFilter == null) {
-            String latLng;
             Float maybeMiles = null;
-            if (localParams == null) {
-                latLng = qstr;
-            } else {
-                latLng = localParams.get("v");
+            Integer maybeNearest = null;
+            if (localParams != null) {
                 maybeMiles = localParams.getFloat("radius");
+                maybeNearest = localParams.getInt("k");
             }
 
-            final Matcher matcher = PATTERN.matcher(qstr);
-            if (!matcher.matches()) {
-                throw new ParseException(
-                        "Spatial queries should be of the format LAT,LNG");
+            final Matcher[] centers = matchCenters();
+            final double[] lats = new double[centers.length];
+            final double[] lngs = new double[centers.length];
+            final double[] radii = new double[centers.length];
+            final DistanceCalculator[] calculators =
+                new DistanceCalculator[centers.length];
+            String latField = null;
+            String lngField = null;
+            boolean hasRadius = maybeMiles != null;
+            for (int i = 0; i < centers.length; i++) {
+                final Matcher matcher = centers[i];
+                latField = getCenterField(latField,
+                                          matcher.group(LAT_FIELD_GROUP));
+                lngField = getCenterField(lngField,
+                                          matcher.group(LNG_FIELD_GROUP));
+                lats[i] = quantize(
+                        Double.parseDouble(matcher.group(LAT_GROUP)));
+                lngs[i] = quantize(
+                        Double.parseDouble(matcher.group(LNG_GROUP)));
+                calculators[i] = new DistanceCalculator(lats[i], lngs[i]);
+                final String radius = matcher.group(RADIUS_GROUP);
+                if (radius != null) {
+                    radii[i] = Double.parseDouble(radius);
+                    hasRadius = true;
+                } else if (maybeMiles != null) {
+                    radii[i] = maybeMiles.doubleValue();
+                } else {
+                    radii[i] = DEFAULT_RADIUS;
+                }
             }
-
-            final double lat = Double.parseDouble(matcher.group(3));
-            final double lng = Double.parseDouble(matcher.group(7));
-
-            String latField = matcher.group(2);
-            String lngField = matcher.group(6);
             if (latField == null) {
                 latField = DEFAULT_LAT_FIELD;
             }
             if (lngField == null) {
                 lngField = DEFAULT_LNG_FIELD;
             }
+            String vectorField = null;
+            if (localParams != null) {
+                vectorField = localParams.get("vectors");
+            }
+            LocationFields fields =
+                new LocationFields(latField, lngField, vectorField);
+            if (locationOverlay != null && getShape() == null) {
+                fields = fields.withOverlay(
+                        locationOverlay, req.getSearcher().getReader());
+            }
 
-            double miles;
+            if (maybeNearest != null) {
+                if (maybeNearest.intValue() < 1) {
+                    throw new ParseException(
+                            "Nearest-neighbor searches need a positive k");
+                }
+                if (centers.length > 1) {
+                    throw new ParseException(
+                            "Nearest-neighbor searches take one centerpoint");
+                }
+                final long nearestStart = System.nanoTime();
+                final Float nearestMiles = getCachedNearestRadius(
+                        maybeNearest.intValue(), calculators[0], radii[0],
+                        fields);
+                nearestNanos = System.nanoTime() - nearestStart;
+                hasRadius = nearestMiles != null;
+                if (hasRadius) {
+                    radii[0] = nearestMiles.doubleValue();
+                }
+            }
             Filter startingFilter;
-            if (maybeMiles == null) {
-                miles = DEFAULT_RADIUS;
+            if (!hasRadius) {
+                plan = newPlanner().plan(null, fields, null, null,
+                                         searchFilters, null,
+                                         getForcedFilterFirst());
                 startingFilter =
-                    new QueryWrapperFilter(new MatchAllDocsQuery());
+                    getStartingFilter(restrictToShape(null, fields));
             } else {
-                miles = maybeMiles.doubleValue();
-                startingFilter =
-                    getBoundingBoxFilter(lat, lng, miles, latField, lngField);
+                final long candidateStart = System.nanoTime();
+                final List<BoundingBox> boxes = new ArrayList<BoundingBox>();
+                for (int i = 0; i < centers.length; i++) {
+                    boxes.add(new BoundingBox(lats[i], lngs[i],
+                                              radii[i] / DEGREES_TO_MILES));
+                }
+                startingFilter = getPlannedFilter(boxes, fields);
+                candidateFilterNanos = System.nanoTime() - candidateStart;
+            }
+            distanceFilter = new CoordinateDistanceFilter(
+                    startingFilter, calculators, radii, fields, null);
+            if (!plan.isFilterFirst()) {
+                distanceFilter.cacheSegmentResults();
             }
-            distanceFilter = new LatLongDistanceFilter(
-                    startingFilter, lat, lng, miles, latField, lngField);
         }
         return distanceFilter;
     }
 
+    /**
+     * Get the bounding boxes of the search's radii without reading the
+     * index, for routing a distributed search to the shards holding points
+     * within them.
+     *
+     * @throws ParseException if query formatting is bad
+     * @return one box per centerpoint, or null if a centerpoint has no
+     *         radius, as in a nearest-neighbor search without one
+     */
+    public final BoundingBox[] getSearchBoxes() throws ParseException {
+        Float maybeMiles = null;
+        if (localParams != null) {
+            maybeMiles = localParams.getFloat("radius");
+        }
+        final Matcher[] centers = matchCenters();
+        final BoundingBox[] boxes = new BoundingBox[centers.length];
+        for (int i = 0; i < centers.length; i++) {
+            final String radius = centers[i].group(RADIUS_GROUP);
+            double miles;
+            if (radius != null) {
+                miles = Double.parseDouble(radius);
+            } else if (maybeMiles != null) {
+                miles = maybeMiles.doubleValue();
+            } else {
+                return null;
+            }
+            boxes[i] = new BoundingBox(
+                    quantize(Double.parseDouble(centers[i].group(LAT_GROUP))),
+                    quantize(Double.parseDouble(centers[i].group(LNG_GROUP))),
+                    miles / DEGREES_TO_MILES);
+        }
+        return boxes;
+    }
+
+    /**
+     * Get the coordinate fields searched, without reading the index.
+     *
+     * @throws ParseException if query formatting is bad
+     * @return latitude and longitude fields named by the centerpoints, or
+     *         the defaults
+     */
+    public final LocationFields getSearchFields() throws ParseException {
+        final Matcher[] centers = matchCenters();
+        String latField = null;
+        String lngField = null;
+        for (int i = 0; i < centers.length; i++) {
+            latField = getCenterField(latField,
+                                      centers[i].group(LAT_FIELD_GROUP));
+            lngField = getCenterField(lngField,
+                                      centers[i].group(LNG_FIELD_GROUP));
+        }
+        if (latField == null) {
+            latField = DEFAULT_LAT_FIELD;
+        }
+        if (lngField == null) {
+            lngField = DEFAULT_LNG_FIELD;
+        }
+        return new LocationFields(latField, lngField, null);
+    }
+
+    /**
+     * Match each of the search's centerpoints against the query pattern.
+     *
+     * @throws ParseException if a centerpoint is badly formed
+     * @return matched centerpoints
+     */
+    private Matcher[] matchCenters() throws ParseException {
+        final String[] centers = qstr.split(";");
+        final Matcher[] matchers = new Matcher[centers.length];
+        for (int i = 0; i < centers.length; i++) {
+            matchers[i] = PATTERN.matcher(centers[i].trim());
+            if (!matchers[i].matches()) {
+                throw new ParseException(
+                        "Spatial queries should be of the format LAT,LNG"
+                        + " or LAT,LNG~RADIUS, separated by semicolons");
+            }
+        }
+        return matchers;
+    }
+
+    /**
+     * Check that a centerpoint names the same coordinate field as those
+     * before it.
+     *
+     * @param previous field named by the centerpoints before, or null
+     * @param named    field named by this centerpoint, or null
+     *
+     * @throws ParseException if the centerpoints name different fields
+     * @return field named by any of the centerpoints so far, or null
+     */
+    private static String getCenterField(final String previous,
+                                         final String named)
+        throws ParseException {
+        if (named == null) {
+            return previous;
+        }
+        if (previous != null && !previous.equals(named)) {
+            throw new ParseException(
+                    "Spatial centerpoints should all use the same fields");
+        }
+        return named;
+    }
+
+    /**
+     * Get the time getDistanceFilter() spent building the bounding box or
+     * cell filter.
+     *
+     * @return time in nanoseconds
+     */
+    public final long getCandidateFilterNanos() {
+        return candidateFilterNanos;
+    }
+
+    /**
+     * Get the time getDistanceFilter() spent finding the radius of a
+     * nearest-neighbor search.
+     *
+     * @return time in nanoseconds, or 0 if this is not a nearest-neighbor
+     *         search
+     */
+    public final long getNearestNanos() {
+        return nearestNanos;
+    }
+
+    /**
+     * Whether the search is to be sorted by distance.
+     *
+     * @return true if the "sort" local param is true, or this is a
+     *         nearest-neighbor search
+     */
+    public final boolean isSorted() {
+        return localParams != null && (localParams.getBool("sort", false)
+                                       || localParams.get("k") != null);
+    }
+
+    /**
+     * Get the number of nearest documents to find.
+     *
+     * @return the "k" local param, or null if this is not a nearest-neighbor
+     *         search
+     */
+    public final Integer getNearestCount() {
+        if (localParams == null) {
+            return null;
+        }
+        return localParams.getInt("k");
+    }
+
+    /**
+     * Get the plan chosen for the distance filter.
+     *
+     * @return plan, or null before getDistanceFilter() is called
+     */
+    public final SpatialPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Plan the distance filter and build its starting filter.
+     *
+     * @param boxes  bounding boxes of the radius around each centerpoint
+     * @param fields fields from which locations are read
+     *
+     * @throws ParseException if the "plan" local param is bad
+     * @throws IOException    on index read error
+     * @return filter supplying the documents whose distances are computed
+     */
+    private Filter getPlannedFilter(final List<BoundingBox> boxes,
+                                    final LocationFields fields)
+        throws ParseException, IOException {
+        String cellField = null;
+        String strategy = null;
+        if (localParams != null) {
+            cellField = localParams.get("cells");
+            strategy = localParams.get("plan");
+        }
+        if (strategy != null && !SpatialPlan.SCAN.equals(strategy)
+                && !SpatialPlan.BOUNDING_BOX.equals(strategy)
+                && !(SpatialPlan.CELLS.equals(strategy) && cellField != null)) {
+            throw new ParseException("Spatial plan should be scan, bbox, or "
+                                     + "cells with a cells field");
+        }
+        List<String> cells = null;
+        if (cellField != null) {
+            final Set<String> cover = new LinkedHashSet<String>();
+            for (int i = 0; i < boxes.size(); i++) {
+                final BoundingBox box = boxes.get(i);
+                cover.addAll(GeoHashCells.getCover(
+                            box.getMinLat(), box.getMaxLat(),
+                            box.getMinLng(), box.getMaxLng()));
+            }
+            cells = new ArrayList<String>(cover);
+        }
+        plan = newPlanner().plan(boxes, fields, cellField, cells,
+                                 searchFilters, strategy,
+                                 getForcedFilterFirst());
+
+        Filter candidates = null;
+        if (SpatialPlan.BOUNDING_BOX.equals(plan.getStrategy())) {
+            candidates = getBoundingBoxesFilter(boxes, fields);
+        } else if (SpatialPlan.CELLS.equals(plan.getStrategy())) {
+            candidates = getCellFilter(cellField, cells);
+        }
+        return getStartingFilter(restrictToShape(candidates, fields));
+    }
+
+    /**
+     * Restrict candidates to the shape, if one is given.
+     *
+     * The documents in the shape's bounding box are found with range
+     * filters, like those in a radius's bounding box; unless the shape is a
+     * box itself, they are then tested against the shape.
+     *
+     * @param candidates filter supplying the candidates, or null to take
+     *                   every document
+     * @param fields     fields from which locations are read
+     *
+     * @throws ParseException if the shape is malformed
+     * @return filter supplying the candidates in the shape
+     */
+    private Filter restrictToShape(final Filter candidates,
+                                   final LocationFields fields)
+        throws ParseException {
+        final Shape area = getShape();
+        if (area == null) {
+            return candidates;
+        }
+        Filter inBounds = getBoundingBoxFilter(area.getBounds(),
+                                               fields.getLatField(),
+                                               fields.getLngField());
+        if (candidates != null) {
+            final BooleanFilter both = new BooleanFilter();
+            both.add(new FilterClause(inBounds, BooleanClause.Occur.MUST));
+            both.add(new FilterClause(candidates, BooleanClause.Occur.MUST));
+            inBounds = both;
+        }
+        if (area instanceof BoundingBox) {
+            return inBounds;
+        }
+        return new ShapeFilter(inBounds, area, fields);
+    }
+
+    /**
+     * Parse a box from its edges.
+     *
+     * @param edges south, west, north and east edges, separated by commas
+     *
+     * @throws ParseException if the edges are malformed
+     * @return box
+     */
+    private static BoundingBox parseBox(final String edges)
+        throws ParseException {
+        final String[] parts = edges.split(",");
+        final double[] values = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Double.parseDouble(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            values[0] = Double.NaN;
+        }
+        if (values.length != BOX_EDGES
+                || !(Math.abs(values[0]) <= MAX_LAT)
+                || !(Math.abs(values[2]) <= MAX_LAT)
+                || !(values[0] <= values[2])
+                || !(Math.abs(values[1]) <= MAX_LNG)
+                || !(Math.abs(values[BOX_EDGES - 1]) <= MAX_LNG)) {
+            throw new ParseException(
+                    "Spatial boxes should be of the format "
+                    + "SOUTH,WEST,NORTH,EAST");
+        }
+        return BoundingBox.fromEdges(values[0], values[1], values[2],
+                                     values[BOX_EDGES - 1]);
+    }
+
+    /**
+     * Combine the candidates chosen by the plan with the search's other
+     * filter queries, if the plan applies them first.
+     *
+     * @param candidates filter supplying the candidates, or null to take
+     *                   every document
+     *
+     * @return filter supplying the documents whose distances are computed
+     */
+    private Filter getStartingFilter(final Filter candidates) {
+        if (!plan.isFilterFirst()) {
+            if (candidates == null) {
+                return new QueryWrapperFilter(new MatchAllDocsQuery());
+            }
+            return candidates;
+        }
+        if (candidates == null) {
+            return getPrefilter();
+        }
+        final BooleanFilter restricted = new BooleanFilter();
+        restricted.add(new FilterClause(
+                    getPrefilter(), BooleanClause.Occur.MUST));
+        restricted.add(new FilterClause(
+                    candidates, BooleanClause.Occur.MUST));
+        return restricted;
+    }
+
+    /**
+     * Construct a planner for this request's searcher.
+     *
+     * @return planner
+     */
+    private SpatialPlanner newPlanner() {
+        return new SpatialPlanner(req.getSearcher(),
+                                  req.getCore().getInfoRegistry());
+    }
+
+    /**
+     * Whether the search's other filter queries must be applied before
+     * distances are computed, or must not be, whatever the planner thinks.
+     *
+     * @return the "filterFirst" local param, false if the search has no
+     *         other filter queries, or null to leave it to the planner
+     */
+    private Boolean getForcedFilterFirst() {
+        if (searchFilters == null) {
+            return Boolean.FALSE;
+        }
+        if (localParams == null || localParams.get("filterFirst") == null) {
+            return null;
+        }
+        return Boolean.valueOf(localParams.getBool("filterFirst", false));
+    }
+
+    /**
+     * Round a coordinate to the number of decimal places given in the
+     * "quantize" local param, if any.
+     *
+     * Searches whose centerpoints round to the same coordinates build equal
+     * filters and sorts, so they can share entries in Solr's caches.
+     *
+     * @param degrees coordinate in degrees
+     *
+     * @return rounded coordinate
+     */
+    private double quantize(final double degrees) {
+        if (localParams == null || localParams.get("quantize") == null) {
+            return degrees;
+        }
+        final double scale =
+            Math.pow(DECIMAL_BASE, localParams.getInt("quantize", 0));
+        return Math.round(degrees * scale) / scale;
+    }
+
+    /**
+     * Find the radius enclosing the k documents nearest the centerpoint,
+     * using the searcher's "spatialNearest" user cache if it is configured.
+     *
+     * @param k          number of documents to find
+     * @param calculator calculator for distances from the centerpoint
+     * @param maxMiles   radius beyond which to stop looking
+     * @param fields     fields from which locations are read
+     *
+     * @throws IOException on index read error
+     * @return radius as given by getNearestRadius()
+     */
+    private Float getCachedNearestRadius(final int k,
+                                         final DistanceCalculator calculator,
+                                         final double maxMiles,
+                                         final LocationFields fields)
+        throws IOException {
+        final SolrIndexSearcher searcher = req.getSearcher();
+        final List<Object> key = Arrays.asList(new Object[] {
+            Double.valueOf(calculator.getLat()),
+            Double.valueOf(calculator.getLng()),
+            Integer.valueOf(k), Double.valueOf(maxMiles), fields,
+            searchQuery, searchFilters,
+        });
+        Float radius = (Float) searcher.cacheLookup(NEAREST_CACHE, key);
+        if (radius == null) {
+            radius = getNearestRadius(k, calculator, maxMiles, fields);
+            if (radius != null) {
+                searcher.cacheInsert(NEAREST_CACHE, key, radius);
+            }
+        }
+        return radius;
+    }
+
+    /**
+     * Find the radius enclosing the k documents nearest the centerpoint.
+     *
+     * Starting from a small bounding box, the box is grown until the circle
+     * inscribed in it contains at least k documents matching the search; the
+     * growth factor assumes evenly spread documents, so a sparse neighborhood
+     * is escaped in a few steps. Only documents inside the current box, and
+     * documents whose locations are overlaid, have their distances
+     * computed, so the cost depends on the density of documents around the
+     * centerpoint rather than on the size of the index.
+     *
+     * @param k          number of documents to find
+     * @param calculator calculator for distances from the centerpoint
+     * @param maxMiles   radius beyond which to stop looking
+     * @param fields     fields from which locations are read
+     *
+     * @throws IOException on index read error
+     * @return smallest radius enclosing k documents, or null if the whole of
+     *         maxMiles contains fewer than k documents and maxMiles is
+     *         unbounded
+     */
+    private Float getNearestRadius(final int k,
+                                   final DistanceCalculator calculator,
+                                   final double maxMiles,
+                                   final LocationFields fields)
+        throws IOException {
+        final DocSet candidates = getSearchDocSet();
+        final SolrIndexReader reader = req.getSearcher().getReader();
+        final SolrIndexReader[] segments = reader.getLeafReaders();
+        final int[] offsets = reader.getLeafOffsets();
+        double[] keys = new double[k];
+        double radius = Math.min(INITIAL_NEAREST_RADIUS, maxMiles);
+        while (true) {
+            final Filter box = getCandidateFilter(
+                    calculator.getLat(), calculator.getLng(), radius,
+                    fields.getLatField(), fields.getLngField());
+            int count = 0;
+            for (int i = 0; i < segments.length; i++) {
+                final SegmentDistances distances =
+                    fields.getDistances(segments[i], calculator, radius);
+                final DocIdSet docIdSet = CoordinateDistanceFilter.addOverlaid(
+                        box.getDocIdSet(segments[i]), segments[i], fields);
+                if (docIdSet == null) {
+                    continue;
+                }
+                final DocIdSetIterator it = docIdSet.iterator();
+                if (it == null) {
+                    continue;
+                }
+                for (int doc = it.nextDoc();
+                        doc != DocIdSetIterator.NO_MORE_DOCS;
+                        doc = it.nextDoc()) {
+                    if (candidates != null
+                            && !candidates.exists(offsets[i] + doc)) {
+                        continue;
+                    }
+                    final double key = distances.getKey(doc);
+                    if (distances.isWithin(key)) {
+                        if (count == keys.length) {
+                            final double[] grown = new double[count * 2];
+                            System.arraycopy(keys, 0, grown, 0, count);
+                            keys = grown;
+                        }
+                        keys[count++] = key;
+                    }
+                }
+            }
+            if (count >= k) {
+                Arrays.sort(keys, 0, count);
+                return Float.valueOf(getRadiusIncluding(
+                            keys[k - 1], calculator, fields, segments[0]));
+            }
+            if (radius >= maxMiles || radius >= MAX_DISTANCE) {
+                if (maxMiles >= DEFAULT_RADIUS) {
+                    return null;
+                }
+                return Float.valueOf((float) maxMiles);
+            }
+            radius = Math.min(maxMiles, radius * Math.max(MIN_NEAREST_GROWTH,
+                    Math.sqrt((double) k / Math.max(count, 1))));
+        }
+    }
+
+    /**
+     * Get a radius within which a document's key lies.
+     *
+     * Keys are compared strictly against the radius, so the radius is the
+     * next float above the key's distance. Near the centerpoint, unit
+     * vector keys are too flat to tell that radius from the distance, so
+     * it is doubled until the key is within it.
+     *
+     * @param key        key of the document
+     * @param calculator calculator for distances from the centerpoint
+     * @param fields     fields from which locations are read
+     * @param segment    any segment of the searcher
+     *
+     * @throws IOException on index read error
+     * @return radius in miles
+     */
+    private static float getRadiusIncluding(
+            final double key, final DistanceCalculator calculator,
+            final LocationFields fields, final IndexReader segment)
+        throws IOException {
+        float miles = nextFloatAbove(fields.toMiles(key));
+        while (!fields.getDistances(segment, calculator, miles)
+                .isWithin(key)) {
+            miles = Math.max(nextFloatAbove(miles), miles * 2);
+        }
+        return miles;
+    }
+
+    /**
+     * Smallest float radius strictly greater than a distance.
+     *
+     * @param miles distance in miles
+     *
+     * @return radius in miles
+     */
+    private static float nextFloatAbove(final double miles) {
+        final float radius = (float) miles;
+        if (radius > miles) {
+            return radius;
+        }
+        return Float.intBitsToFloat(Float.floatToIntBits(radius) + 1);
+    }
+
+    /**
+     * Get the documents matching the search's query and filter queries.
+     *
+     * @throws IOException on index read error
+     * @return matching documents, or null if the search matches everything
+     */
+    private DocSet getSearchDocSet() throws IOException {
+        final List<Query> queries = new ArrayList<Query>();
+        if (searchFilters != null) {
+            queries.addAll(searchFilters);
+        }
+        if (searchQuery != null
+                && !(searchQuery instanceof MatchAllDocsQuery)) {
+            queries.add(searchQuery);
+        }
+        if (queries.isEmpty()) {
+            return null;
+        }
+        return req.getSearcher().getDocSet(queries);
+    }
+
     /**
      * Return a sort by distance based on the distance filter.
      *
      * @throws ParseException if params are malformed
+     * @throws IOException    on index read error
      * @return sort by distance
      */
     public final SortField getSortField()
-        throws ParseException {
+        throws ParseException, IOException {
         if (sortField == null) {
-            final FieldComparatorSource dfcs =
-                new DistanceFieldComparatorSource(getDistanceFilter());
-            sortField = new SortField("dummy", dfcs);
+            final CoordinateDistanceFilter filter = getDistanceFilter();
+            final DistanceComparatorSource dcs = new DistanceComparatorSource(
+                    filter.getCalculators(), filter.getLocationFields());
+            sortField = new SortField(DISTANCE_SORT_FIELD, dcs);
         }
         return sortField;
     }
 
+    /**
+     * Return a sort by the distances returned by the shards of a distributed
+     * search, under which their results are merged.
+     *
+     * The shards return the distance of each result as its sort value, so
+     * the coordinator compares those rather than computing any itself; the
+     * sort cannot be used against an index.
+     *
+     * @return sort by the shards' distances
+     */
+    public static SortField getMergeSortField() {
+        return new SortField(DISTANCE_SORT_FIELD, SortField.DOUBLE);
+    }
+
+    /**
+     * Get a filter matching the search's other filter queries.
+     *
+     * The other filter queries are evaluated through the searcher's filter
+     * cache, so when they are selective, the distance filter only computes
+     * distances for the few documents that survive them.
+     *
+     * @return filter matching documents that match the other filter queries
+     */
+    private Filter getPrefilter() {
+        CachedDocSetFilter.registerSearcher(req.getSearcher());
+        return new CachedDocSetFilter(searchFilters);
+    }
+
+    /**
+     * Get a filter supplying the candidate documents for a radius.
+     *
+     * If the "cells" local param names a field indexed by
+     * GeoHashUpdateProcessorFactory, the candidates are the documents in the
+     * geohash cells covering the bounding box; otherwise they are the
+     * documents in the bounding box itself.
+     *
+     * @param lat      The latitude of the centerpoint.
+     * @param lng      The longitude of the centerpoint.
+     * @param miles    The radius in miles.
+     * @param latField The name of the field in which latitude is indexed.
+     * @param lngField The name of the field in which longitude is indexed.
+     *
+     * @return filter matching every document within the radius
+     */
+    private Filter getCandidateFilter(final double lat, final double lng,
+                                      final double miles,
+                                      final String latField,
+                                      final String lngField) {
+        String cellField = null;
+        if (localParams != null) {
+            cellField = localParams.get("cells");
+        }
+        if (cellField == null) {
+            return getBoundingBoxFilter(lat, lng, miles, latField, lngField);
+        }
+        return getCellCoverFilter(lat, lng, miles, cellField);
+    }
+
+    /**
+     * Get a filter matching the geohash cells that cover the bounding box
+     * around a coordinate pair.
+     *
+     * @param lat       The latitude of the centerpoint of the bounding box.
+     * @param lng       The longitude of the centerpoint of the bounding box.
+     * @param miles     The size of the bounding box "radius" in miles.
+     * @param cellField The name of the field in which cells are indexed.
+     *
+     * @return filter matching the documents in the covering cells
+     */
+    private Filter getCellCoverFilter(final double lat, final double lng,
+                                      final double miles,
+                                      final String cellField) {
+        final BoundingBox box =
+            new BoundingBox(lat, lng, miles / DEGREES_TO_MILES);
+        return getCellFilter(cellField, GeoHashCells.getCover(
+                box.getMinLat(), box.getMaxLat(),
+                box.getMinLng(), box.getMaxLng()));
+    }
+
+    /**
+     * Get a filter matching the documents in geohash cells.
+     *
+     * @param cellField The name of the field in which cells are indexed.
+     * @param cells     The cells.
+     *
+     * @return filter matching the documents in the cells
+     */
+    private Filter getCellFilter(final String cellField,
+                                 final List<String> cells) {
+        final TermsFilter filter = new TermsFilter();
+        for (int i = 0; i < cells.size(); i++) {
+            filter.addTerm(new Term(cellField, cells.get(i)));
+        }
+        return filter;
+    }
+
     /**
      * Get a bounding box filter restricting results to a given bounding box
      * around a coordinate pair.
@@ -175,40 +1089,94 @@ public class Spatial extends QParser {
                                         final double miles,
                                         final String latField,
                                         final String lngField) {
-        final double latRadius = Math.abs(miles / DEGREES_TO_MILES);
-        final double lngRadius = Math.abs(miles / (DEGREES_TO_MILES
-                                          * Math.cos(Math.toRadians(lat))));
+        return getBoundingBoxFilter(
+                new BoundingBox(lat, lng, miles / DEGREES_TO_MILES),
+                latField, lngField);
+    }
+
+    /**
+     * Get a filter restricting results to any of several bounding boxes.
+     *
+     * @param boxes  The bounding boxes.
+     * @param fields The fields from which locations are read.
+     *
+     * @return filter restricting results to the given bounding boxes
+     */
+    private Filter getBoundingBoxesFilter(final List<BoundingBox> boxes,
+                                          final LocationFields fields) {
+        if (boxes.size() == 1) {
+            return getBoundingBoxFilter(boxes.get(0), fields.getLatField(),
+                                        fields.getLngField());
+        }
+        final BooleanFilter filter = new BooleanFilter();
+        for (int i = 0; i < boxes.size(); i++) {
+            filter.add(new FilterClause(
+                        getBoundingBoxFilter(boxes.get(i),
+                                             fields.getLatField(),
+                                             fields.getLngField()),
+                        BooleanClause.Occur.SHOULD));
+        }
+        return filter;
+    }
 
+    /**
+     * Get a filter restricting results to a bounding box.
+     *
+     * @param box      The bounding box.
+     * @param latField The name of the field in which latitude is indexed.
+     * @param lngField The name of the field in which longitude is indexed.
+     *
+     * @return filter restricting results to the given bounding box
+     */
+    private Filter getBoundingBoxFilter(final BoundingBox box,
+                                        final String latField,
+                                        final String lngField) {
         final BooleanFilter filter = new BooleanFilter();
 
-        filter.add(new FilterClause(getBoundingFilter(latField, lat, latRadius),
-                                    BooleanClause.Occur.MUST));
-        filter.add(new FilterClause(getBoundingFilter(lngField, lng, lngRadius),
-                                    BooleanClause.Occur.MUST));
+        filter.add(new FilterClause(
+                    getRangeFilter(latField, box.getMinLat(), box.getMaxLat()),
+                    BooleanClause.Occur.MUST));
+        if (!box.isWholeWidth()) {
+            final double[][] lngRanges = box.getLngRanges();
+            if (lngRanges.length == 1) {
+                filter.add(new FilterClause(
+                            getRangeFilter(lngField, lngRanges[0][0],
+                                           lngRanges[0][1]),
+                            BooleanClause.Occur.MUST));
+            } else {
+                final BooleanFilter lngFilter = new BooleanFilter();
+                for (int i = 0; i < lngRanges.length; i++) {
+                    lngFilter.add(new FilterClause(
+                                getRangeFilter(lngField, lngRanges[i][0],
+                                               lngRanges[i][1]),
+                                BooleanClause.Occur.SHOULD));
+                }
+                filter.add(new FilterClause(lngFilter,
+                                            BooleanClause.Occur.MUST));
+            }
+        }
 
         return filter;
     }
 
     /**
-     * Get a filter restricting results to a upper/lower boundary around a
-     * given point.
+     * Get a filter restricting results to a range of values of a field.
      *
      * Uses Solr introspection to build the appropriate range query for the
      * given field.
      *
      * @param fieldName name of the field on which to construct the filter.
-     * @param center    centerpoint of the bounding range.
-     * @param radius    distance between the centerpoint and the upper/lower
-     *                  bounds.
+     * @param min       lower bound of the range, inclusive.
+     * @param max       upper bound of the range, inclusive.
      *
-     * @return filter restricting results to the given range around the center
+     * @return filter restricting results to the given range
      */
-    private Filter getBoundingFilter(final String fieldName,
-                                     final double center, final double radius) {
+    private Filter getRangeFilter(final String fieldName,
+                                  final double min, final double max) {
         final SchemaField field = req.getSchema().getField(fieldName);
-        final Query boundingQuery = field.getType().getRangeQuery(
-                this, field, new Double(center - radius).toString(),
-                new Double(center + radius).toString(), true, true);
-        return new QueryWrapperFilter(boundingQuery);
+        final Query rangeQuery = field.getType().getRangeQuery(
+                this, field, new Double(min).toString(),
+                new Double(max).toString(), true, true);
+        return new QueryWrapperFilter(rangeQuery);
     }
 }
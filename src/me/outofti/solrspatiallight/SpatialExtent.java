@@ -0,0 +1,411 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Summary of where an index holds points: the least and greatest latitude
+ * and longitude indexed, and a coarse bitmap of the cells of a world grid
+ * holding at least one live document.
+ *
+ * Shards return the summary of their index with the results of a spatial
+ * search, so that the coordinator of a distributed search can leave out the
+ * shards whose points are all outside the radius of later searches. The
+ * summary is computed from the coordinate arrays once per searcher and
+ * field pair, so it is refreshed by every commit; SpatialWarmingListener
+ * computes it before the searcher is registered.
+ *
+ * The summary never leaves out a point, though it may include locations
+ * where there are none: the bounds include deleted documents, and a
+ * document without a location counts as being at 0,0 if that is within
+ * them.
+ */
+public final class SpatialExtent {
+    /**
+     * Number of rows of cells in the world grid, each about 2.8 degrees of
+     * latitude.
+     */
+    static final int ROWS = 64;
+
+    /**
+     * Number of columns of cells in the world grid, each about 2.8 degrees
+     * of longitude.
+     */
+    static final int COLUMNS = 128;
+
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Number of bits per word of the bitmap.
+     */
+    private static final int WORD_BITS = 64;
+
+    /**
+     * Summaries computed, keyed by top-level reader and then by field pair.
+     */
+    private static final Map<Object, Map<String, SpatialExtent>> EXTENTS =
+        new WeakHashMap<Object, Map<String, SpatialExtent>>();
+
+    /**
+     * Name of the latitude field summarized.
+     */
+    private final String latField;
+
+    /**
+     * Name of the longitude field summarized.
+     */
+    private final String lngField;
+
+    /**
+     * {min, max} latitudes indexed, or null if there are none.
+     */
+    private final double[] latRange;
+
+    /**
+     * {min, max} longitudes indexed, or null if there are none.
+     */
+    private final double[] lngRange;
+
+    /**
+     * Occupied cells, one bit per cell in row-major order from the
+     * south-west corner.
+     */
+    private final long[] cells;
+
+    /**
+     * Construct a summary.
+     *
+     * @param lat       name of the latitude field
+     * @param lng       name of the longitude field
+     * @param lats      {min, max} latitudes, or null if there are none
+     * @param lngs      {min, max} longitudes, or null if there are none
+     * @param cellWords occupied cells
+     */
+    private SpatialExtent(final String lat, final String lng,
+                          final double[] lats, final double[] lngs,
+                          final long[] cellWords) {
+        latField = lat;
+        lngField = lng;
+        latRange = lats;
+        lngRange = lngs;
+        cells = cellWords;
+    }
+
+    /**
+     * Get the summary of a searcher's index, computing it the first time it
+     * is requested for a given reader and field pair.
+     *
+     * @param reader   top-level reader of the searcher
+     * @param latField name of the latitude field
+     * @param lngField name of the longitude field
+     *
+     * @throws IOException on index read error
+     * @return summary of the points indexed in the fields
+     */
+    public static SpatialExtent get(final IndexReader reader,
+                                    final String latField,
+                                    final String lngField)
+        throws IOException {
+        final String key = getKey(latField, lngField);
+        Map<String, SpatialExtent> extents;
+        synchronized (EXTENTS) {
+            extents = EXTENTS.get(reader);
+            if (extents == null) {
+                extents = new HashMap<String, SpatialExtent>();
+                EXTENTS.put(reader, extents);
+            }
+        }
+        synchronized (extents) {
+            SpatialExtent extent = extents.get(key);
+            if (extent == null) {
+                extent = compute(reader, latField, lngField);
+                extents.put(key, extent);
+            }
+            return extent;
+        }
+    }
+
+    /**
+     * Get the summary widened to take in the overlaid locations of a
+     * searcher's documents, which searches read ahead of the indexed ones.
+     *
+     * @param reader top-level reader of the searcher
+     * @param fields fields searched, with the overlay if there is one
+     *
+     * @throws IOException on index read error
+     * @return summary of the points indexed or overlaid; this summary if no
+     *         document of the searcher is overlaid
+     */
+    public SpatialExtent withOverlay(final IndexReader reader,
+                                     final LocationFields fields)
+        throws IOException {
+        if (!fields.isOverlaid()) {
+            return this;
+        }
+        IndexReader[] segments = reader.getSequentialSubReaders();
+        if (segments == null) {
+            segments = new IndexReader[] {reader};
+        }
+        double[] lats = latRange;
+        double[] lngs = lngRange;
+        long[] cellWords = cells;
+        for (int i = 0; i < segments.length; i++) {
+            final LocationOverlay.SegmentOverlay overlay =
+                fields.getSegmentOverlay(segments[i]);
+            if (overlay == null) {
+                continue;
+            }
+            if (cellWords == cells) {
+                cellWords = cells.clone();
+            }
+            final double[] overlaidLats = overlay.getLats();
+            final double[] overlaidLngs = overlay.getLngs();
+            for (int j = 0; j < overlay.size(); j++) {
+                final double lat = overlaidLats[j];
+                final double lng = overlaidLngs[j];
+                lats = widen(lats, new double[] {lat, lat});
+                lngs = widen(lngs, new double[] {lng, lng});
+                final int cell = getRow(lat) * COLUMNS + getColumn(lng);
+                cellWords[cell / WORD_BITS] |= 1L << (cell % WORD_BITS);
+            }
+        }
+        if (cellWords == cells) {
+            return this;
+        }
+        return new SpatialExtent(latField, lngField, lats, lngs, cellWords);
+    }
+
+    /**
+     * Read a summary returned by a shard.
+     *
+     * @param summary summary as returned by toNamedList()
+     *
+     * @return summary
+     */
+    public static SpatialExtent fromNamedList(final NamedList<?> summary) {
+        double[] lats = null;
+        double[] lngs = null;
+        if (summary.get("south") != null) {
+            lats = new double[] {
+                ((Number) summary.get("south")).doubleValue(),
+                ((Number) summary.get("north")).doubleValue()
+            };
+            lngs = new double[] {
+                ((Number) summary.get("west")).doubleValue(),
+                ((Number) summary.get("east")).doubleValue()
+            };
+        }
+        final List<?> words = (List<?>) summary.get("cells");
+        final long[] cellWords = new long[ROWS * COLUMNS / WORD_BITS];
+        for (int i = 0; i < cellWords.length && i < words.size(); i++) {
+            cellWords[i] = ((Number) words.get(i)).longValue();
+        }
+        return new SpatialExtent((String) summary.get("latField"),
+                                 (String) summary.get("lngField"),
+                                 lats, lngs, cellWords);
+    }
+
+    /**
+     * Write the summary into a response.
+     *
+     * @return field names, bounds if any points are indexed, and the words
+     *         of the bitmap of occupied cells
+     */
+    public NamedList<Object> toNamedList() {
+        final NamedList<Object> summary = new SimpleOrderedMap<Object>();
+        summary.add("latField", latField);
+        summary.add("lngField", lngField);
+        if (latRange != null) {
+            summary.add("south", Double.valueOf(latRange[0]));
+            summary.add("west", Double.valueOf(lngRange[0]));
+            summary.add("north", Double.valueOf(latRange[1]));
+            summary.add("east", Double.valueOf(lngRange[1]));
+        }
+        final List<Long> words = new ArrayList<Long>(cells.length);
+        for (int i = 0; i < cells.length; i++) {
+            words.add(Long.valueOf(cells[i]));
+        }
+        summary.add("cells", words);
+        return summary;
+    }
+
+    /**
+     * Get the key identifying the field pair summarized.
+     *
+     * @return latitude and longitude field names, separated by a comma
+     */
+    public String getKey() {
+        return getKey(latField, lngField);
+    }
+
+    /**
+     * Whether any point may be within one of several boxes.
+     *
+     * @param boxes bounding boxes of the search's radii
+     *
+     * @return false if every point indexed is outside all of the boxes
+     */
+    public boolean mayContain(final BoundingBox[] boxes) {
+        if (latRange == null) {
+            return false;
+        }
+        for (int i = 0; i < boxes.length; i++) {
+            if (boxes[i].overlaps(latRange, lngRange)
+                    && hasOccupiedCell(boxes[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether any cell overlapping a box holds a document.
+     *
+     * @param box bounding box
+     *
+     * @return true if an occupied cell overlaps the box
+     */
+    private boolean hasOccupiedCell(final BoundingBox box) {
+        final int minRow = getRow(box.getMinLat());
+        final int maxRow = getRow(box.getMaxLat());
+        double[][] lngRanges = box.getLngRanges();
+        if (box.isWholeWidth()) {
+            lngRanges = new double[][] {{-MAX_LNG, MAX_LNG}};
+        }
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int i = 0; i < lngRanges.length; i++) {
+                final int maxColumn = getColumn(lngRanges[i][1]);
+                for (int column = getColumn(lngRanges[i][0]);
+                        column <= maxColumn; column++) {
+                    final int cell = row * COLUMNS + column;
+                    if ((cells[cell / WORD_BITS] & (1L << (cell % WORD_BITS)))
+                            != 0) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compute the summary of an index.
+     *
+     * @param reader   top-level reader
+     * @param latField name of the latitude field
+     * @param lngField name of the longitude field
+     *
+     * @throws IOException on index read error
+     * @return summary
+     */
+    private static SpatialExtent compute(final IndexReader reader,
+                                         final String latField,
+                                         final String lngField)
+        throws IOException {
+        IndexReader[] segments = reader.getSequentialSubReaders();
+        if (segments == null) {
+            segments = new IndexReader[] {reader};
+        }
+        double[] lats = null;
+        double[] lngs = null;
+        final long[] cellWords = new long[ROWS * COLUMNS / WORD_BITS];
+        for (int i = 0; i < segments.length; i++) {
+            final IndexReader segment = segments[i];
+            final double[] segmentLats =
+                CoordinateCache.DEFAULT.getRange(segment, latField);
+            final double[] segmentLngs =
+                CoordinateCache.DEFAULT.getRange(segment, lngField);
+            if (segmentLats == null || segmentLngs == null) {
+                continue;
+            }
+            lats = widen(lats, segmentLats);
+            lngs = widen(lngs, segmentLngs);
+            final double[] latValues =
+                CoordinateCache.DEFAULT.getValues(segment, latField);
+            final double[] lngValues =
+                CoordinateCache.DEFAULT.getValues(segment, lngField);
+            final int maxDoc = segment.maxDoc();
+            for (int doc = 0; doc < maxDoc; doc++) {
+                final double lat = latValues[doc];
+                final double lng = lngValues[doc];
+                if (segment.isDeleted(doc)
+                        || lat < segmentLats[0] || lat > segmentLats[1]
+                        || lng < segmentLngs[0] || lng > segmentLngs[1]) {
+                    continue;
+                }
+                final int cell = getRow(lat) * COLUMNS + getColumn(lng);
+                cellWords[cell / WORD_BITS] |= 1L << (cell % WORD_BITS);
+            }
+        }
+        return new SpatialExtent(latField, lngField, lats, lngs, cellWords);
+    }
+
+    /**
+     * Widen a range to include another.
+     *
+     * @param range range so far, or null if there is none
+     * @param other range to include
+     *
+     * @return widened range
+     */
+    private static double[] widen(final double[] range,
+                                  final double[] other) {
+        if (range == null) {
+            return new double[] {other[0], other[1]};
+        }
+        return new double[] {Math.min(range[0], other[0]),
+                             Math.max(range[1], other[1])};
+    }
+
+    /**
+     * Get the row of the world grid holding a latitude.
+     *
+     * @param lat latitude
+     *
+     * @return row, counting from the south pole
+     */
+    private static int getRow(final double lat) {
+        final int row = (int) ((lat + MAX_LAT) / (2 * MAX_LAT) * ROWS);
+        return Math.max(0, Math.min(ROWS - 1, row));
+    }
+
+    /**
+     * Get the column of the world grid holding a longitude.
+     *
+     * @param lng longitude, within -180 to 180
+     *
+     * @return column, counting from the antimeridian eastwards
+     */
+    private static int getColumn(final double lng) {
+        final int column = (int) ((lng + MAX_LNG) / (2 * MAX_LNG) * COLUMNS);
+        return Math.max(0, Math.min(COLUMNS - 1, column));
+    }
+
+    /**
+     * Get the key identifying a field pair.
+     *
+     * @param latField name of the latitude field
+     * @param lngField name of the longitude field
+     *
+     * @return latitude and longitude field names, separated by a comma
+     */
+    static String getKey(final String latField, final String lngField) {
+        return latField + "," + lngField;
+    }
+}
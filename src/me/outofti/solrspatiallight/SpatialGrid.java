@@ -0,0 +1,343 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexReader;
+
+/**
+ * Counts of the documents in each map tile of a viewport, for drawing
+ * clusters of markers on a zoomable map.
+ *
+ * Tiles follow the usual web map numbering: at zoom level z the Mercator
+ * projection of the world is divided into 2^z by 2^z tiles, numbered from
+ * the north-west corner. Each tile of the viewport that holds a document is
+ * returned with its number of documents and their mean latitude and
+ * longitude, read from the cached coordinate arrays in a single pass over
+ * the results. The viewport may cross the antimeridian, in which case its
+ * western edge is east of its eastern edge.
+ */
+public final class SpatialGrid {
+    /**
+     * Deepest zoom level accepted.
+     */
+    private static final int MAX_ZOOM = 24;
+
+    /**
+     * Greatest number of tiles a viewport may span.
+     */
+    private static final int MAX_TILES = 65536;
+
+    /**
+     * Latitude at which the Mercator projection is cut off, making the
+     * world square.
+     */
+    private static final double MAX_MERCATOR_LAT = 85.0511287798;
+
+    /**
+     * Greatest absolute latitude.
+     */
+    private static final double MAX_LAT = 90.0;
+
+    /**
+     * Greatest absolute longitude.
+     */
+    private static final double MAX_LNG = 180.0;
+
+    /**
+     * Number of values in a viewport.
+     */
+    private static final int BOX_VALUES = 4;
+
+    /**
+     * Southern edge of the viewport.
+     */
+    private final double south;
+
+    /**
+     * Western edge of the viewport.
+     */
+    private final double west;
+
+    /**
+     * Northern edge of the viewport.
+     */
+    private final double north;
+
+    /**
+     * Eastern edge of the viewport.
+     */
+    private final double east;
+
+    /**
+     * Zoom level.
+     */
+    private final int zoom;
+
+    /**
+     * Number of tiles across the world at the zoom level.
+     */
+    private final int worldTiles;
+
+    /**
+     * Column of the viewport's westernmost tiles.
+     */
+    private final int minX;
+
+    /**
+     * Row of the viewport's northernmost tiles.
+     */
+    private final int minY;
+
+    /**
+     * Number of tile columns in the viewport.
+     */
+    private final int columns;
+
+    /**
+     * Number of tile rows in the viewport.
+     */
+    private final int rows;
+
+    /**
+     * Construct the grid.
+     *
+     * @param bounds    south, west, north and east edges of the viewport
+     * @param zoomLevel zoom level
+     */
+    private SpatialGrid(final double[] bounds, final int zoomLevel) {
+        south = bounds[0];
+        west = bounds[1];
+        north = bounds[2];
+        east = bounds[BOX_VALUES - 1];
+        zoom = zoomLevel;
+        worldTiles = 1 << zoomLevel;
+        minX = getTileX(west);
+        minY = getTileY(north);
+        int maxX = getTileX(east);
+        if (west > east) {
+            maxX += worldTiles;
+        }
+        columns = maxX - minX + 1;
+        rows = getTileY(south) - minY + 1;
+    }
+
+    /**
+     * Parse a viewport and zoom level.
+     *
+     * @param box       south, west, north and east edges of the viewport in
+     *                  degrees, separated by commas
+     * @param zoomLevel zoom level
+     *
+     * @throws ParseException if the viewport is malformed, or spans too many
+     *                        tiles at the zoom level
+     * @return grid counting the documents in each tile of the viewport
+     */
+    public static SpatialGrid parse(final String box, final int zoomLevel)
+        throws ParseException {
+        final String[] parts = box.split(",");
+        if (parts.length != BOX_VALUES) {
+            throw new ParseException("Spatial grid boxes should be of the "
+                                     + "format SOUTH,WEST,NORTH,EAST");
+        }
+        final double[] bounds = new double[BOX_VALUES];
+        for (int i = 0; i < BOX_VALUES; i++) {
+            try {
+                bounds[i] = Double.parseDouble(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("Spatial grid boxes should be of the "
+                                         + "format SOUTH,WEST,NORTH,EAST");
+            }
+        }
+        if (!(Math.abs(bounds[0]) <= MAX_LAT && Math.abs(bounds[2]) <= MAX_LAT
+              && Math.abs(bounds[1]) <= MAX_LNG
+              && Math.abs(bounds[BOX_VALUES - 1]) <= MAX_LNG
+              && bounds[0] <= bounds[2])) {
+            throw new ParseException("Spatial grid box is out of bounds");
+        }
+        if (zoomLevel < 0 || zoomLevel > MAX_ZOOM) {
+            throw new ParseException("Spatial grid zoom should be from 0 to "
+                                     + MAX_ZOOM);
+        }
+        final SpatialGrid grid = new SpatialGrid(bounds, zoomLevel);
+        if ((long) grid.columns * grid.rows > MAX_TILES) {
+            throw new ParseException("Spatial grid box spans more than "
+                                     + MAX_TILES + " tiles at zoom "
+                                     + zoomLevel);
+        }
+        return grid;
+    }
+
+    /**
+     * Count the documents of a result set in each tile of the viewport.
+     *
+     * @param reader   top-level reader of the searcher
+     * @param docs     documents to count
+     * @param latField name of the field in which latitude is indexed
+     * @param lngField name of the field in which longitude is indexed
+     *
+     * @throws IOException on index read error
+     * @return tiles holding documents, keyed "zoom/x/y" from north-west to
+     *         south-east, each with its count and mean latitude and longitude
+     */
+    public NamedList<Object> count(final SolrIndexReader reader,
+                                   final DocSet docs, final String latField,
+                                   final String lngField) throws IOException {
+        final SolrIndexReader[] segments = reader.getLeafReaders();
+        final int[] offsets = reader.getLeafOffsets();
+        final int[] counts = new int[columns * rows];
+        final double[] latSums = new double[counts.length];
+        final double[] lngSums = new double[counts.length];
+        double[] lats = null;
+        double[] lngs = null;
+        int leafStart = 0;
+        int leafEnd = 0;
+        for (final DocIterator it = docs.iterator(); it.hasNext();) {
+            final int doc = it.nextDoc();
+            if (lats == null || doc < leafStart || doc >= leafEnd) {
+                final int leaf = SolrIndexReader.readerIndex(doc, offsets);
+                leafStart = offsets[leaf];
+                leafEnd = leafStart + segments[leaf].maxDoc();
+                lats = CoordinateCache.DEFAULT.getValues(segments[leaf],
+                                                         latField);
+                lngs = CoordinateCache.DEFAULT.getValues(segments[leaf],
+                                                         lngField);
+            }
+            final double lat = lats[doc - leafStart];
+            final double lng = lngs[doc - leafStart];
+            if (!contains(lat, lng)) {
+                continue;
+            }
+            int column = getTileX(lng) - minX;
+            if (column < 0) {
+                column += worldTiles;
+            }
+            final int tile = (getTileY(lat) - minY) * columns + column;
+            counts[tile]++;
+            latSums[tile] += lat;
+            lngSums[tile] += lng;
+        }
+
+        return toNamedList(counts, latSums, lngSums);
+    }
+
+    /**
+     * Merge the tiles counted by several shards of a distributed search.
+     *
+     * @param shardTiles tiles returned by each shard's count()
+     *
+     * @return tiles holding documents, as returned by count()
+     */
+    public NamedList<Object> merge(final List<NamedList<?>> shardTiles) {
+        final int[] counts = new int[columns * rows];
+        final double[] latSums = new double[counts.length];
+        final double[] lngSums = new double[counts.length];
+        for (final Iterator<NamedList<?>> it = shardTiles.iterator();
+                it.hasNext();) {
+            final NamedList<?> tiles = it.next();
+            for (int i = 0; i < tiles.size(); i++) {
+                final String[] key = tiles.getName(i).split("/");
+                int column = Integer.parseInt(key[1]) - minX;
+                if (column < 0) {
+                    column += worldTiles;
+                }
+                final int row = Integer.parseInt(key[2]) - minY;
+                if (column >= columns || row < 0 || row >= rows) {
+                    continue;
+                }
+                final int tile = row * columns + column;
+                final NamedList<?> cluster = (NamedList<?>) tiles.getVal(i);
+                final int count = ((Number) cluster.get("count")).intValue();
+                counts[tile] += count;
+                latSums[tile] +=
+                    ((Number) cluster.get("lat")).doubleValue() * count;
+                lngSums[tile] +=
+                    ((Number) cluster.get("lng")).doubleValue() * count;
+            }
+        }
+        return toNamedList(counts, latSums, lngSums);
+    }
+
+    /**
+     * Build the response for the tiles holding documents.
+     *
+     * @param counts  number of documents in each tile of the viewport
+     * @param latSums sum of the latitudes of each tile's documents
+     * @param lngSums sum of the longitudes of each tile's documents
+     *
+     * @return tiles keyed "zoom/x/y" from north-west to south-east, each with
+     *         its count and mean latitude and longitude
+     */
+    private NamedList<Object> toNamedList(final int[] counts,
+                                          final double[] latSums,
+                                          final double[] lngSums) {
+        final NamedList<Object> tiles = new SimpleOrderedMap<Object>();
+        for (int tile = 0; tile < counts.length; tile++) {
+            if (counts[tile] == 0) {
+                continue;
+            }
+            final NamedList<Object> cluster = new SimpleOrderedMap<Object>();
+            cluster.add("count", Integer.valueOf(counts[tile]));
+            cluster.add("lat", Double.valueOf(latSums[tile] / counts[tile]));
+            cluster.add("lng", Double.valueOf(lngSums[tile] / counts[tile]));
+            final int x = (minX + tile % columns) % worldTiles;
+            final int y = minY + tile / columns;
+            tiles.add(zoom + "/" + x + "/" + y, cluster);
+        }
+        return tiles;
+    }
+
+    /**
+     * Whether a point is in the viewport.
+     *
+     * @param lat latitude
+     * @param lng longitude
+     *
+     * @return true if the point is within the viewport's edges
+     */
+    private boolean contains(final double lat, final double lng) {
+        if (lat < south || lat > north) {
+            return false;
+        }
+        if (west <= east) {
+            return lng >= west && lng <= east;
+        }
+        return lng >= west || lng <= east;
+    }
+
+    /**
+     * Get the column of the tiles containing a longitude.
+     *
+     * @param lng longitude
+     *
+     * @return column, from 0 at the antimeridian eastwards
+     */
+    private int getTileX(final double lng) {
+        final int x = (int) Math.floor(
+                (lng + MAX_LNG) / (2 * MAX_LNG) * worldTiles);
+        return Math.min(x, worldTiles - 1);
+    }
+
+    /**
+     * Get the row of the tiles containing a latitude.
+     *
+     * @param lat latitude
+     *
+     * @return row, from 0 at the north edge of the map southwards
+     */
+    private int getTileY(final double lat) {
+        final double radians = Math.toRadians(
+                Math.max(-MAX_MERCATOR_LAT, Math.min(MAX_MERCATOR_LAT, lat)));
+        final double mercator =
+            Math.log(Math.tan(radians) + 1.0 / Math.cos(radians));
+        final int y = (int) Math.floor(
+                (1.0 - mercator / Math.PI) / 2.0 * worldTiles);
+        return Math.max(0, Math.min(y, worldTiles - 1));
+    }
+}
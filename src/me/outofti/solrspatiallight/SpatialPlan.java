@@ -0,0 +1,137 @@
+package me.outofti.solrspatiallight;
+
+/**
+ * How a distance filter finds the documents whose distances it computes.
+ *
+ * The candidates come from one of three strategies: every document in the
+ * index (a plain scan of the coordinate arrays), the documents in the
+ * latitude and longitude ranges of the bounding box, or the documents in the
+ * geohash cells covering the box. Independently, the search's other filter
+ * queries may be applied first, so that distances are only computed for
+ * documents that pass them.
+ */
+public final class SpatialPlan {
+    /**
+     * Strategy computing the distance of every document.
+     */
+    public static final String SCAN = "scan";
+
+    /**
+     * Strategy computing the distances of the documents in the bounding
+     * box's latitude and longitude ranges.
+     */
+    public static final String BOUNDING_BOX = "bbox";
+
+    /**
+     * Strategy computing the distances of the documents in the geohash cells
+     * covering the bounding box.
+     */
+    public static final String CELLS = "cells";
+
+    /**
+     * Strategy supplying the candidates.
+     */
+    private final String strategy;
+
+    /**
+     * Whether the other filter queries are applied first.
+     */
+    private final boolean filterFirst;
+
+    /**
+     * Estimated number of candidates supplied by the strategy.
+     */
+    private final long candidates;
+
+    /**
+     * Estimated number of documents passing the other filter queries, or -1
+     * if unknown.
+     */
+    private final long filtered;
+
+    /**
+     * Number of documents in the index.
+     */
+    private final long documents;
+
+    /**
+     * Construct the plan.
+     *
+     * @param candidateStrategy    strategy supplying the candidates
+     * @param applyFiltersFirst    whether the other filter queries are
+     *                             applied first
+     * @param estimatedCandidates  estimated number of candidates
+     * @param estimatedFiltered    estimated number of documents passing the
+     *                             other filter queries, or -1 if unknown
+     * @param indexDocuments       number of documents in the index
+     */
+    public SpatialPlan(final String candidateStrategy,
+                       final boolean applyFiltersFirst,
+                       final long estimatedCandidates,
+                       final long estimatedFiltered,
+                       final long indexDocuments) {
+        strategy = candidateStrategy;
+        filterFirst = applyFiltersFirst;
+        candidates = estimatedCandidates;
+        filtered = estimatedFiltered;
+        documents = indexDocuments;
+    }
+
+    /**
+     * Get the strategy supplying the candidates.
+     *
+     * @return SCAN, BOUNDING_BOX or CELLS
+     */
+    public String getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Whether the other filter queries are applied before distances are
+     * computed.
+     *
+     * @return true to apply them first
+     */
+    public boolean isFilterFirst() {
+        return filterFirst;
+    }
+
+    /**
+     * Get the estimated number of candidates supplied by the strategy.
+     *
+     * @return number of documents
+     */
+    public long getEstimatedCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Get the estimated number of documents passing the other filter
+     * queries.
+     *
+     * @return number of documents, or -1 if unknown
+     */
+    public long getEstimatedFiltered() {
+        return filtered;
+    }
+
+    /**
+     * Describe the plan for logs and debug output.
+     *
+     * @return description
+     */
+    @Override
+    public String toString() {
+        final StringBuilder description = new StringBuilder(strategy);
+        if (filterFirst) {
+            description.append(", filter first");
+        }
+        description.append(" (~").append(candidates).append(" of ")
+            .append(documents).append(" documents are candidates");
+        if (filtered >= 0) {
+            description.append(", ~").append(filtered)
+                .append(" pass the filter queries");
+        }
+        return description.append(')').toString();
+    }
+}
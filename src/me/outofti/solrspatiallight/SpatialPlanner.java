@@ -0,0 +1,727 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Chooses how a distance filter finds its candidates, from estimates of how
+ * many documents each strategy would have it examine.
+ *
+ * The documents in a latitude or longitude range are counted from the
+ * document frequencies of the trie terms covering the range, which takes at
+ * most a few hundred term lookups; the bounding box is estimated from the
+ * two counts on the assumption that latitude and longitude are independent.
+ * The documents in geohash cells are counted from the cells' document
+ * frequencies. Document frequencies include deleted documents, so counts
+ * are scaled by the fraction of documents still live. The other filter
+ * queries are sized from the DocSet the searcher's filter cache holds for
+ * them, if any, or else the same way when they match a single term or a
+ * range of terms; other filter queries are not sized at all, since
+ * computing them just to plan would cost more than the plan saves.
+ *
+ * Each estimate is kept for the life of the searcher, so a range is only
+ * counted once, and the filter cache is looked up at most once for each
+ * filter query. The same search against the same searcher therefore always
+ * builds the same distance filter, which is a key in Solr's caches.
+ *
+ * A box that holds most of the index is cheaper to scan than to look up;
+ * filter queries that rule out most of the index are worth applying before
+ * distances are computed.
+ */
+public final class SpatialPlanner {
+    /**
+     * Fraction of the index beyond which candidates are scanned rather
+     * than looked up.
+     */
+    private static final double SCAN_FRACTION = 0.5;
+
+    /**
+     * Fraction of the index below which filter queries are applied first.
+     */
+    private static final double FILTER_FIRST_FRACTION = 0.5;
+
+    /**
+     * Number of terms beyond which a range is not counted term by term.
+     */
+    private static final int MAX_RANGE_TERMS = 4096;
+
+    /**
+     * Width of a trie-encoded double, in bits.
+     */
+    private static final int LONG_BITS = 64;
+
+    /**
+     * Span of latitudes, in degrees.
+     */
+    private static final double LAT_SPAN = 180.0;
+
+    /**
+     * Span of longitudes, in degrees.
+     */
+    private static final double LNG_SPAN = 360.0;
+
+    /**
+     * Width of a trie-encoded int or float, in bits.
+     */
+    private static final int INT_BITS = 32;
+
+    /**
+     * Greatest number of estimates kept for each searcher.
+     */
+    private static final int MAX_ESTIMATES = 1024;
+
+    /**
+     * Load factor of the maps of estimates.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * Name of Solr's filter cache in the core's info registry.
+     */
+    private static final String FILTER_CACHE = "filterCache";
+
+    /**
+     * Name of the registered searcher in the core's info registry.
+     */
+    private static final String SEARCHER = "searcher";
+
+    /**
+     * Estimates made so far, keyed by the top-level reader of the searcher
+     * they were made against, then by the filter query or range estimated.
+     */
+    private static final Map<IndexReader, Map<Object, Long>> ESTIMATES =
+        new WeakHashMap<IndexReader, Map<Object, Long>>();
+
+    /**
+     * Logger to which chosen plans are written at FINE level.
+     */
+    private static final Logger LOG =
+        Logger.getLogger(SpatialPlanner.class.getName());
+
+    /**
+     * Searcher against which plans are made.
+     */
+    private final SolrIndexSearcher searcher;
+
+    /**
+     * Top-level reader of the searcher.
+     */
+    private final IndexReader reader;
+
+    /**
+     * Schema of the index.
+     */
+    private final IndexSchema schema;
+
+    /**
+     * Info registry of the core, holding the registered searcher's filter
+     * cache.
+     */
+    private final Map<String, SolrInfoMBean> infoRegistry;
+
+    /**
+     * Estimates made so far against the searcher.
+     */
+    private final Map<Object, Long> estimates;
+
+    /**
+     * Construct the planner.
+     *
+     * @param indexSearcher searcher against which plans are made
+     * @param registry      info registry of the core
+     */
+    public SpatialPlanner(final SolrIndexSearcher indexSearcher,
+                          final Map<String, SolrInfoMBean> registry) {
+        searcher = indexSearcher;
+        reader = indexSearcher.getReader();
+        schema = indexSearcher.getSchema();
+        infoRegistry = registry;
+        estimates = getEstimates(reader);
+    }
+
+    /**
+     * Get the estimates made so far against a searcher.
+     *
+     * @param reader top-level reader of the searcher
+     *
+     * @return estimates, keyed by the filter query or range estimated; the
+     *         least recently used are forgotten once there are too many
+     */
+    private static Map<Object, Long> getEstimates(final IndexReader reader) {
+        synchronized (ESTIMATES) {
+            Map<Object, Long> forReader = ESTIMATES.get(reader);
+            if (forReader == null) {
+                forReader = new LinkedHashMap<Object, Long>(
+                        MAX_ESTIMATES, LOAD_FACTOR, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    protected boolean removeEldestEntry(
+                            final Map.Entry<Object, Long> eldest) {
+                        return size() > MAX_ESTIMATES;
+                    }
+                };
+                ESTIMATES.put(reader, forReader);
+            }
+            return forReader;
+        }
+    }
+
+    /**
+     * Get an estimate made earlier against the searcher.
+     *
+     * @param key filter query or range estimated
+     *
+     * @return estimate, or null if none was made
+     */
+    private Long getEstimate(final Object key) {
+        synchronized (estimates) {
+            return estimates.get(key);
+        }
+    }
+
+    /**
+     * Keep an estimate for the life of the searcher, unless another request
+     * made one first.
+     *
+     * @param key      filter query or range estimated
+     * @param estimate estimate
+     *
+     * @return the estimate kept
+     */
+    private long putEstimate(final Object key, final long estimate) {
+        synchronized (estimates) {
+            final Long earlier = estimates.get(key);
+            if (earlier != null) {
+                return earlier.longValue();
+            }
+            estimates.put(key, Long.valueOf(estimate));
+            return estimate;
+        }
+    }
+
+    /**
+     * Choose a plan for a distance filter.
+     *
+     * @param boxes          bounding boxes of the radius around each
+     *                       centerpoint, or null if there is no radius
+     * @param fields         fields from which locations are read
+     * @param cellField      field in which geohash cells are indexed, or
+     *                       null if there are none
+     * @param cells          cells covering the bounding boxes, or null
+     * @param filters        the search's other filter queries, or null
+     * @param strategy       strategy to use regardless of the estimates, or
+     *                       null to choose one
+     * @param filterFirst    whether to apply the filter queries first
+     *                       regardless of the estimates, or null to choose
+     *
+     * @throws IOException on index read error
+     * @return chosen plan
+     */
+    public SpatialPlan plan(final List<BoundingBox> boxes,
+                            final LocationFields fields,
+                            final String cellField,
+                            final List<String> cells,
+                            final List<Query> filters,
+                            final String strategy,
+                            final Boolean filterFirst) throws IOException {
+        final long documents = reader.numDocs();
+        String chosen = SpatialPlan.SCAN;
+        long candidates = documents;
+        if (boxes != null) {
+            chosen = SpatialPlan.BOUNDING_BOX;
+            candidates = estimateBoundingBoxes(boxes, fields);
+            if (cellField != null) {
+                final long inCells = estimateCells(cellField, cells);
+                if (inCells < candidates) {
+                    chosen = SpatialPlan.CELLS;
+                    candidates = inCells;
+                }
+            }
+            if (candidates > documents * SCAN_FRACTION) {
+                chosen = SpatialPlan.SCAN;
+                candidates = documents;
+            }
+        }
+        if (strategy != null) {
+            chosen = strategy;
+            if (SpatialPlan.SCAN.equals(strategy)) {
+                candidates = documents;
+            } else if (SpatialPlan.CELLS.equals(strategy)) {
+                candidates = estimateCells(cellField, cells);
+            } else {
+                candidates = estimateBoundingBoxes(boxes, fields);
+            }
+        }
+
+        long filtered = -1;
+        if (filters != null) {
+            filtered = estimateFilters(filters);
+        }
+        boolean first = filtered >= 0
+            && filtered < documents * FILTER_FIRST_FRACTION;
+        if (filterFirst != null) {
+            first = filterFirst.booleanValue();
+        }
+
+        final SpatialPlan plan =
+            new SpatialPlan(chosen, first, candidates, filtered, documents);
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Spatial plan: " + plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Estimate the number of documents in any of several bounding boxes.
+     *
+     * Documents in boxes that overlap are counted once for each box, up to
+     * the number of documents in the index.
+     *
+     * @param boxes  bounding boxes
+     * @param fields fields from which locations are read
+     *
+     * @throws IOException on index read error
+     * @return estimated number of documents
+     */
+    private long estimateBoundingBoxes(final List<BoundingBox> boxes,
+                                       final LocationFields fields)
+        throws IOException {
+        long count = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            count += estimateBoundingBox(boxes.get(i), fields);
+        }
+        return Math.min(count, reader.numDocs());
+    }
+
+    /**
+     * Estimate the number of documents in a bounding box.
+     *
+     * @param box    bounding box
+     * @param fields fields from which locations are read
+     *
+     * @throws IOException on index read error
+     * @return estimated number of documents
+     */
+    private long estimateBoundingBox(final BoundingBox box,
+                                     final LocationFields fields)
+        throws IOException {
+        final double maxDoc = reader.maxDoc();
+        if (maxDoc == 0) {
+            return 0;
+        }
+        double latFraction = (box.getMaxLat() - box.getMinLat()) / LAT_SPAN;
+        final long inLats = countRange(fields.getLatField(),
+                                       box.getMinLat(), box.getMaxLat());
+        if (inLats >= 0) {
+            latFraction = inLats / maxDoc;
+        }
+        double lngFraction = 0.0;
+        final double[][] ranges = box.getLngRanges();
+        if (box.isWholeWidth()) {
+            lngFraction = 1.0;
+        }
+        for (int i = 0; i < ranges.length; i++) {
+            final long inRange =
+                countRange(fields.getLngField(), ranges[i][0], ranges[i][1]);
+            if (inRange < 0) {
+                lngFraction += (ranges[i][1] - ranges[i][0]) / LNG_SPAN;
+            } else {
+                lngFraction += inRange / maxDoc;
+            }
+        }
+        return Math.round(Math.min(1.0, latFraction)
+                          * Math.min(1.0, lngFraction) * reader.numDocs());
+    }
+
+    /**
+     * Estimate the number of documents in geohash cells.
+     *
+     * @param cellField field in which the cells are indexed
+     * @param cells     cells
+     *
+     * @throws IOException on index read error
+     * @return estimated number of live documents
+     */
+    private long estimateCells(final String cellField,
+                               final List<String> cells) throws IOException {
+        final long maxDoc = reader.maxDoc();
+        if (maxDoc == 0) {
+            return 0;
+        }
+        long count = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            count += reader.docFreq(new Term(cellField, cells.get(i)));
+        }
+        return count * reader.numDocs() / maxDoc;
+    }
+
+    /**
+     * Estimate the number of documents passing every filter query, from the
+     * most selective of those that can be sized.
+     *
+     * @param filters filter queries
+     *
+     * @throws IOException on index read error
+     * @return estimated number of live documents matching the most
+     *         selective query, or -1 if none can be sized
+     */
+    private long estimateFilters(final List<Query> filters)
+        throws IOException {
+        long smallest = -1;
+        for (int i = 0; i < filters.size(); i++) {
+            final Query filter = filters.get(i);
+            final Long earlier = getEstimate(filter);
+            long count;
+            if (earlier != null) {
+                count = earlier.longValue();
+            } else {
+                count = putEstimate(filter, estimateFilter(filter));
+            }
+            if (count >= 0 && (smallest < 0 || count < smallest)) {
+                smallest = count;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Estimate the number of documents matching a filter query, from its
+     * DocSet if the searcher's filter cache holds one, or else from the
+     * document frequencies of the terms it matches.
+     *
+     * The filter cache is only read while the searcher is the core's
+     * registered searcher, whose cache is the one in the info registry; the
+     * lookup counts in the cache's statistics.
+     *
+     * @param filter filter query
+     *
+     * @throws IOException on index read error
+     * @return estimated number of live documents, or -1 if the query is
+     *         neither cached nor on a single term or range of terms
+     */
+    private long estimateFilter(final Query filter) throws IOException {
+        final Object cache = infoRegistry.get(FILTER_CACHE);
+        if (infoRegistry.get(SEARCHER) == searcher
+                && cache instanceof SolrCache) {
+            final Object docSet = ((SolrCache) cache).get(filter);
+            if (docSet instanceof DocSet) {
+                return ((DocSet) docSet).size();
+            }
+        }
+        long count = -1;
+        if (filter instanceof TermQuery) {
+            count = reader.docFreq(((TermQuery) filter).getTerm());
+        } else if (filter instanceof NumericRangeQuery) {
+            count = countNumericRange((NumericRangeQuery) filter);
+        } else if (filter instanceof TermRangeQuery) {
+            count = countTermRange((TermRangeQuery) filter);
+        }
+        if (count <= 0) {
+            return count;
+        }
+        return count * reader.numDocs() / reader.maxDoc();
+    }
+
+    /**
+     * Count the documents whose value of a trie field is in the range of a
+     * numeric range query.
+     *
+     * @param query numeric range query
+     *
+     * @throws IOException on index read error
+     * @return number of documents, or -1 if the field is not a trie field,
+     *         the range is unbounded or it takes too many terms to count
+     */
+    private long countNumericRange(final NumericRangeQuery query)
+        throws IOException {
+        final SchemaField field = schema.getFieldOrNull(query.getField());
+        if (field == null || !(field.getType() instanceof TrieField)
+                || query.getMin() == null || query.getMax() == null) {
+            return -1;
+        }
+        final int precisionStep =
+            ((TrieField) field.getType()).getPrecisionStep();
+        final RangeCounter counter = new RangeCounter(reader, field.getName());
+        final Number min = query.getMin();
+        final Number max = query.getMax();
+        if (min instanceof Integer || min instanceof Float) {
+            int minBits = min.intValue();
+            int maxBits = max.intValue();
+            if (min instanceof Float) {
+                minBits = NumericUtils.floatToSortableInt(min.floatValue());
+                maxBits = NumericUtils.floatToSortableInt(max.floatValue());
+            }
+            if (!query.includesMin()) {
+                if (minBits == Integer.MAX_VALUE) { return 0; }
+                minBits++;
+            }
+            if (!query.includesMax()) {
+                if (maxBits == Integer.MIN_VALUE) { return 0; }
+                maxBits--;
+            }
+            if (minBits > maxBits) { return 0; }
+            if (precisionStep > 0 && precisionStep < INT_BITS) {
+                NumericUtils.splitIntRange(counter.forInts(), precisionStep,
+                                           minBits, maxBits);
+            } else {
+                counter.addRange(NumericUtils.intToPrefixCoded(minBits),
+                                 NumericUtils.intToPrefixCoded(maxBits));
+            }
+            return counter.getCount();
+        }
+        long minBits = min.longValue();
+        long maxBits = max.longValue();
+        if (min instanceof Double) {
+            minBits = NumericUtils.doubleToSortableLong(min.doubleValue());
+            maxBits = NumericUtils.doubleToSortableLong(max.doubleValue());
+        }
+        if (!query.includesMin()) {
+            if (minBits == Long.MAX_VALUE) { return 0; }
+            minBits++;
+        }
+        if (!query.includesMax()) {
+            if (maxBits == Long.MIN_VALUE) { return 0; }
+            maxBits--;
+        }
+        if (minBits > maxBits) { return 0; }
+        return countLongRange(counter, precisionStep, minBits, maxBits);
+    }
+
+    /**
+     * Count the documents with a term in the range of a term range query.
+     *
+     * @param query term range query
+     *
+     * @throws IOException on index read error
+     * @return number of documents, or -1 if the query compares terms with
+     *         a collator or the range takes too many terms to count
+     */
+    private long countTermRange(final TermRangeQuery query)
+        throws IOException {
+        if (query.getCollator() != null) {
+            return -1;
+        }
+        final RangeCounter counter = new RangeCounter(reader, query.getField());
+        String lower = query.getLowerTerm();
+        if (lower == null) {
+            lower = "";
+        }
+        counter.addRange(lower, query.getUpperTerm(),
+                         query.includesLower(), query.includesUpper());
+        return counter.getCount();
+    }
+
+    /**
+     * Count the documents whose value of a trie double field is in a range,
+     * from the document frequencies of the trie terms covering the range.
+     *
+     * @param fieldName name of the field
+     * @param min       lower bound, inclusive
+     * @param max       upper bound, inclusive
+     *
+     * @throws IOException on index read error
+     * @return number of documents, or -1 if the field is not a trie double
+     *         field or the range takes too many terms to count
+     */
+    private long countRange(final String fieldName, final double min,
+                            final double max) throws IOException {
+        final List<Object> key = Arrays.asList(new Object[] {
+            fieldName, Double.valueOf(min), Double.valueOf(max),
+        });
+        final Long earlier = getEstimate(key);
+        if (earlier != null) {
+            return earlier.longValue();
+        }
+        final FieldType type = schema.getField(fieldName).getType();
+        if (!(type instanceof TrieField)
+                || ((TrieField) type).getType() != TrieField.TrieTypes.DOUBLE) {
+            return putEstimate(key, -1);
+        }
+        return putEstimate(key, countLongRange(
+                    new RangeCounter(reader, fieldName),
+                    ((TrieField) type).getPrecisionStep(),
+                    NumericUtils.doubleToSortableLong(min),
+                    NumericUtils.doubleToSortableLong(max)));
+    }
+
+    /**
+     * Count the documents whose value of a trie field encoded as a long is
+     * in a range.
+     *
+     * @param counter       counter of the field's terms
+     * @param precisionStep precision step of the field, or 0 if it is
+     *                      indexed at full precision only
+     * @param minBits       sortable lower bound, inclusive
+     * @param maxBits       sortable upper bound, inclusive
+     *
+     * @throws IOException on index read error
+     * @return number of documents, or -1 if the range takes too many terms
+     *         to count
+     */
+    private static long countLongRange(final RangeCounter counter,
+                                       final int precisionStep,
+                                       final long minBits,
+                                       final long maxBits)
+        throws IOException {
+        if (precisionStep > 0 && precisionStep < LONG_BITS) {
+            NumericUtils.splitLongRange(counter, precisionStep,
+                                        minBits, maxBits);
+        } else {
+            counter.addRange(NumericUtils.longToPrefixCoded(minBits),
+                             NumericUtils.longToPrefixCoded(maxBits));
+        }
+        return counter.getCount();
+    }
+
+    /**
+     * Sums the document frequencies of the trie terms in the ranges it is
+     * given.
+     */
+    private static final class RangeCounter
+        extends NumericUtils.LongRangeBuilder {
+        /**
+         * Reader whose terms are counted.
+         */
+        private final IndexReader reader;
+
+        /**
+         * Name of the field whose terms are counted.
+         */
+        private final String field;
+
+        /**
+         * Sum of the document frequencies so far.
+         */
+        private long count;
+
+        /**
+         * Number of terms counted so far.
+         */
+        private int terms;
+
+        /**
+         * Error reading the terms, if any.
+         */
+        private IOException failure;
+
+        /**
+         * Construct the counter.
+         *
+         * @param indexReader reader whose terms are counted
+         * @param fieldName   name of the field whose terms are counted
+         */
+        RangeCounter(final IndexReader indexReader, final String fieldName) {
+            reader = indexReader;
+            field = fieldName;
+        }
+
+        /**
+         * Count the terms between two prefix-coded values.
+         *
+         * @param minPrefixCoded lower bound, inclusive
+         * @param maxPrefixCoded upper bound, inclusive
+         */
+        @Override
+        public void addRange(final String minPrefixCoded,
+                             final String maxPrefixCoded) {
+            addRange(minPrefixCoded, maxPrefixCoded, true, true);
+        }
+
+        /**
+         * Count the terms in a range.
+         *
+         * @param lower        lower bound
+         * @param upper        upper bound, or null if there is none
+         * @param includeLower whether the lower bound is in the range
+         * @param includeUpper whether the upper bound is in the range
+         */
+        void addRange(final String lower, final String upper,
+                      final boolean includeLower,
+                      final boolean includeUpper) {
+            if (failure != null || terms > MAX_RANGE_TERMS) {
+                return;
+            }
+            try {
+                final TermEnum termEnum = reader.terms(new Term(field, lower));
+                try {
+                    do {
+                        final Term term = termEnum.term();
+                        if (term == null || !field.equals(term.field())) {
+                            break;
+                        }
+                        if (upper != null) {
+                            final int fromUpper = term.text().compareTo(upper);
+                            if (fromUpper > 0
+                                    || (fromUpper == 0 && !includeUpper)) {
+                                break;
+                            }
+                        }
+                        if (includeLower || !term.text().equals(lower)) {
+                            count += termEnum.docFreq();
+                            terms++;
+                        }
+                    } while (terms <= MAX_RANGE_TERMS && termEnum.next());
+                } finally {
+                    termEnum.close();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Get a builder counting the terms of int-encoded ranges with this
+         * counter.
+         *
+         * @return builder
+         */
+        NumericUtils.IntRangeBuilder forInts() {
+            return new NumericUtils.IntRangeBuilder() {
+                public void addRange(final String minPrefixCoded,
+                                     final String maxPrefixCoded) {
+                    RangeCounter.this.addRange(minPrefixCoded,
+                                               maxPrefixCoded);
+                }
+            };
+        }
+
+        /**
+         * Get the number of documents counted.
+         *
+         * @throws IOException if the terms could not be read
+         * @return number of documents, or -1 if there were too many terms
+         */
+        long getCount() throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            if (terms > MAX_RANGE_TERMS) {
+                return -1;
+            }
+            return count;
+        }
+    }
+}
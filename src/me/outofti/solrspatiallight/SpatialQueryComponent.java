@@ -6,22 +6,36 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryParser.ParseException;
 import org.apache.lucene.search.ConstantScoreQuery;
-import org.apache.lucene.search.DocIdSet;
-import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
-import org.apache.lucene.spatial.tier.DistanceFilter;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
+import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.SolrIndexReader;
 import org.apache.solr.search.SortSpec;
+import org.apache.solr.util.plugin.SolrCoreAware;
 
 /**
  * Solr support for spatial search.
@@ -49,6 +63,84 @@ import org.apache.solr.search.SortSpec;
  *       they will take precedence over the geographical sort.
  *     </td>
  *   </tr>
+ *   <tr>
+ *     <th>k</th>
+ *     <td>
+ *       Number of nearest documents to find, as an integer. The results are
+ *       filtered to the k documents matching the search that are nearest the
+ *       centerpoint (more if several are tied for the kth place) and sorted
+ *       by distance. If a radius is also given, only documents within it are
+ *       considered.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>filterFirst</th>
+ *     <td>
+ *       true or false: whether to apply the search's other filter queries
+ *       before computing distances, so that distances are only computed for
+ *       documents that pass them. This is worthwhile when the other filters
+ *       are selective. By default the planner decides, applying them first
+ *       if the filter cache shows them to rule out most of the index.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>cells</th>
+ *     <td>
+ *       Name of a field in which GeoHashUpdateProcessorFactory indexes the
+ *       geohash cells of each document. If given, the candidates for a
+ *       radius may be looked up by cell rather than by latitude and
+ *       longitude ranges, when the planner expects fewer of them. Documents
+ *       indexed without cells are then not found.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>plan</th>
+ *     <td>
+ *       scan, bbox or cells: how to find the documents whose distances are
+ *       computed for a radius -- every document, those in the bounding
+ *       box's latitude and longitude ranges, or those in the geohash cells
+ *       named by the "cells" param. By default the planner picks the one it
+ *       expects to examine the fewest documents, scanning if the box holds
+ *       most of the index. The chosen plan is logged at FINE level and shown
+ *       in the debug output.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>box</th>
+ *     <td>
+ *       South, west, north and east edges of a box, separated by commas, to
+ *       which to filter the search results. The box crosses the
+ *       antimeridian if its west edge is east of its east edge.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>polygon</th>
+ *     <td>
+ *       Vertices of a polygon, as lat,lng pairs separated by semicolons, to
+ *       which to filter the search results. Documents in the polygon's
+ *       bounding box are tested against a grid of cells classified as
+ *       inside, outside or on the boundary, so only those in boundary cells
+ *       are tested against the edges. The polygon may not cross the
+ *       antimeridian.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>vectors</th>
+ *     <td>
+ *       Name of a field in which UnitVectorUpdateProcessorFactory indexes the
+ *       unit vector of each document. If given, distances are filtered and
+ *       sorted by dot product with the centerpoint's vector, and only
+ *       converted to miles for the documents returned.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>quantize</th>
+ *     <td>
+ *       Number of decimal places to which to round the centerpoint, as an
+ *       integer. Searches whose centerpoints round to the same place share
+ *       entries in the filterCache and queryResultCache.
+ *     </td>
+ *   </tr>
  * </table>
  *
  * As the above indicates, if no local parameters are passed, the spatial
@@ -60,6 +152,16 @@ import org.apache.solr.search.SortSpec;
  * are not specified, they default to <strong>lat</strong> and
  * <strong>lng</strong>.
  *
+ * A search with a "box" or "polygon" may leave the centerpoint out, in which
+ * case locations are read from the <strong>lat</strong> and
+ * <strong>lng</strong> fields, and the results have no distances.
+ *
+ * Several centerpoints may be given, separated by semicolons, each
+ * optionally followed by <strong>~radius</strong> to give it a radius other
+ * than the "radius" local param. Documents are then filtered to those within
+ * the radius of any centerpoint and sorted by distance from the nearest.
+ * Nearest-neighbor searches take a single centerpoint.
+ *
  * The latitude and longitude fields <strong>must be of the type
  * TrieDoubleField</strong>.
  *
@@ -75,6 +177,20 @@ import org.apache.solr.search.SortSpec;
  *     </td>
  *   </tr>
  *   <tr>
+ *     <th>{!k=10}40.65,-73.95</th>
+ *     <td>
+ *       Filter results to the 10 documents nearest to &lt;40.65,-73.95&gt;,
+ *       sorted in ascending order of distance.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>{!radius=5.0}40.65,-73.95;40.75,-73.99~2.0</th>
+ *     <td>
+ *       Filter results to documents within 5 miles of &lt;40.65,-73.95&gt;
+ *       or 2 miles of &lt;40.75,-73.99&gt;.
+ *     </td>
+ *   </tr>
+ *   <tr>
  *     <th>{!sort=true}latitude:40.65,longitude:-73.95</th>
  *     <td>
  *       Sort results in ascending order of proximity to &lt;40.65,-73.95&gt;
@@ -84,18 +200,211 @@ import org.apache.solr.search.SortSpec;
  *   </tr>
  * </table>
  *
+ * Counts of the results within several distances of the centerpoint are
+ * returned under "distanceFacets" if the "spatial.facet.ranges" parameter
+ * gives the distances in miles, separated by commas; each count includes
+ * the documents within the smaller distances.
+ *
+ * For map views, the results in a viewport are counted by map tile and
+ * returned under "spatialGrid" if the "spatial.grid.box" parameter gives
+ * the viewport's south, west, north and east edges and "spatial.grid.zoom"
+ * the zoom level of the tiles. Each tile holding results is keyed
+ * "zoom/x/y" and has their count and mean latitude and longitude. The grid
+ * does not need a "spatial" parameter.
+ *
+ * Distributed searches are supported. Each shard filters and sorts by
+ * distance as above, returning its results with their distances as sort
+ * values, and the coordinator merges them in order of distance; it computes
+ * no distances itself. Distances, distance facets and grid tiles are merged
+ * from the shards' responses. A nearest-neighbor search returns the k
+ * nearest documents across all shards, without those tied for the kth place
+ * on other shards. Each shard skips the segments holding no points within
+ * the radius, judged from the range of their coordinates.
+ *
+ * If the component is given a "shardExtentTTL" argument in solrconfig.xml,
+ * the coordinator also asks the shards for a SpatialExtent summarizing
+ * where their points lie, and for that many seconds afterwards leaves the
+ * shards whose points are all outside the radius out of searches by
+ * radius.
+ *
+ * If the schema has a unique key, radius filters, distance sorts, distance
+ * facets, nearest-neighbor searches and returned distances read the
+ * locations updated through LocationUpdateHandler ahead of the indexed
+ * ones, and the extents returned to a coordinator cover them; see
+ * LocationOverlay.
+ *
+ * The component remembers the spatial searches it handles locally, so that
+ * SpatialWarmingListener can replay the most frequent of them against each
+ * new searcher before it is registered. Distributed searches, and the
+ * requests their coordinators send to each shard, are not remembered.
+ *
+ * The component accepts a "threads" argument in solrconfig.xml. If it is
+ * greater than one, distance filters are evaluated on a pool of that many
+ * threads, one task per index segment, with the same results as on the
+ * request thread.
  */
-public class SpatialQueryComponent extends SearchComponent {
+public class SpatialQueryComponent extends SearchComponent
+    implements SolrCoreAware {
     /**
      * Spatial query parameter name.
      */
-    private static final String PARAM = "spatial";
+    static final String PARAM = "spatial";
+
+    /**
+     * Distance facet ranges parameter name.
+     */
+    private static final String FACET_RANGES_PARAM = "spatial.facet.ranges";
+
+    /**
+     * Grid viewport parameter name.
+     */
+    private static final String GRID_BOX_PARAM = "spatial.grid.box";
+
+    /**
+     * Grid zoom level parameter name.
+     */
+    private static final String GRID_ZOOM_PARAM = "spatial.grid.zoom";
+
+    /**
+     * Key of the request context entry holding the spatial entries returned
+     * by the shards.
+     */
+    private static final String SHARD_ENTRIES = "shardSpatialEntries";
+
+    /**
+     * Param asking a shard to return the extent of its index.
+     */
+    private static final String EXTENT_PARAM = "spatial.extent";
 
     /**
      * Temporary.
      */
     private static final int DEFAULT_COUNT = 30;
 
+    /**
+     * Where the plugin's source lives.
+     */
+    private static final String SOURCE =
+        "http://github.com/outoftime/solr-spatial-light";
+
+    /**
+     * Pool on which distance filters are evaluated segment by segment, or
+     * null if they are evaluated on the request thread.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Counters and timings published through getStatistics().
+     */
+    private final SpatialStatistics statistics = new SpatialStatistics();
+
+    /**
+     * Spatial searches seen since the last new searcher, replayed by
+     * SpatialWarmingListener.
+     */
+    private final RecentSearches recentSearches = new RecentSearches();
+
+    /**
+     * Extents returned by the shards of distributed searches, or null if
+     * searches are not routed by extent.
+     */
+    private ShardExtents shardExtents;
+
+    /**
+     * Locations updated through LocationUpdateHandler since the documents
+     * were indexed, or null if the schema has no unique key.
+     */
+    private LocationOverlay locationOverlay;
+
+    /**
+     * Read the component's configuration.
+     *
+     * If a "threads" argument greater than one is given, distance filters
+     * are evaluated on a pool of that many threads shared by all requests,
+     * one task per index segment. If a "shardExtentTTL" argument is given,
+     * distributed searches are routed by the extents of the shards, each
+     * trusted for that many seconds.
+     *
+     * @param args configuration
+     */
+    @Override
+    public final void init(final NamedList args) {
+        super.init(args);
+        if (args == null) {
+            return;
+        }
+        if (args.get("threads") != null) {
+            final int threads =
+                Integer.parseInt(args.get("threads").toString());
+            if (threads > 1) {
+                executor = Executors.newFixedThreadPool(
+                        threads, new WorkerThreadFactory());
+            }
+        }
+        if (args.get("shardExtentTTL") != null) {
+            shardExtents = new ShardExtents(
+                    Long.parseLong(args.get("shardExtentTTL").toString()));
+        }
+    }
+
+    /**
+     * Create the location overlay if the schema has a unique key, and shut
+     * the worker pool down when the core is closed.
+     *
+     * @param core the core the component belongs to
+     */
+    public final void inform(final SolrCore core) {
+        if (core.getSchema().getUniqueKeyField() != null) {
+            locationOverlay = new LocationOverlay(
+                    core.getSchema().getUniqueKeyField());
+        }
+        if (executor != null) {
+            core.addCloseHook(new CloseHook() {
+                public void close(final SolrCore closing) {
+                    executor.shutdown();
+                }
+            });
+        }
+    }
+
+    /**
+     * Get the spatial searches seen since SpatialWarmingListener last
+     * replayed them.
+     *
+     * @return recent searches
+     */
+    public final RecentSearches getRecentSearches() {
+        return recentSearches;
+    }
+
+    /**
+     * Get the locations updated through LocationUpdateHandler.
+     *
+     * @return overlay, or null if the schema has no unique key
+     */
+    public final LocationOverlay getLocationOverlay() {
+        return locationOverlay;
+    }
+
+    /**
+     * Find the spatial component of a core.
+     *
+     * @param core core
+     *
+     * @return component, or null if the core has none
+     */
+    static SpatialQueryComponent forCore(final SolrCore core) {
+        for (final Iterator<SearchComponent> it =
+                core.getSearchComponents().values().iterator();
+                it.hasNext();) {
+            final SearchComponent component = it.next();
+            if (component instanceof SpatialQueryComponent) {
+                return (SpatialQueryComponent) component;
+            }
+        }
+        return null;
+    }
+
     /**
      * Prepare the response.
      *
@@ -106,113 +415,487 @@ public class SpatialQueryComponent extends SearchComponent {
     @Override
     public final void prepare(final ResponseBuilder rb) throws IOException {
         final String queryWithLocalParams = rb.req.getParams().get(PARAM);
-        if (queryWithLocalParams == null) { return; }
-
         try {
+            prepareGrid(rb);
+            if (queryWithLocalParams == null) { return; }
+
+            final long parseStart = System.nanoTime();
             final SolrParams localParams =
                 extractLocalParams(queryWithLocalParams, rb);
             final String qstr = localParams.get("v");
 
             final Spatial spatial = new Spatial(qstr, localParams,
                                                 rb.req.getParams(), rb.req);
-            final DistanceFilter filter = spatial.getDistanceFilter();
-            eagerLoadDistances(rb, filter);
-            addDistancesToContext(rb, filter);
-            attachDistanceFilter(rb, filter);
+            if (rb.shards != null) {
+                prepareDistributed(rb, spatial);
+                return;
+            }
+            // replayed, neither a distributed search nor a shard's part of
+            // one would search the new searcher, so neither is recorded
+            if (!isWarming(rb) && !rb.req.getParams().getBool(
+                        ShardParams.IS_SHARD, false)) {
+                recentSearches.record(rb.req.getParams());
+            }
+            spatial.setSearch(rb.getQuery(), rb.getFilters());
+            if (locationOverlay != null && !locationOverlay.isEmpty()) {
+                spatial.setLocationOverlay(locationOverlay);
+            }
+            if (!spatial.hasCenter()) {
+                attachFilter(rb, spatial.getShapeFilter());
+                recordParse(rb, spatial, System.nanoTime() - parseStart);
+                return;
+            }
+            final CoordinateDistanceFilter filter =
+                spatial.getDistanceFilter();
+            recordParse(rb, spatial, System.nanoTime() - parseStart);
+            if (rb.isDebug()) {
+                rb.addDebugInfo("spatialPlan", spatial.getPlan().toString());
+            }
+            addDistanceFilterToContext(rb, filter);
+            final SolrIndexReader reader = rb.req.getSearcher().getReader();
+            if (executor != null && reader.getLeafReaders().length > 1) {
+                filter.evaluateInParallel(
+                        new ParallelDistanceEvaluator(executor), reader);
+            }
+            attachFilter(rb, filter);
+            prepareDistanceFacets(rb);
 
-            if (localParams.getBool("sort", false)) {
-                attachSort(rb, spatial);
+            if (spatial.isSorted()) {
+                final long sortStart = System.nanoTime();
+                attachSort(rb, spatial.getSortField());
+                if (!isWarming(rb)) {
+                    statistics.getSort().record(
+                            System.nanoTime() - sortStart);
+                }
             }
         } catch (ParseException e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Prepare the coordinator of a distributed search.
+     *
+     * The shards filter by distance themselves, so the coordinator only
+     * leaves out the shards known to hold no points within the radius,
+     * sorts by the distances the shards return, and limits a
+     * nearest-neighbor search to the k nearest of the merged results.
+     *
+     * @param rb      the response builder
+     * @param spatial spatial query parser
+     *
+     * @throws ParseException if the query or distance facet ranges are
+     *                        malformed
+     */
+    private void prepareDistributed(final ResponseBuilder rb,
+                                    final Spatial spatial)
+        throws ParseException {
+        routeToShards(rb, spatial);
+        prepareDistanceFacets(rb);
+        if (!spatial.isSorted()) {
+            return;
+        }
+        attachSort(rb, Spatial.getMergeSortField());
+        final Integer k = spatial.getNearestCount();
+        if (k != null) {
+            final SortSpec sortSpec = rb.getSortSpec();
+            final int count = Math.max(0, Math.min(
+                        sortSpec.getCount(),
+                        k.intValue() - sortSpec.getOffset()));
+            rb.setSortSpec(new SortSpec(sortSpec.getSort(),
+                                        sortSpec.getOffset(), count));
+        }
+    }
+
+    /**
+     * Leave the shards whose extents show no points within the search's
+     * radius out of a distributed search.
+     *
+     * @param rb      the response builder
+     * @param spatial spatial query parser
+     *
+     * @throws ParseException if the query is malformed
+     */
+    private void routeToShards(final ResponseBuilder rb,
+                               final Spatial spatial)
+        throws ParseException {
+        if (shardExtents == null || !spatial.hasCenter()) {
+            return;
+        }
+        final BoundingBox[] boxes = spatial.getSearchBoxes();
+        if (boxes == null) {
+            return;
+        }
+        final LocationFields fields = spatial.getSearchFields();
+        final String[] routed = shardExtents.route(
+                rb.shards, fields.getLatField(), fields.getLngField(), boxes);
+        statistics.recordShardsSkipped(rb.shards.length - routed.length);
+        rb.shards = routed;
+    }
+
+    /**
+     * Ask the shards for the extents of their indexes along with their top
+     * results, if distributed searches are routed by extent.
+     *
+     * @param rb   the response builder
+     * @param who  the component that created the request
+     * @param sreq the request to the shards
+     */
+    @Override
+    public final void modifyRequest(final ResponseBuilder rb,
+                                    final SearchComponent who,
+                                    final ShardRequest sreq) {
+        if (shardExtents != null && rb.req.getParams().get(PARAM) != null
+                && (sreq.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) != 0) {
+            sreq.params.set(EXTENT_PARAM, true);
+        }
+    }
+
     /**
      * Execute the query.
      *
+     * A shard asked only for the IDs of its top results skips their
+     * distances, which the coordinator asks for along with their fields.
+     *
      * @param rb the response builder
+     *
+     * @throws IOException on index read error
      */
     @Override
-    public final void process(final ResponseBuilder rb) {
-        addDistancesToResponse(rb);
+    public final void process(final ResponseBuilder rb) throws IOException {
+        final long responseStart = System.nanoTime();
+        final SolrParams params = rb.req.getParams();
+        if (!params.getBool(ShardParams.IS_SHARD, false)
+                || params.get(ShardParams.IDS) != null) {
+            addDistancesToResponse(rb);
+        }
+        if (params.getBool(EXTENT_PARAM, false)) {
+            addExtentToResponse(rb);
+        }
+        addDistanceFacetsToResponse(rb);
+        addGridToResponse(rb);
+        final CoordinateDistanceFilter filter = (CoordinateDistanceFilter)
+            rb.req.getContext().get("distanceFilter");
+        if (filter != null) {
+            if (!isWarming(rb)) {
+                recordResponse(filter, System.nanoTime() - responseStart);
+            }
+            filter.clearEvaluation();
+        }
     }
 
     /**
-     * Eager load distances in filter.
+     * Collect the spatial entries of the shards' responses.
      *
-     * This ensures that even if the filter query is cached, distances are
-     * available for sorting and in the response.
+     * Distance facets and grid tiles are counted by the requests for the
+     * shards' top results, and distances returned by the requests for their
+     * fields.
      *
-     * @param rb response builder
-     * @param filter distance filter
+     * @param rb   the response builder
+     * @param sreq the request to the shards, with their responses
+     */
+    @Override
+    public final void handleResponses(final ResponseBuilder rb,
+                                      final ShardRequest sreq) {
+        final Map<Object, Object> context = rb.req.getContext();
+        ShardEntries entries = (ShardEntries) context.get(SHARD_ENTRIES);
+        if (entries == null) {
+            entries = new ShardEntries();
+            context.put(SHARD_ENTRIES, entries);
+        }
+        for (final Iterator<ShardResponse> it = sreq.responses.iterator();
+                it.hasNext();) {
+            final ShardResponse srsp = it.next();
+            if (srsp.getSolrResponse() == null) {
+                continue;
+            }
+            final NamedList<?> response =
+                srsp.getSolrResponse().getResponse();
+            final NamedList<?> extent =
+                (NamedList<?>) response.get("spatialExtent");
+            if (shardExtents != null && extent != null) {
+                shardExtents.put(srsp.getShard(),
+                                 SpatialExtent.fromNamedList(extent));
+            }
+            if ((sreq.purpose & ShardRequest.PURPOSE_GET_TOP_IDS) != 0) {
+                entries.addFacets(
+                        (NamedList<?>) response.get("distanceFacets"));
+                entries.addGrid((NamedList<?>) response.get("spatialGrid"));
+            }
+            if ((sreq.purpose & ShardRequest.PURPOSE_GET_FIELDS) != 0) {
+                entries.addDistances((Map<?, ?>) response.get("distances"));
+            }
+        }
+    }
+
+    /**
+     * Add the spatial entries merged from the shards to the response.
      *
-     * @throws IOException on index read error
+     * @param rb the response builder
      */
-    private void eagerLoadDistances(final ResponseBuilder rb,
-            final DistanceFilter filter) throws IOException {
-        DocIdSet docIdSet =
-            filter.getDocIdSet(rb.req.getSearcher().getReader());
-        for (final DocIdSetIterator i = docIdSet.iterator();
-                i.nextDoc() != DocIdSetIterator.NO_MORE_DOCS;) { }
+    @Override
+    public final void finishStage(final ResponseBuilder rb) {
+        final Map<Object, Object> context = rb.req.getContext();
+        final ShardEntries entries =
+            (ShardEntries) context.get(SHARD_ENTRIES);
+        if (entries == null) {
+            return;
+        }
+        if (rb.stage == ResponseBuilder.STAGE_EXECUTE_QUERY) {
+            final DistanceFacets facets =
+                (DistanceFacets) context.get("distanceFacets");
+            if (facets != null && !entries.getFacets().isEmpty()) {
+                rb.rsp.add("distanceFacets",
+                           facets.merge(entries.getFacets()));
+            }
+            final SpatialGrid grid = (SpatialGrid) context.get("spatialGrid");
+            if (grid != null && !entries.getGrids().isEmpty()) {
+                rb.rsp.add("spatialGrid", grid.merge(entries.getGrids()));
+            }
+        } else if (rb.stage == ResponseBuilder.STAGE_GET_FIELDS) {
+            if (entries.getDistances() != null) {
+                rb.rsp.add("distances", entries.getDistances());
+            }
+        }
     }
 
     /**
-     * Attach distances to response.
+     * Whether a request is a search replayed by SpatialWarmingListener,
+     * which is neither recorded as a recent search nor counted in the
+     * statistics.
+     *
+     * @param rb the response builder
+     *
+     * @return true if the request warms a new searcher
+     */
+    private static boolean isWarming(final ResponseBuilder rb) {
+        return rb.req.getContext().get(SpatialWarmingListener.WARMING)
+            != null;
+    }
+
+    /**
+     * Record the work done by a search's distance filter, and the time
+     * taken to add its spatial entries to the response.
+     *
+     * @param filter        the search's distance filter
+     * @param responseNanos time taken by the response, in nanoseconds
+     */
+    private void recordResponse(final CoordinateDistanceFilter filter,
+                                final long responseNanos) {
+        statistics.getResponse().record(responseNanos);
+        if (filter.getCandidatesExamined() > 0) {
+            statistics.getEvaluation().record(filter.getEvaluationNanos());
+        }
+        statistics.recordSearch(filter.getCandidatesExamined(),
+                                filter.getCandidatesAccepted());
+        statistics.recordSegmentsSkipped(filter.getSegmentsSkipped());
+    }
+
+    /**
+     * Record the time taken to build a distance filter, split into its
+     * phases, unless the search warms a new searcher.
+     *
+     * @param rb      the response builder
+     * @param spatial spatial query parser that built the filter
+     * @param nanos   total time taken, in nanoseconds
+     */
+    private void recordParse(final ResponseBuilder rb, final Spatial spatial,
+                             final long nanos) {
+        if (isWarming(rb)) {
+            return;
+        }
+        final long candidateNanos = spatial.getCandidateFilterNanos();
+        final long nearestNanos = spatial.getNearestNanos();
+        statistics.getParse().record(nanos - candidateNanos - nearestNanos);
+        if (candidateNanos > 0) {
+            statistics.getBoundingBox().record(candidateNanos);
+        }
+        if (nearestNanos > 0) {
+            statistics.getNearest().record(nearestNanos);
+        }
+    }
+
+    /**
+     * Make the distance filter available to the response.
      *
      * @param rb response builder
      * @param filter distance filter
      */
-    private void addDistancesToContext(final ResponseBuilder rb,
-                                       final DistanceFilter filter) {
-        final Map<Integer, Double> distances =
-            filter.getDistances();
-        rb.req.getContext().put("distances", distances);
+    private void addDistanceFilterToContext(final ResponseBuilder rb,
+            final CoordinateDistanceFilter filter) {
+        rb.req.getContext().put("distanceFilter", filter);
     }
 
     /**
      * Add distance map to response.
      *
-     * Pulls the map of all documents to distances out of the context,
-     * and creates a map of primary key to distance only for actual results of
-     * search. Puts that map in the result object.
+     * Pulls the distance filter out of the context, and creates a map of
+     * primary key to distance only for actual results of search, using the
+     * distances recorded by the filter if it kept any, and computing them
+     * otherwise. Puts that map in the result object.
+     *
+     * Only the unique key field of each result is read from the stored
+     * fields; reading stops as soon as it is found.
      *
      * @param rb response builder
+     *
+     * @throws IOException on index read error
      */
-    private void addDistancesToResponse(final ResponseBuilder rb) {
-        final Map<?, ?> distances =
-            (Map<?, ?>) rb.req.getContext().get("distances");
-        if (distances != null) {
+    private void addDistancesToResponse(final ResponseBuilder rb)
+        throws IOException {
+        final CoordinateDistanceFilter filter = (CoordinateDistanceFilter)
+            rb.req.getContext().get("distanceFilter");
+        if (filter != null) {
+            final DistanceTable distances = filter.getDistanceTable();
+            final SolrIndexReader reader = rb.req.getSearcher().getReader();
             final Map<String, Object> distancesById =
                 new HashMap<String, Object>();
-            final String uniqueKeyFieldName =
-                rb.req.getSchema().getUniqueKeyField().getName();
+            final SchemaField uniqueKeyField =
+                rb.req.getSchema().getUniqueKeyField();
+            final FieldSelector selector =
+                new UniqueKeySelector(uniqueKeyField.getName());
             for (final Iterator<Integer> it =
                     rb.getResults().docList.iterator(); it.hasNext();) {
-                final Integer i = it.next();
-                try {
-                    final Document doc = rb.req.getSearcher().doc(i);
-                    distancesById.put(
-                            doc.getField(uniqueKeyFieldName).stringValue(),
-                            distances.get(i));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                final int i = it.next();
+                double distance;
+                if (distances != null && distances.contains(i)) {
+                    distance = distances.get(i);
+                } else {
+                    distance = filter.getDistance(reader, i);
                 }
+                final Document doc = reader.document(i, selector);
+                distancesById.put(
+                        uniqueKeyField.getType().toExternal(
+                            doc.getFieldable(uniqueKeyField.getName())),
+                        distance);
             }
             rb.rsp.add("distances", distancesById);
         }
     }
 
     /**
-     * Attach the distance filter to the query.
+     * Add the extent of the index, for the fields searched and including any
+     * overlaid locations, to the response.
+     *
+     * @param rb response builder
+     *
+     * @throws IOException on index read error
+     */
+    private void addExtentToResponse(final ResponseBuilder rb)
+        throws IOException {
+        final CoordinateDistanceFilter filter = (CoordinateDistanceFilter)
+            rb.req.getContext().get("distanceFilter");
+        if (filter != null) {
+            final LocationFields fields = filter.getLocationFields();
+            final IndexReader reader = rb.req.getSearcher().getReader();
+            rb.rsp.add("spatialExtent", SpatialExtent.get(
+                        reader, fields.getLatField(), fields.getLngField())
+                    .withOverlay(reader, fields).toNamedList());
+        }
+    }
+
+    /**
+     * Parse the distance facet ranges, if any are requested, and ask for the
+     * result set from which they are counted.
+     *
+     * @param rb response builder
+     *
+     * @throws ParseException if the ranges are malformed
+     */
+    private void prepareDistanceFacets(final ResponseBuilder rb)
+        throws ParseException {
+        final String ranges = rb.req.getParams().get(FACET_RANGES_PARAM);
+        if (ranges != null) {
+            rb.req.getContext().put("distanceFacets",
+                                    DistanceFacets.parse(ranges));
+            rb.setNeedDocSet(true);
+        }
+    }
+
+    /**
+     * Add distance facet counts to the response.
+     *
+     * Counts the whole result set, not just the page returned, in a single
+     * pass over the coordinate arrays.
+     *
+     * @param rb response builder
+     *
+     * @throws IOException on index read error
+     */
+    private void addDistanceFacetsToResponse(final ResponseBuilder rb)
+        throws IOException {
+        final DistanceFacets facets = (DistanceFacets)
+            rb.req.getContext().get("distanceFacets");
+        if (facets != null && rb.getResults().docSet != null) {
+            final CoordinateDistanceFilter filter = (CoordinateDistanceFilter)
+                rb.req.getContext().get("distanceFilter");
+            rb.rsp.add("distanceFacets", facets.count(
+                        rb.req.getSearcher().getReader(),
+                        rb.getResults().docSet, filter));
+        }
+    }
+
+    /**
+     * Parse the grid viewport and zoom level, if a grid is requested, and
+     * ask for the result set from which it is counted.
+     *
+     * @param rb response builder
+     *
+     * @throws ParseException if the viewport or zoom level is malformed
+     */
+    private void prepareGrid(final ResponseBuilder rb) throws ParseException {
+        final SolrParams params = rb.req.getParams();
+        final String box = params.get(GRID_BOX_PARAM);
+        if (box != null) {
+            final Integer zoom = params.getInt(GRID_ZOOM_PARAM);
+            if (zoom == null) {
+                throw new ParseException("Spatial grids need a zoom level");
+            }
+            rb.req.getContext().put("spatialGrid",
+                                    SpatialGrid.parse(box, zoom.intValue()));
+            rb.setNeedDocSet(true);
+        }
+    }
+
+    /**
+     * Add the documents counted by map tile to the response.
+     *
+     * Locations are read from the fields of the spatial query, or from
+     * "lat" and "lng" if there is none.
+     *
+     * @param rb response builder
+     *
+     * @throws IOException on index read error
+     */
+    private void addGridToResponse(final ResponseBuilder rb)
+        throws IOException {
+        final SpatialGrid grid = (SpatialGrid)
+            rb.req.getContext().get("spatialGrid");
+        if (grid == null || rb.getResults().docSet == null) {
+            return;
+        }
+        final CoordinateDistanceFilter filter = (CoordinateDistanceFilter)
+            rb.req.getContext().get("distanceFilter");
+        String latField = Spatial.DEFAULT_LAT_FIELD;
+        String lngField = Spatial.DEFAULT_LNG_FIELD;
+        if (filter != null) {
+            latField = filter.getLocationFields().getLatField();
+            lngField = filter.getLocationFields().getLngField();
+        }
+        rb.rsp.add("spatialGrid", grid.count(
+                    rb.req.getSearcher().getReader(),
+                    rb.getResults().docSet, latField, lngField));
+    }
+
+    /**
+     * Attach the distance or shape filter to the query.
      *
      * @param rb      response builder
-     * @param filter  distance filter
+     * @param filter  distance or shape filter
      *
      * @throws ParseException if query is malformed
      */
-    private void attachDistanceFilter(final ResponseBuilder rb,
-                                      final DistanceFilter filter)
+    private void attachFilter(final ResponseBuilder rb, final Filter filter)
         throws ParseException {
         List<Query> filters = rb.getFilters();
         if (filters == null) {
@@ -228,17 +911,13 @@ public class SpatialQueryComponent extends SearchComponent {
      * If no search is specified, then distance sort becomes the sole sort. If
      * a search is specified, then distance sort is attached as the *last* sort.
      *
-     * @param rb      response builder
-     * @param spatial spatial query parser
-     *
-     * @throws ParseException if query is malformed
+     * @param rb        response builder
+     * @param sortField distance sort
      */
     private void attachSort(final ResponseBuilder rb,
-                            final Spatial spatial)
-        throws ParseException {
+                            final SortField sortField) {
         final SortSpec sortSpec = rb.getSortSpec();
         final Sort sort = sortSpec.getSort();
-        final SortField sortField = spatial.getSortField();
 
         if (sort == null) {
             sortSpec.setSort(new Sort(sortField));
@@ -280,6 +959,162 @@ public class SpatialQueryComponent extends SearchComponent {
         return modifiableParams;
     }
 
+    /**
+     * Factory for the daemon threads of the worker pool.
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        /**
+         * Number of threads created so far.
+         */
+        private int created;
+
+        /**
+         * Create a worker thread.
+         *
+         * @param task task the thread runs
+         *
+         * @return worker thread
+         */
+        public synchronized Thread newThread(final Runnable task) {
+            final Thread thread =
+                new Thread(task, "spatial-worker-" + (++created));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Spatial entries of the shards' responses, kept in the request context
+     * until they are merged.
+     */
+    private static final class ShardEntries {
+        /**
+         * Distance facets counted by each shard.
+         */
+        private final List<NamedList<?>> facets =
+            new ArrayList<NamedList<?>>();
+
+        /**
+         * Grid tiles counted by each shard.
+         */
+        private final List<NamedList<?>> grids =
+            new ArrayList<NamedList<?>>();
+
+        /**
+         * Distances of the shards' documents, keyed by unique key, or null
+         * if no shard has returned any.
+         */
+        private Map<Object, Object> distances;
+
+        /**
+         * Keep the distance facets of a shard.
+         *
+         * @param shardFacets facets, or null if the shard returned none
+         */
+        public void addFacets(final NamedList<?> shardFacets) {
+            if (shardFacets != null) {
+                facets.add(shardFacets);
+            }
+        }
+
+        /**
+         * Keep the grid tiles of a shard.
+         *
+         * @param shardGrid tiles, or null if the shard returned none
+         */
+        public void addGrid(final NamedList<?> shardGrid) {
+            if (shardGrid != null) {
+                grids.add(shardGrid);
+            }
+        }
+
+        /**
+         * Keep the distances of a shard's documents.
+         *
+         * @param shardDistances distances keyed by unique key, or null if
+         *                       the shard returned none
+         */
+        public void addDistances(final Map<?, ?> shardDistances) {
+            if (shardDistances == null) {
+                return;
+            }
+            if (distances == null) {
+                distances = new LinkedHashMap<Object, Object>();
+            }
+            for (final Iterator<? extends Map.Entry<?, ?>> it =
+                    shardDistances.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<?, ?> entry = it.next();
+                distances.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        /**
+         * Get the distance facets of each shard.
+         *
+         * @return facets, in the order the shards responded
+         */
+        public List<NamedList<?>> getFacets() {
+            return facets;
+        }
+
+        /**
+         * Get the grid tiles of each shard.
+         *
+         * @return tiles, in the order the shards responded
+         */
+        public List<NamedList<?>> getGrids() {
+            return grids;
+        }
+
+        /**
+         * Get the distances of the shards' documents.
+         *
+         * @return distances keyed by unique key, or null if no shard
+         *         returned any
+         */
+        public Map<Object, Object> getDistances() {
+            return distances;
+        }
+    }
+
+    /**
+     * Field selector loading only the unique key field.
+     */
+    private static final class UniqueKeySelector implements FieldSelector {
+        /**
+         * Serialization version.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Name of the unique key field.
+         */
+        private final String uniqueKeyFieldName;
+
+        /**
+         * Construct the selector.
+         *
+         * @param fieldName name of the unique key field
+         */
+        UniqueKeySelector(final String fieldName) {
+            uniqueKeyFieldName = fieldName;
+        }
+
+        /**
+         * Load the unique key field and stop; skip all others.
+         *
+         * @param fieldName name of a stored field
+         *
+         * @return whether and how to load the field
+         */
+        public FieldSelectorResult accept(final String fieldName) {
+            if (uniqueKeyFieldName.equals(fieldName)) {
+                return FieldSelectorResult.LOAD_AND_BREAK;
+            }
+            return FieldSelectorResult.NO_LOAD;
+        }
+    }
+
     /////////////////////////
     //    SolrInfoMBean    //
     /////////////////////////
@@ -299,7 +1134,7 @@ public class SpatialQueryComponent extends SearchComponent {
      * @return source
      */
     public final String getSource() {
-        return ""; // TODO
+        return SOURCE;
     }
 
     /**
@@ -308,15 +1143,48 @@ public class SpatialQueryComponent extends SearchComponent {
      * @return source ID
      */
     public final String getSourceId() {
-        return ""; // TODO
+        return "solr-spatial-light " + getVersion();
     }
 
     /**
-     * Revision.
+     * Revision, as recorded in the manifest of the plugin's jar.
      *
      * @return revision number
      */
     public final String getVersion() {
-        return ""; // TODO
+        final String version =
+            SpatialQueryComponent.class.getPackage()
+            .getImplementationVersion();
+        if (version == null) {
+            return "unknown";
+        }
+        return version;
+    }
+
+    /**
+     * Counters and timings of the spatial searches handled so far.
+     *
+     * Includes the number of searches, the number of candidate documents
+     * whose distances were computed and how many of them were within the
+     * radius, and for each phase of a search the number of times it ran and
+     * its average, maximum and percentile times in milliseconds, along with
+     * the hits and misses of the per-segment result cache and the numbers of
+     * segments and shards skipped as holding no points in range, and the
+     * number of documents whose locations are overlaid.
+     *
+     * @return statistics
+     */
+    @Override
+    public final NamedList getStatistics() {
+        final NamedList<Object> stats = statistics.toNamedList();
+        stats.add("segmentResultHits",
+                  Long.valueOf(SegmentResultCache.DEFAULT.getHits()));
+        stats.add("segmentResultMisses",
+                  Long.valueOf(SegmentResultCache.DEFAULT.getMisses()));
+        if (locationOverlay != null) {
+            stats.add("overlaidLocations",
+                      Integer.valueOf(locationOverlay.size()));
+        }
+        return stats;
     }
 }
@@ -0,0 +1,201 @@
+package me.outofti.solrspatiallight;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+/**
+ * Counters and timings of the spatial searches handled by a
+ * SpatialQueryComponent, as shown on the admin statistics page and over
+ * JMX.
+ *
+ * Each phase of a search has its own histogram: parsing the spatial param,
+ * building the bounding box or cell filter, finding the radius of a
+ * nearest-neighbor search, evaluating distances, attaching the distance sort
+ * and adding distances to the response. Everything is recorded without
+ * locking, so the counters are cheap enough to keep on all the time.
+ */
+public final class SpatialStatistics {
+    /**
+     * Number of spatial searches.
+     */
+    private final AtomicLong searches = new AtomicLong();
+
+    /**
+     * Number of documents whose distances were computed.
+     */
+    private final AtomicLong candidatesExamined = new AtomicLong();
+
+    /**
+     * Number of documents found within the radius.
+     */
+    private final AtomicLong candidatesAccepted = new AtomicLong();
+
+    /**
+     * Number of segments skipped because none of their documents could be
+     * in range.
+     */
+    private final AtomicLong segmentsSkipped = new AtomicLong();
+
+    /**
+     * Number of shards left out of distributed searches because none of
+     * their points could be in range.
+     */
+    private final AtomicLong shardsSkipped = new AtomicLong();
+
+    /**
+     * Time spent parsing the spatial param, excluding the other phases of
+     * building the filter.
+     */
+    private final LatencyHistogram parse = new LatencyHistogram();
+
+    /**
+     * Time spent building the bounding box or cell filter.
+     */
+    private final LatencyHistogram boundingBox = new LatencyHistogram();
+
+    /**
+     * Time spent finding the radius of nearest-neighbor searches.
+     */
+    private final LatencyHistogram nearest = new LatencyHistogram();
+
+    /**
+     * Time spent computing distances while filtering.
+     */
+    private final LatencyHistogram evaluation = new LatencyHistogram();
+
+    /**
+     * Time spent attaching the distance sort.
+     */
+    private final LatencyHistogram sort = new LatencyHistogram();
+
+    /**
+     * Time spent adding distances to the response.
+     */
+    private final LatencyHistogram response = new LatencyHistogram();
+
+    /**
+     * Record a search.
+     *
+     * @param examined number of documents whose distances were computed
+     * @param accepted number of those found within the radius
+     */
+    public void recordSearch(final long examined, final long accepted) {
+        searches.incrementAndGet();
+        candidatesExamined.addAndGet(examined);
+        candidatesAccepted.addAndGet(accepted);
+    }
+
+    /**
+     * Record segments skipped by a search.
+     *
+     * @param skipped number of segments whose documents were all out of
+     *                range
+     */
+    public void recordSegmentsSkipped(final long skipped) {
+        segmentsSkipped.addAndGet(skipped);
+    }
+
+    /**
+     * Record the shards left out of a distributed search.
+     *
+     * @param skipped number of shards whose points were all out of range
+     */
+    public void recordShardsSkipped(final long skipped) {
+        shardsSkipped.addAndGet(skipped);
+    }
+
+    /**
+     * Get the histogram of parse times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getParse() {
+        return parse;
+    }
+
+    /**
+     * Get the histogram of bounding box and cell filter build times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getBoundingBox() {
+        return boundingBox;
+    }
+
+    /**
+     * Get the histogram of nearest-neighbor radius search times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getNearest() {
+        return nearest;
+    }
+
+    /**
+     * Get the histogram of distance evaluation times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getEvaluation() {
+        return evaluation;
+    }
+
+    /**
+     * Get the histogram of sort attachment times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getSort() {
+        return sort;
+    }
+
+    /**
+     * Get the histogram of response building times.
+     *
+     * @return histogram
+     */
+    public LatencyHistogram getResponse() {
+        return response;
+    }
+
+    /**
+     * Get the statistics in the form SolrInfoMBean publishes them.
+     *
+     * @return statistics
+     */
+    public NamedList<Object> toNamedList() {
+        final NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        final long searchCount = searches.get();
+        final long examined = candidatesExamined.get();
+        final long accepted = candidatesAccepted.get();
+        stats.add("searches", searchCount);
+        stats.add("candidatesExamined", examined);
+        stats.add("candidatesAccepted", accepted);
+        double examinedPerSearch = 0.0;
+        if (searchCount > 0) {
+            examinedPerSearch = (double) examined / searchCount;
+        }
+        stats.add("avgCandidatesExaminedPerSearch", examinedPerSearch);
+        double acceptedPerSearch = 0.0;
+        if (searchCount > 0) {
+            acceptedPerSearch = (double) accepted / searchCount;
+        }
+        stats.add("avgCandidatesAcceptedPerSearch", acceptedPerSearch);
+        double acceptanceRatio = 0.0;
+        if (examined > 0) {
+            acceptanceRatio = (double) accepted / examined;
+        }
+        stats.add("acceptanceRatio", acceptanceRatio);
+        stats.add("segmentsSkipped", segmentsSkipped.get());
+        stats.add("shardsSkipped", shardsSkipped.get());
+        parse.addStatistics(stats, "parse");
+        boundingBox.addStatistics(stats, "boundingBox");
+        nearest.addStatistics(stats, "nearest");
+        evaluation.addStatistics(stats, "evaluation");
+        sort.addStatistics(stats, "sort");
+        response.addStatistics(stats, "response");
+        return stats;
+    }
+}
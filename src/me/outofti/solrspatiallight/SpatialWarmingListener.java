@@ -0,0 +1,272 @@
+package me.outofti.solrspatiallight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrEventListener;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Listener warming a new searcher's spatial caches before it is registered.
+ *
+ * Registered for the "firstSearcher" and "newSearcher" events in
+ * solrconfig.xml, the listener loads the coordinate arrays of every segment
+ * of the new searcher for the configured fields, so the first spatial
+ * search after a commit doesn't pay for reading them out of the index.
+ * Segments carried over from the old searcher keep their arrays, so only
+ * new segments are read. The SpatialExtent returned to the coordinators of
+ * distributed searches is then computed for each pair of latitude and
+ * longitude fields.
+ *
+ * It then replays spatial searches against the new searcher through the
+ * request handler, filling the filterCache, queryResultCache and nearest
+ * neighbor cache as a live request would. The searches replayed are those
+ * listed in the configuration, followed by the ones SpatialQueryComponent
+ * saw most often since the last new searcher. The following arguments are
+ * accepted:
+ *
+ * <table>
+ *   <tr>
+ *     <th>fields</th>
+ *     <td>
+ *       Array of TrieDoubleField names whose coordinate arrays are loaded,
+ *       each entry optionally naming several fields separated by commas, as
+ *       in "lat,lng"; entries naming two fields are taken as a latitude and
+ *       longitude pair. Defaults to <strong>lat</strong> and
+ *       <strong>lng</strong>.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>queries</th>
+ *     <td>
+ *       Array of lists of request params, as taken by QuerySenderListener,
+ *       each replayed on every new searcher.
+ *     </td>
+ *   </tr>
+ *   <tr>
+ *     <th>recentSearches</th>
+ *     <td>
+ *       Number of the most frequent recent spatial searches to replay. By
+ *       default none are.
+ *     </td>
+ *   </tr>
+ * </table>
+ *
+ * Failures while warming are logged and otherwise ignored, so a bad search
+ * never keeps a searcher from being registered.
+ */
+public final class SpatialWarmingListener implements SolrEventListener {
+    /**
+     * Key of the request context entry marking warming searches, which are
+     * not themselves recorded as recent searches.
+     */
+    static final String WARMING = "spatialWarming";
+
+    /**
+     * Logger to which warming failures and times are written.
+     */
+    private static final Logger LOG =
+        Logger.getLogger(SpatialWarmingListener.class.getName());
+
+    /**
+     * Nanoseconds per millisecond.
+     */
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    /**
+     * Core whose searchers are warmed.
+     */
+    private final SolrCore core;
+
+    /**
+     * Names of the fields whose coordinate arrays are loaded.
+     */
+    private final List<String> fields = new ArrayList<String>();
+
+    /**
+     * Latitude and longitude field pairs whose extents are computed.
+     */
+    private final List<String[]> fieldPairs = new ArrayList<String[]>();
+
+    /**
+     * Params of the configured searches.
+     */
+    private final List<SolrParams> queries = new ArrayList<SolrParams>();
+
+    /**
+     * Number of recent searches to replay.
+     */
+    private int recentSearches;
+
+    /**
+     * Construct the listener; Solr passes the core to listeners with a
+     * constructor taking one.
+     *
+     * @param solrCore core whose searchers are warmed
+     */
+    public SpatialWarmingListener(final SolrCore solrCore) {
+        core = solrCore;
+    }
+
+    /**
+     * Read the listener's configuration.
+     *
+     * @param args configuration
+     */
+    public void init(final NamedList args) {
+        final List<?> fieldArgs = (List<?>) args.get("fields");
+        if (fieldArgs == null) {
+            fields.add(Spatial.DEFAULT_LAT_FIELD);
+            fields.add(Spatial.DEFAULT_LNG_FIELD);
+            fieldPairs.add(new String[] {
+                Spatial.DEFAULT_LAT_FIELD, Spatial.DEFAULT_LNG_FIELD
+            });
+        } else {
+            for (final Iterator<?> it = fieldArgs.iterator(); it.hasNext();) {
+                final List<String> names = new ArrayList<String>();
+                final String[] split = it.next().toString().split(",");
+                for (int i = 0; i < split.length; i++) {
+                    if (split[i].trim().length() > 0) {
+                        names.add(split[i].trim());
+                    }
+                }
+                fields.addAll(names);
+                if (names.size() == 2) {
+                    fieldPairs.add(names.toArray(new String[2]));
+                }
+            }
+        }
+        final List<?> queryArgs = (List<?>) args.get("queries");
+        if (queryArgs != null) {
+            for (final Iterator<?> it = queryArgs.iterator(); it.hasNext();) {
+                queries.add(SolrParams.toSolrParams((NamedList<?>) it.next()));
+            }
+        }
+        final Object recent = args.get("recentSearches");
+        if (recent != null) {
+            recentSearches = Integer.parseInt(recent.toString());
+        }
+    }
+
+    /**
+     * Commits need no warming of their own; the searcher they open does.
+     */
+    public void postCommit() { }
+
+    /**
+     * Warm a new searcher.
+     *
+     * @param newSearcher     searcher to warm
+     * @param currentSearcher searcher currently registered, or null if there
+     *                        is none
+     */
+    public void newSearcher(final SolrIndexSearcher newSearcher,
+                            final SolrIndexSearcher currentSearcher) {
+        final long start = System.nanoTime();
+        loadCoordinates(newSearcher);
+        int replayed = 0;
+        for (final Iterator<SolrParams> it = queries.iterator();
+                it.hasNext();) {
+            replayed += replay(newSearcher, it.next());
+        }
+        final RecentSearches recent = getRecentSearches();
+        if (recent != null && recentSearches > 0) {
+            final List<SolrParams> mostFrequent =
+                recent.drainMostFrequent(recentSearches);
+            for (final Iterator<SolrParams> it = mostFrequent.iterator();
+                    it.hasNext();) {
+                replayed += replay(newSearcher, it.next());
+            }
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Spatial warming replayed " + replayed + " searches in "
+                     + (System.nanoTime() - start) / NANOS_PER_MILLI + "ms");
+        }
+    }
+
+    /**
+     * Load the coordinate arrays of every segment of a searcher, and compute
+     * the extents of the field pairs.
+     *
+     * @param searcher searcher to warm
+     */
+    private void loadCoordinates(final SolrIndexSearcher searcher) {
+        final SolrIndexReader[] segments =
+            searcher.getReader().getLeafReaders();
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                for (final Iterator<String> it = fields.iterator();
+                        it.hasNext();) {
+                    CoordinateCache.DEFAULT.getValues(segments[i], it.next());
+                }
+            }
+            for (final Iterator<String[]> it = fieldPairs.iterator();
+                    it.hasNext();) {
+                final String[] pair = it.next();
+                SpatialExtent.get(searcher.getReader(), pair[0], pair[1]);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Failed to load coordinates", e);
+        }
+    }
+
+    /**
+     * Run a search against a searcher, discarding the response.
+     *
+     * @param searcher searcher to warm
+     * @param params   params of the search
+     *
+     * @return 1 if the search ran, 0 if it failed
+     */
+    private int replay(final SolrIndexSearcher searcher,
+                       final SolrParams params) {
+        final LocalSolrQueryRequest req =
+            new LocalSolrQueryRequest(core, params) {
+                public SolrIndexSearcher getSearcher() {
+                    return searcher;
+                }
+
+                public void close() { }
+            };
+        req.getContext().put(WARMING, Boolean.TRUE);
+        final SolrQueryResponse rsp = new SolrQueryResponse();
+        try {
+            core.execute(core.getRequestHandler(params.get(CommonParams.QT)),
+                         req, rsp);
+        } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Failed to warm search " + params, e);
+            return 0;
+        }
+        if (rsp.getException() != null) {
+            LOG.log(Level.WARNING, "Failed to warm search " + params,
+                    rsp.getException());
+            return 0;
+        }
+        return 1;
+    }
+
+    /**
+     * Find the recent searches of the core's spatial component.
+     *
+     * @return recent searches, or null if the core has no spatial component
+     */
+    private RecentSearches getRecentSearches() {
+        final SpatialQueryComponent component =
+            SpatialQueryComponent.forCore(core);
+        if (component == null) {
+            return null;
+        }
+        return component.getRecentSearches();
+    }
+}
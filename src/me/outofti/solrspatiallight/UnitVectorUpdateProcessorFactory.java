@@ -0,0 +1,67 @@
+package me.outofti.solrspatiallight;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+
+/**
+ * Update processor indexing the unit vector of each document's location.
+ *
+ * The x, y and z components of the vector are indexed in three double
+ * fields named after the vector field with the suffixes "_x", "_y" and
+ * "_z". Searches naming the vector field in the "vectors" local param then
+ * measure distances by dot product, with no trig functions per document.
+ * Configure the processor in an update chain in solrconfig.xml:
+ *
+ * <pre>
+ * &lt;updateRequestProcessorChain name="spatial" default="true"&gt;
+ *   &lt;processor
+ *     class="me.outofti.solrspatiallight.UnitVectorUpdateProcessorFactory"&gt;
+ *     &lt;str name="latField"&gt;lat&lt;/str&gt;
+ *     &lt;str name="lngField"&gt;lng&lt;/str&gt;
+ *     &lt;str name="vectorField"&gt;vector&lt;/str&gt;
+ *   &lt;/processor&gt;
+ *   &lt;processor class="solr.RunUpdateProcessorFactory" /&gt;
+ * &lt;/updateRequestProcessorChain&gt;
+ * </pre>
+ */
+public final class UnitVectorUpdateProcessorFactory
+    extends LocationUpdateProcessorFactory {
+    /**
+     * Default name of the vector field.
+     */
+    public static final String DEFAULT_VECTOR_FIELD = "vector";
+
+    /**
+     * Name of the vector field.
+     */
+    private String vectorField = DEFAULT_VECTOR_FIELD;
+
+    /**
+     * Read the name of the vector field.
+     *
+     * @param args configuration
+     */
+    @Override
+    protected void configure(final NamedList args) {
+        if (args.get("vectorField") != null) {
+            vectorField = args.get("vectorField").toString();
+        }
+    }
+
+    /**
+     * Add the components of a document's unit vector.
+     *
+     * @param doc document being added
+     * @param lat latitude of the document
+     * @param lng longitude of the document
+     */
+    @Override
+    protected void addLocation(final SolrInputDocument doc, final double lat,
+                               final double lng) {
+        final double[] vector = DistanceCalculator.getUnitVector(lat, lng);
+        for (int axis = 0; axis < vector.length; axis++) {
+            doc.setField(LocationFields.getComponentField(vectorField, axis),
+                         Double.valueOf(vector[axis]));
+        }
+    }
+}
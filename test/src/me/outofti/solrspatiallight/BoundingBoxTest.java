@@ -0,0 +1,68 @@
+package me.outofti.solrspatiallight;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BoundingBoxTest {
+    @Test public void boundsSmallCircle() {
+        final BoundingBox box = new BoundingBox(0.0, 10.0, 1.0);
+        assertEquals(-1.0, box.getMinLat(), 1e-9);
+        assertEquals(1.0, box.getMaxLat(), 1e-9);
+        final double[][] ranges = box.getLngRanges();
+        assertEquals(1, ranges.length);
+        assertEquals(9.0, ranges[0][0], 1e-9);
+        assertEquals(11.0, ranges[0][1], 1e-9);
+    }
+
+    @Test public void splitsAtAntimeridian() {
+        final BoundingBox box = new BoundingBox(-17.0, 179.5, 1.0);
+        final double[][] ranges = box.getLngRanges();
+        assertEquals(2, ranges.length);
+        assertTrue(ranges[0][0] < 179.5);
+        assertEquals(180.0, ranges[0][1], 0.0);
+        assertEquals(-180.0, ranges[1][0], 0.0);
+        assertTrue(ranges[1][1] > -180.0 && ranges[1][1] < -179.0);
+    }
+
+    @Test public void coversEveryLongitudeAroundPole() {
+        final BoundingBox box = new BoundingBox(89.5, 45.0, 1.0);
+        assertTrue(box.isWholeWidth());
+        assertEquals(0, box.getLngRanges().length);
+        assertEquals(88.5, box.getMinLat(), 1e-9);
+        assertEquals(90.0, box.getMaxLat(), 0.0);
+    }
+
+    @Test public void touchesCircleAtHighLatitude() {
+        final BoundingBox box = new BoundingBox(80.0, 0.0, 5.0);
+        assertFalse(box.isWholeWidth());
+        // radius / cos(lat) would be too narrow to hold the circle
+        assertTrue(box.getMaxLng() > 5.0 / Math.cos(Math.toRadians(80.0)));
+        // the circle touches the eastern edge, north of the centerpoint
+        final double tangentLat = Math.toDegrees(Math.asin(
+                Math.sin(Math.toRadians(80.0)) / Math.cos(Math.toRadians(5.0))));
+        final double miles = new DistanceCalculator(80.0, 0.0)
+            .getMiles(tangentLat, box.getMaxLng());
+        assertEquals(Math.toRadians(5.0) * DistanceCalculator.EARTH_RADIUS_MILES,
+                     miles, 1e-6);
+    }
+
+    @Test public void containsPointsAcrossAntimeridian() {
+        final BoundingBox box = BoundingBox.fromEdges(-20.0, 170.0, -10.0, -170.0);
+        assertEquals(2, box.getLngRanges().length);
+        assertTrue(box.contains(-15.0, 175.0));
+        assertTrue(box.contains(-15.0, -175.0));
+        assertFalse(box.contains(-15.0, 0.0));
+        assertFalse(box.contains(-25.0, 175.0));
+    }
+
+    @Test public void overlapsRangesAcrossAntimeridian() {
+        final BoundingBox box = new BoundingBox(-17.0, 179.5, 1.0);
+        assertTrue(box.overlaps(new double[] {-20.0, -10.0},
+                                new double[] {-180.0, -179.9}));
+        assertFalse(box.overlaps(new double[] {-20.0, -10.0},
+                                 new double[] {0.0, 10.0}));
+        assertFalse(box.overlaps(new double[] {0.0, 10.0},
+                                 new double[] {-180.0, 180.0}));
+    }
+}
@@ -0,0 +1,41 @@
+package me.outofti.solrspatiallight;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DistanceTableTest {
+    @Test public void storesSparseDistances() {
+        final DistanceTable table = new DistanceTable(1000000);
+        table.put(17, 1.5);
+        table.put(999999, 2.5);
+        assertEquals(2, table.size());
+        assertEquals(1.5, table.get(17), 0.0);
+        assertEquals(2.5, table.get(999999), 0.0);
+        assertFalse(table.contains(18));
+        assertTrue(Double.isNaN(table.get(18)));
+    }
+
+    @Test public void overwritesDistances() {
+        final DistanceTable table = new DistanceTable(1000000);
+        table.put(17, 1.5);
+        table.put(17, 3.5);
+        assertEquals(1, table.size());
+        assertEquals(3.5, table.get(17), 0.0);
+    }
+
+    @Test public void keepsDistancesWhenBecomingDense() {
+        final DistanceTable table = new DistanceTable(1000);
+        for (int i = 0; i < 1000; i += 2) {
+            table.put(i, i / 10.0);
+        }
+        assertEquals(500, table.size());
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                assertEquals(i / 10.0, table.get(i), 0.0);
+            } else {
+                assertFalse(table.contains(i));
+            }
+        }
+    }
+}
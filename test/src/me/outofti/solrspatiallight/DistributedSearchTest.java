@@ -0,0 +1,331 @@
+package me.outofti.solrspatiallight;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.JavaBinCodec;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs spatial searches across two shards, each a core of its own served
+ * over HTTP as Solr's distributed search expects. The first shard also
+ * coordinates the searches.
+ */
+public class DistributedSearchTest {
+    private static final String[] SHARD_NAMES = { "shard1", "shard2" };
+    private static final String PARAM_NAME = "spatial";
+    private static final String NEW_YORK = "40.7142691, -74.0059729";
+
+    private static CoreContainer cores;
+    private static HttpServer httpServer;
+    private static SolrServer[] servers;
+    private static String shards;
+    private static final Set<String> PATHS = new HashSet<String>();
+
+    @BeforeClass public static void startShards() throws Exception {
+        System.setProperty("java.util.logging.config.file", "test/logging.properties");
+        final String instanceDir = new File("test/solr").getAbsolutePath();
+        System.setProperty("solr.solr.home", instanceDir);
+        cores = new CoreContainer();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        servers = new SolrServer[SHARD_NAMES.length];
+        for (int i = 0; i < SHARD_NAMES.length; i++) {
+            final CoreDescriptor descriptor =
+                new CoreDescriptor(cores, SHARD_NAMES[i], instanceDir);
+            final Properties properties = new Properties();
+            properties.setProperty("solr.data.dir",
+                                   new File("solr/" + SHARD_NAMES[i] + "/data").getAbsolutePath());
+            descriptor.setCoreProperties(properties);
+            cores.register(cores.create(descriptor), false);
+            servers[i] = new EmbeddedSolrServer(cores, SHARD_NAMES[i]);
+        }
+        httpServer.start();
+        shards = getShards("shard");
+    }
+
+    // Each shard can be served under several paths, which the coordinator
+    // takes for different shards, so that tests of routing don't inherit
+    // the extents other tests have learned.
+    private static synchronized String getShards(String path) {
+        final StringBuilder shardList = new StringBuilder();
+        for (int i = 0; i < servers.length; i++) {
+            final String context = "/" + path + (i + 1);
+            if (PATHS.add(context)) {
+                httpServer.createContext(context, new ShardHandler(servers[i]));
+            }
+            if (i > 0) { shardList.append(','); }
+            shardList.append("127.0.0.1:").append(httpServer.getAddress().getPort())
+                .append(context);
+        }
+        return shardList.toString();
+    }
+
+    @AfterClass public static void stopShards() {
+        httpServer.stop(0);
+        cores.shutdown();
+    }
+
+    @Before public void clearShards() throws Exception {
+        for (int i = 0; i < servers.length; i++) {
+            servers[i].deleteByQuery("id:[* TO *]");
+            servers[i].commit();
+        }
+    }
+
+    @Test public void sortedResultsAreMergedByDistance() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = newQuery("{!radius=15 sort=true}" + NEW_YORK);
+        final QueryResponse response = servers[0].query(query);
+        assertNames(response.getResults(), "New York", "Brooklyn", "Staten Island");
+        final Map distances = (Map) response.getResponse().get("distances");
+        assertEquals(3, distances.size());
+        Double lastDistance = null;
+        for (int i = 0; i < response.getResults().size(); i++) {
+            final Double distance = new Double(distances.get(
+                        response.getResults().get(i).getFieldValue("id")).toString());
+            if (lastDistance != null) {
+                assertTrue(lastDistance < distance);
+            }
+            lastDistance = distance;
+        }
+    }
+
+    @Test public void nearestNeighborsAreCountedAcrossShards() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = newQuery("{!k=2}" + NEW_YORK);
+        assertNames(servers[0].query(query).getResults(), "New York", "Brooklyn");
+    }
+
+    @Test public void distanceFacetsAreMerged() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = newQuery("{!radius=20}" + NEW_YORK);
+        query.set("spatial.facet.ranges", "1,6,12,20");
+        final NamedList facets = (NamedList)
+            servers[0].query(query).getResponse().get("distanceFacets");
+        assertEquals(1, ((Number) facets.get("1")).intValue());
+        assertEquals(2, ((Number) facets.get("6")).intValue());
+        assertEquals(3, ((Number) facets.get("12")).intValue());
+        assertEquals(4, ((Number) facets.get("20")).intValue());
+    }
+
+    @Test public void gridTilesAreMerged() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.set("shards", shards);
+        query.set("spatial.grid.box", "40.5,-74.3,41.0,-73.8");
+        query.set("spatial.grid.zoom", "4");
+        query.setRows(0);
+        final NamedList grid = (NamedList)
+            servers[0].query(query).getResponse().get("spatialGrid");
+        assertEquals(1, grid.size());
+        assertEquals(4, ((Number) ((NamedList) grid.getVal(0)).get("count")).intValue());
+    }
+
+    @Test public void shardsOutsideRadiusAreSkipped() throws Exception {
+        addLocation(0, "4", "New York", 40.7142691, -74.0059729);
+        addLocation(1, "5", "Paris", 48.8566, 2.3522);
+        commit();
+        final SolrQuery query = newQuery("{!radius=10}48.8566, 2.3522");
+        query.set("shards", getShards("routed"));
+        // the first search learns the extent of each shard
+        assertNames(servers[0].query(query).getResults(), "Paris");
+        final long before = getShardsSkipped();
+        assertNames(servers[0].query(query).getResults(), "Paris");
+        assertEquals(1, getShardsSkipped() - before);
+    }
+
+    @Test public void extentsCoverOverlaidLocations() throws Exception {
+        addLocation(0, "6", "Taxi", 40.7142691, -74.0059729);
+        addLocation(1, "7", "Paris", 48.8566, 2.3522);
+        commit();
+        final String movingShards = getShards("moving");
+        final SolrQuery paris = newQuery("{!radius=10 sort=true}48.8566, 2.3522");
+        paris.set("shards", movingShards);
+        assertNames(servers[0].query(paris).getResults(), "Paris");
+        try {
+            updateLocation(0, "6", "48.857", "2.35");
+            // the first shard returns its new extent with the next search
+            // it is sent
+            final SolrQuery newYork = newQuery("{!radius=10}" + NEW_YORK);
+            newYork.set("shards", movingShards);
+            assertNames(servers[0].query(newYork).getResults());
+            assertNames(servers[0].query(paris).getResults(), "Paris", "Taxi");
+        } finally {
+            final SolrQuery remove = new SolrQuery();
+            remove.setQueryType("/location");
+            remove.set("remove", "6");
+            servers[0].query(remove);
+        }
+    }
+
+    @Test public void onlyLocalSearchesAreRecorded() throws Exception {
+        addStandardFixtures();
+        servers[0].query(newQuery("{!radius=15 sort=true}" + NEW_YORK));
+        assertEquals(0, drainRecentSearches(0));
+        assertEquals(0, drainRecentSearches(1));
+        final SolrQuery local = newQuery("{!radius=15 sort=true}" + NEW_YORK);
+        local.remove("shards");
+        servers[1].query(local);
+        assertEquals(1, drainRecentSearches(1));
+    }
+
+    private int drainRecentSearches(int shard) {
+        final SolrCore core = cores.getCore(SHARD_NAMES[shard]);
+        try {
+            return SpatialQueryComponent.forCore(core).getRecentSearches()
+                .drainMostFrequent(Integer.MAX_VALUE).size();
+        } finally {
+            core.close();
+        }
+    }
+
+    private void updateLocation(int shard, String id, String lat, String lng) throws Exception {
+        final SolrQuery update = new SolrQuery();
+        update.setQueryType("/location");
+        update.set("id", id);
+        update.set("lat", lat);
+        update.set("lng", lng);
+        servers[shard].query(update);
+    }
+
+    private long getShardsSkipped() {
+        final SolrCore core = cores.getCore(SHARD_NAMES[0]);
+        try {
+            return ((Number) SpatialQueryComponent.forCore(core).getStatistics()
+                    .get("shardsSkipped")).longValue();
+        } finally {
+            core.close();
+        }
+    }
+
+    private SolrQuery newQuery(String spatial) {
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, spatial);
+        query.set("shards", shards);
+        query.set("fl", "id,name");
+        return query;
+    }
+
+    private void addStandardFixtures() throws Exception {
+        // 0.000 and 16.000 miles
+        addLocation(0, "1", "New York", 40.7142691, -74.0059729);
+        addLocation(0, "2", "Yonkers", 40.9312099, -73.8987469);
+        // 5.328 and 11.765 miles
+        addLocation(1, "3", "Brooklyn", 40.6501037, -73.9495823);
+        addLocation(1, "4", "Staten Island", 40.5834379, -74.1495875);
+        commit();
+    }
+
+    private void addLocation(int shard, String id, String name, double lat, double lng)
+        throws Exception {
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", id);
+        doc.addField("name", name);
+        doc.addField("lat", new Double(lat).toString());
+        doc.addField("lng", new Double(lng).toString());
+        servers[shard].add(doc);
+    }
+
+    private void commit() throws Exception {
+        for (int i = 0; i < servers.length; i++) {
+            servers[i].commit();
+        }
+    }
+
+    private void assertNames(SolrDocumentList docs, String... names) {
+        assertEquals("It should return " + names.length + " results",
+                     names.length, docs.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals("It should return \"" + names[i] + "\" as result " + i,
+                         names[i], docs.get(i).getFieldValue("name").toString());
+        }
+    }
+
+    /**
+     * Answers the requests a coordinator sends to a shard, in the javabin
+     * format it asks for.
+     */
+    private static class ShardHandler implements HttpHandler {
+        private final SolrServer server;
+
+        ShardHandler(SolrServer server) {
+            this.server = server;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            final ModifiableSolrParams params = new ModifiableSolrParams();
+            addParams(params, exchange.getRequestURI().getRawQuery());
+            addParams(params, read(exchange.getRequestBody()));
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try {
+                new JavaBinCodec().marshal(server.request(new QueryRequest(params)), body);
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, body.size());
+            final OutputStream out = exchange.getResponseBody();
+            body.writeTo(out);
+            out.close();
+        }
+
+        private static void addParams(ModifiableSolrParams params, String encoded)
+            throws IOException {
+            if (encoded == null || encoded.length() == 0) {
+                return;
+            }
+            final String[] pairs = encoded.split("&");
+            for (int i = 0; i < pairs.length; i++) {
+                final int split = pairs[i].indexOf('=');
+                if (split < 0) {
+                    continue;
+                }
+                params.add(URLDecoder.decode(pairs[i].substring(0, split), "UTF-8"),
+                           URLDecoder.decode(pairs[i].substring(split + 1), "UTF-8"));
+            }
+        }
+
+        private static String read(InputStream in) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            in.close();
+            return bytes.toString("UTF-8");
+        }
+    }
+}
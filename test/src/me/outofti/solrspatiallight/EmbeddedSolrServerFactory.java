@@ -12,6 +12,7 @@ class EmbeddedSolrServerFactory {
     private static EmbeddedSolrServerFactory instance;
 
     private EmbeddedSolrServer server;
+    private CoreContainer coreContainer;
 
     public static EmbeddedSolrServerFactory getInstance() {
         if(instance == null) {
@@ -27,9 +28,14 @@ class EmbeddedSolrServerFactory {
     public EmbeddedSolrServer getServer() throws IOException, ParserConfigurationException, SAXException {
         if(this.server == null) {
             final CoreContainer.Initializer initializer = new CoreContainer.Initializer();
-            final CoreContainer coreContainer = initializer.initialize();
+            coreContainer = initializer.initialize();
             this.server = new EmbeddedSolrServer(coreContainer, "");
         }
         return this.server;
     }
+
+    public CoreContainer getCoreContainer() throws IOException, ParserConfigurationException, SAXException {
+        getServer();
+        return coreContainer;
+    }
 }
@@ -0,0 +1,45 @@
+package me.outofti.solrspatiallight;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GeoHashCellsTest {
+    @Test public void cellsArePrefixesOfGeohash() {
+        final String[] cells = GeoHashCells.getCells(40.7142691, -74.0059729);
+        assertEquals(GeoHashCells.MAX_PRECISION, cells.length);
+        assertEquals("d", cells[0]);
+        assertEquals("dr5", cells[2]);
+        for (int i = 1; i < cells.length; i++) {
+            assertTrue(cells[i].startsWith(cells[i - 1]));
+        }
+    }
+
+    @Test public void coverContainsPointsInBox() {
+        final List<String> cover =
+            GeoHashCells.getCover(40.5, 40.9, -74.2, -73.8);
+        assertTrue(cover.size() <= 32);
+        assertCovered(cover, 40.7142691, -74.0059729);
+        assertCovered(cover, 40.5834379, -74.1495875);
+        assertCovered(cover, 40.6501037, -73.9495823);
+    }
+
+    @Test public void coverWrapsAroundAntimeridian() {
+        final List<String> cover =
+            GeoHashCells.getCover(-18.0, -17.0, 179.5, 180.5);
+        assertCovered(cover, -17.5, 179.9);
+        assertCovered(cover, -17.5, -179.9);
+    }
+
+    private void assertCovered(List<String> cover, double lat, double lng) {
+        final String[] cells = GeoHashCells.getCells(lat, lng);
+        for (String cell : cells) {
+            if (cover.contains(cell)) {
+                return;
+            }
+        }
+        fail("No cell covers " + lat + "," + lng + " in " + cover);
+    }
+}
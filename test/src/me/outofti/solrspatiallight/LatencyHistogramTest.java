@@ -0,0 +1,41 @@
+package me.outofti.solrspatiallight;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test public void boundsPercentilesByPowersOfTwo() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3000000L); // 3ms
+        }
+        histogram.record(100000000L); // 100ms
+        assertEquals(100L, histogram.getCount());
+        assertEquals(4.096, histogram.getPercentileMillis(0.5), 0.0);
+        assertEquals(4.096, histogram.getPercentileMillis(0.99), 0.0);
+        assertEquals(100.0, histogram.getPercentileMillis(0.999), 0.0);
+    }
+
+    @Test public void reportsNothingRecorded() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMillis(0.5), 0.0);
+        final NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        histogram.addStatistics(stats, "parse");
+        assertEquals(0L, stats.get("parseCount"));
+        assertEquals(0.0, stats.get("parseAvgMs"));
+    }
+
+    @Test public void averagesAndMaximum() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000000L);
+        histogram.record(3000000L);
+        final NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        histogram.addStatistics(stats, "sort");
+        assertEquals(2L, stats.get("sortCount"));
+        assertEquals(2.0, stats.get("sortAvgMs"));
+        assertEquals(3.0, stats.get("sortMaxMs"));
+    }
+}
@@ -0,0 +1,71 @@
+package me.outofti.solrspatiallight;
+
+import java.util.Random;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PolygonTest {
+    // a "U" open to the north, so some grid rows cross it twice
+    private static final double[][] U = {
+        {0.0, 0.0}, {0.0, 3.0}, {3.0, 3.0}, {3.0, 2.0},
+        {1.0, 2.0}, {1.0, 1.0}, {3.0, 1.0}, {3.0, 0.0},
+    };
+
+    @Test public void agreesWithCrossingCount() throws Exception {
+        final Polygon polygon = Polygon.parse(toParam(U));
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final double lat = random.nextDouble() * 4.0 - 0.5;
+            final double lng = random.nextDouble() * 4.0 - 0.5;
+            assertEquals(lat + "," + lng, crosses(U, lat, lng),
+                         polygon.contains(lat, lng));
+        }
+    }
+
+    @Test public void boundsVertices() throws Exception {
+        final BoundingBox bounds = Polygon.parse(toParam(U)).getBounds();
+        assertEquals(0.0, bounds.getMinLat(), 0.0);
+        assertEquals(3.0, bounds.getMaxLat(), 0.0);
+        assertEquals(0.0, bounds.getMinLng(), 0.0);
+        assertEquals(3.0, bounds.getMaxLng(), 0.0);
+    }
+
+    @Test public void acceptsClosedRing() throws Exception {
+        assertEquals(Polygon.parse("0,0;0,1;1,0"),
+                     Polygon.parse("0,0;0,1;1,0;0,0"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsTwoVertices() throws Exception {
+        Polygon.parse("0,0;1,1");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsFlatPolygon() throws Exception {
+        Polygon.parse("0,0;0,1;0,2");
+    }
+
+    private static String toParam(double[][] vertices) {
+        final StringBuilder param = new StringBuilder();
+        for (int i = 0; i < vertices.length; i++) {
+            if (i > 0) { param.append(';'); }
+            param.append(vertices[i][0]).append(',').append(vertices[i][1]);
+        }
+        return param.toString();
+    }
+
+    private static boolean crosses(double[][] vertices, double lat, double lng) {
+        boolean inside = false;
+        for (int i = 0, j = vertices.length - 1; i < vertices.length; j = i++) {
+            if ((vertices[i][0] > lat) != (vertices[j][0] > lat)
+                    && lng < (vertices[j][1] - vertices[i][1]) * (lat - vertices[i][0])
+                    / (vertices[j][0] - vertices[i][0]) + vertices[i][1]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -5,6 +5,7 @@ import org.junit.Test;
 import java.util.Map;
 
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.common.SolrDocumentList;
 
@@ -48,6 +49,75 @@ public class SpatialSearchTest extends TestHelper {
         assertResults(query, "New York", "Staten Island");
     }
 
+    @Test public void withOtherFiltersFirst() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add("spatial",
+                  "{!radius=15 filterFirst=true}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:4.0");
+        assertResults(query, "New York", "Staten Island");
+    }
+
+    @Test public void sortingWithOtherFiltersFirst() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add("spatial",
+                  "{!sort=true filterFirst=true}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:4.0");
+        assertResultsInOrder(query, "New York", "Staten Island", "Yonkers");
+        assertResultDistancesInOrder(query);
+    }
+
+    @Test public void searchByGeohashCells() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!radius=10 cells=geohash}40.7142691, -74.0059729");
+        assertResults(query, "New York", "Brooklyn");
+    }
+
+    @Test public void sortingByGeohashCells() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!radius=15 sort=true cells=geohash}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn", "Staten Island");
+    }
+
+    @Test public void nearestNeighborsByGeohashCells() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=3 cells=geohash}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn", "Staten Island");
+    }
+
+    @Test public void searchByUnitVectors() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!radius=10 vectors=vector}40.7142691, -74.0059729");
+        assertResults(query, "New York", "Brooklyn");
+    }
+
+    @Test public void sortingByUnitVectors() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!sort=true vectors=vector}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn", "Staten Island",
+                             "Yonkers");
+        assertResultDistancesInOrder(query);
+    }
+
+    @Test public void nearestNeighborsByUnitVectors() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!k=2 cells=geohash vectors=vector}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        assertResultDistancesInOrder(query);
+    }
+
     @Test public void simpleDistanceSorting() throws Exception {
         addStandardFixtures();
         final SolrQuery query = new SolrQuery();
@@ -105,6 +175,37 @@ public class SpatialSearchTest extends TestHelper {
         assertResultsInOrder(query, "New York", "New Haven");
     }
 
+    @Test public void nearestNeighbors() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=2}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        assertResultDistancesInOrder(query);
+    }
+
+    @Test public void nearestNeighborsWithOtherFilters() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=2}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:4.0");
+        assertResultsInOrder(query, "New York", "Staten Island");
+    }
+
+    @Test public void nearestNeighborsBeyondIndexSize() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=10}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn", "Staten Island",
+                             "Yonkers");
+    }
+
+    @Test public void nearestNeighborsWithinRadius() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=3 radius=10}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+    }
+
     @Test public void addsDistanceToResponse() throws Exception {
         addStandardFixtures();
         final SolrQuery query = new SolrQuery();
@@ -124,6 +225,14 @@ public class SpatialSearchTest extends TestHelper {
         assertResultDistancesInOrder(query);
     }
 
+    @Test public void addsDistanceToResponseWithoutSort() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10}40.7142691, -74.0059729");
+        query.addSortField("rating", SolrQuery.ORDER.asc);
+        assertResultDistancesInOrder(query);
+    }
+
     @Test public void addsDistanceToResponseWithoutRadius() throws Exception {
         addStandardFixtures();
         final SolrQuery query = new SolrQuery();
@@ -139,6 +248,415 @@ public class SpatialSearchTest extends TestHelper {
         assertResultDistancesInOrder(query);
     }
 
+    @Test public void searchAcrossSegments() throws Exception {
+        addStandardFixtures();
+        addLocation("Hoboken", 3.0, 40.7439905, -74.0323626);
+        getServer().commit();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Hoboken", "Brooklyn");
+    }
+
+    @Test public void repeatedSearchHitsCaches() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        getServer().query(query);
+        final long resultHits = getCacheHits("queryResultCache");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        assertResultDistancesInOrder(query);
+        assertTrue(getCacheHits("queryResultCache") > resultHits);
+    }
+
+    @Test public void configuredSearchesWarmNewSearcher() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=25 sort=true}40.65, -73.95");
+        final long resultHits = getCacheHits("queryResultCache");
+        assertResultsInOrder(query, "Brooklyn", "New York", "Staten Island",
+                             "Yonkers");
+        assertTrue(getCacheHits("queryResultCache") > resultHits);
+    }
+
+    @Test public void frequentSearchesWarmNewSearcher() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=9.5 sort=true}40.7142691, -74.0059729");
+        getServer().query(query);
+        getServer().query(query);
+        addLocation("Hoboken", 3.0, 40.7439905, -74.0323626);
+        getServer().commit();
+        final long resultHits = getCacheHits("queryResultCache");
+        assertResultsInOrder(query, "New York", "Hoboken", "Brooklyn");
+        assertTrue(getCacheHits("queryResultCache") > resultHits);
+    }
+
+    @Test public void unchangedSegmentsReuseResultsAfterCommit() throws Exception {
+        addStandardFixtures();
+        getServer().optimize();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10.5 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        final NamedList before = getComponentStatistics(SpatialQueryComponent.class.getName());
+        addLocation("Hoboken", 3.0, 40.7439905, -74.0323626);
+        getServer().commit();
+        assertResultsInOrder(query, "New York", "Hoboken", "Brooklyn");
+        final NamedList after = getComponentStatistics(SpatialQueryComponent.class.getName());
+        assertTrue(getDelta(before, after, "segmentResultHits") > 0);
+    }
+
+    @Test public void cachedSegmentResultsSkipDeletedDocuments() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        getServer().deleteByQuery("name_t:Brooklyn");
+        getServer().commit();
+        assertResultsInOrder(query, "New York");
+    }
+
+    @Test public void autowarmedFilterFirstSearchesUseNewSearcher() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=11.5 filterFirst=true}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:4.0");
+        assertResults(query, "New York");
+        // optimizing renumbers every document; the filter cache entry for
+        // the search is autowarmed against the new searcher
+        addLocation("Hoboken", 4.0, 40.7439905, -74.0323626);
+        getServer().optimize();
+        assertResults(query, "New York", "Hoboken");
+    }
+
+    @Test public void segmentsOutOfRangeAreSkipped() throws Exception {
+        addStandardFixtures();
+        final NamedList before = getComponentStatistics(SpatialQueryComponent.class.getName());
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=25}48.8566, 2.3522");
+        assertResults(query);
+        final NamedList after = getComponentStatistics(SpatialQueryComponent.class.getName());
+        assertTrue(getDelta(before, after, "segmentsSkipped") > 0);
+    }
+
+    @Test public void shardsOutsideExtentAreNotSearched() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10}40.7142691, -74.0059729");
+        query.add("spatial.extent", "true");
+        final SpatialExtent extent = SpatialExtent.fromNamedList((NamedList)
+            getServer().query(query).getResponse().get("spatialExtent"));
+        final ShardExtents shardExtents = new ShardExtents(60);
+        shardExtents.put("nyc:8983/solr", extent);
+        final String[] shards = { "nyc:8983/solr", "unknown:8983/solr" };
+        final BoundingBox[] brooklyn = { new BoundingBox(40.65, -73.95, 0.1) };
+        assertArrayEquals(shards, shardExtents.route(shards, "lat", "lng", brooklyn));
+        final BoundingBox[] sydney = { new BoundingBox(-33.87, 151.21, 0.5) };
+        assertArrayEquals(new String[] { "unknown:8983/solr" },
+                          shardExtents.route(shards, "lat", "lng", sydney));
+        assertArrayEquals(shards, shardExtents.route(shards, "latitude", "longitude", sydney));
+    }
+
+    @Test public void overlaidLocationsAreSearchedWithoutCommit() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        try {
+            // Yonkers moves to Hoboken, and New York out to Sydney
+            final NamedList updated = updateLocations("id", "3", "lat", "40.7439905",
+                                                      "lng", "-74.0323626");
+            assertEquals(1, ((Number) updated.get("updated")).intValue());
+            updateLocations("id", "2", "lat", "-33.87", "lng", "151.21");
+            assertResultsInOrder(query, "Yonkers", "Brooklyn");
+            final NamedList removed = updateLocations("remove", "2");
+            assertEquals(1, ((Number) removed.get("removed")).intValue());
+            assertResultsInOrder(query, "New York", "Yonkers", "Brooklyn");
+        } finally {
+            updateLocations("remove", "2", "remove", "3");
+        }
+        assertResultsInOrder(query, "New York", "Brooklyn");
+    }
+
+    @Test public void overlaidLocationsAreCountedByNearestNeighbors() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        // Hoboken, 2.5 miles from New York
+        query.add(PARAM_NAME, "{!k=1}40.7439905, -74.0323626");
+        assertResults(query, "New York");
+        try {
+            // Staten Island moves to Hoboken
+            updateLocations("id", "1", "lat", "40.745", "lng", "-74.03");
+            assertResults(query, "Staten Island");
+        } finally {
+            updateLocations("remove", "1");
+        }
+    }
+
+    @Test public void concurrentUpdatesAreAllSearched() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10}-33.87, 151.21");
+        final Thread[] updaters = new Thread[4];
+        final Exception[] failures = new Exception[updaters.length];
+        for (int i = 0; i < updaters.length; i++) {
+            final int thread = i;
+            updaters[i] = new Thread() {
+                public void run() {
+                    try {
+                        // each document ends up in Sydney, after moving
+                        // back and forth between Paris and there
+                        final String id = String.valueOf(thread + 1);
+                        for (int j = 0; j < 50; j++) {
+                            updateLocations("id", id, "lat", "48.8566", "lng", "2.3522");
+                            updateLocations("id", id, "lat", "-33.87", "lng", "151.21");
+                        }
+                    } catch (Exception e) {
+                        failures[thread] = e;
+                    }
+                }
+            };
+            updaters[i].start();
+        }
+        try {
+            for (int i = 0; i < updaters.length; i++) {
+                while (updaters[i].isAlive()) {
+                    getServer().query(query);
+                }
+                updaters[i].join();
+                if (failures[i] != null) { throw failures[i]; }
+            }
+            assertResults(query, "Staten Island", "New York", "Yonkers", "Brooklyn");
+        } finally {
+            updateLocations("remove", "1", "remove", "2", "remove", "3", "remove", "4");
+        }
+    }
+
+    @Test public void updatesOutsideIndexKeepCachedSearches() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        try {
+            updateLocations("id", "3", "lat", "40.7439905", "lng", "-74.0323626");
+            assertResultsInOrder(query, "New York", "Yonkers", "Brooklyn");
+            // a document that is not indexed yet moves
+            updateLocations("id", "unindexed", "lat", "40.71", "lng", "-74.0");
+            final long before = getCacheHits("queryResultCache");
+            assertResultsInOrder(query, "New York", "Yonkers", "Brooklyn");
+            assertEquals(1, getCacheHits("queryResultCache") - before);
+            updateLocations("id", "3", "lat", "40.9312099", "lng", "-73.8987469");
+            assertResultsInOrder(query, "New York", "Brooklyn");
+        } finally {
+            updateLocations("remove", "3", "remove", "unindexed");
+        }
+    }
+
+    private NamedList updateLocations(String... params) throws Exception {
+        final SolrQuery update = new SolrQuery();
+        update.setQueryType("/location");
+        for (int i = 0; i < params.length; i += 2) {
+            update.add(params[i], params[i + 1]);
+        }
+        return getServer().query(update).getResponse();
+    }
+
+    @Test public void searchesAreCountedInStatistics() throws Exception {
+        addStandardFixtures();
+        final NamedList before = getComponentStatistics(SpatialQueryComponent.class.getName());
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        final NamedList after = getComponentStatistics(SpatialQueryComponent.class.getName());
+        assertEquals(1, getDelta(before, after, "searches"));
+        assertEquals(1, getDelta(before, after, "parseCount"));
+        assertEquals(1, getDelta(before, after, "boundingBoxCount"));
+        assertEquals(1, getDelta(before, after, "sortCount"));
+        assertEquals(1, getDelta(before, after, "responseCount"));
+        assertEquals(1, getDelta(before, after, "evaluationCount"));
+        assertEquals(2, getDelta(before, after, "candidatesAccepted"));
+        assertTrue(getDelta(before, after, "candidatesExamined") >= 2);
+    }
+
+    @Test public void warmingSearchesAreNotCountedInStatistics() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        final NamedList before = getComponentStatistics(SpatialQueryComponent.class.getName());
+        // the commit's new searcher is warmed by replaying the search
+        addLocation("Hoboken", 3.0, 40.7439905, -74.0323626);
+        getServer().commit();
+        final NamedList after = getComponentStatistics(SpatialQueryComponent.class.getName());
+        assertEquals(0, getDelta(before, after, "searches"));
+        assertEquals(0, getDelta(before, after, "parseCount"));
+        assertEquals(0, getDelta(before, after, "responseCount"));
+    }
+
+    private long getDelta(NamedList before, NamedList after, String name) {
+        return ((Number) after.get(name)).longValue()
+            - ((Number) before.get(name)).longValue();
+    }
+
+    @Test public void quantizedCentersShareCaches() throws Exception {
+        addStandardFixtures();
+        final SolrQuery first = new SolrQuery();
+        first.add(PARAM_NAME,
+                  "{!radius=10 sort=true quantize=3}40.7142691, -74.0059729");
+        getServer().query(first);
+        final long resultHits = getCacheHits("queryResultCache");
+        final SolrQuery second = new SolrQuery();
+        second.add(PARAM_NAME,
+                   "{!radius=10 sort=true quantize=3}40.7141, -74.0061");
+        assertResultsInOrder(second, "New York", "Brooklyn");
+        assertTrue(getCacheHits("queryResultCache") > resultHits);
+    }
+
+    @Test public void repeatedNearestNeighborsHitCache() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!k=2}40.7142691, -74.0059729");
+        getServer().query(query);
+        final long nearestHits = getCacheHits(Spatial.NEAREST_CACHE);
+        assertResultsInOrder(query, "New York", "Brooklyn");
+        assertTrue(getCacheHits(Spatial.NEAREST_CACHE) > nearestHits);
+    }
+
+    @Test public void searchManySegments() throws Exception {
+        addStandardFixtures();
+        addLocation("Hoboken", 3.0, 40.7439905, -74.0323626);
+        getServer().commit();
+        addLocation("Jersey City", 4.0, 40.7281575, -74.0776417);
+        getServer().commit();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertResultsInOrder(query, "New York", "Hoboken", "Jersey City",
+                             "Brooklyn");
+        assertResultDistancesInOrder(query);
+        query.addFilterQuery("rating:4.0");
+        assertResultsInOrder(query, "New York", "Jersey City");
+    }
+
+    @Test public void searchAcrossAntimeridian() throws Exception {
+        addLocation("East of the Line", 4.0, -17.0, 179.95);
+        addLocation("West of the Line", 4.0, -17.0, -179.9);
+        addLocation("Far Away", 4.0, -17.0, 178.0);
+        getServer().commit();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}-17.0, 179.98");
+        assertResultsInOrder(query, "East of the Line", "West of the Line");
+        final SolrQuery cellQuery = new SolrQuery();
+        cellQuery.add(PARAM_NAME,
+                      "{!radius=10 sort=true cells=geohash}-17.0, 179.98");
+        assertResultsInOrder(cellQuery, "East of the Line", "West of the Line");
+    }
+
+    @Test public void searchAroundPole() throws Exception {
+        addLocation("Same Side", 4.0, 89.95, 10.0);
+        addLocation("Across the Pole", 4.0, 89.9, 180.0);
+        addLocation("Too Far South", 4.0, 88.0, 0.0);
+        getServer().commit();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=20 sort=true}89.9, 0.0");
+        assertResultsInOrder(query, "Same Side", "Across the Pole");
+        final SolrQuery cellQuery = new SolrQuery();
+        cellQuery.add(PARAM_NAME,
+                      "{!radius=20 sort=true cells=geohash}89.9, 0.0");
+        assertResultsInOrder(cellQuery, "Same Side", "Across the Pole");
+    }
+
+    @Test public void plannerScansWhenBoxHoldsMostOfIndex() throws Exception {
+        addStandardFixtures();
+        getServer().optimize();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=100 sort=true}40.7142691, -74.0059729");
+        assertTrue(getPlan(query).startsWith("scan"));
+        assertResultsInOrder(query, "New York", "Brooklyn", "Staten Island",
+                             "Yonkers");
+    }
+
+    @Test public void plannerUsesBoundingBoxForSmallRadius() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        assertTrue(getPlan(query).startsWith("bbox"));
+        assertResultsInOrder(query, "New York", "Brooklyn");
+    }
+
+    @Test public void plannerAppliesSelectiveTermFilterFirst() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:5.0");
+        assertTrue(getPlan(query).startsWith("bbox, filter first"));
+        assertResultsInOrder(query, "Brooklyn");
+    }
+
+    @Test public void plannerAppliesSelectiveRangeFilterFirst() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:[4.5 TO 5.5]");
+        assertTrue(getPlan(query).startsWith("bbox, filter first"));
+        assertResultsInOrder(query, "Brooklyn");
+    }
+
+    @Test public void plannerSizesCachedFilters() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery filterQuery = new SolrQuery();
+        filterQuery.addFilterQuery("name_t:Brooklyn OR name_t:Yonkers");
+        getServer().query(filterQuery);
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        query.addFilterQuery("name_t:Brooklyn OR name_t:Yonkers");
+        assertTrue(getPlan(query).startsWith("bbox, filter first"));
+        assertResultsInOrder(query, "Brooklyn");
+    }
+
+    @Test public void plannerKeepsPlansForSearcher() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10 sort=true}40.7142691, -74.0059729");
+        query.addFilterQuery("name_t:Brooklyn OR name_t:Staten");
+        final String plan = getPlan(query);
+        assertFalse(plan.contains("filter first"));
+        // the search has now cached its filter's DocSet
+        assertEquals(plan, getPlan(query));
+        assertResultsInOrder(query, "Brooklyn");
+    }
+
+    @Test public void plannerFollowsExplicitPlan() throws Exception {
+        addStandardFixtures();
+        addLondonFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!radius=10 sort=true plan=cells cells=geohash filterFirst=false}40.7142691, -74.0059729");
+        query.addFilterQuery("rating:5.0");
+        assertEquals("cells", getPlan(query).substring(0, 5));
+        assertFalse(getPlan(query).contains("filter first"));
+        assertResultsInOrder(query, "Brooklyn");
+    }
+
+    private String getPlan(SolrQuery query) throws Exception {
+        final SolrQuery debugQuery = query.getCopy();
+        debugQuery.set("debugQuery", "true");
+        final NamedList debug = (NamedList)
+            getServer().query(debugQuery).getResponse().get("debug");
+        return debug.get("spatialPlan").toString();
+    }
+
+    private void addLondonFixtures() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            addLocation("London " + i, 3.0, 51.5 + i * 0.01, -0.12);
+        }
+        // merge away the documents deleted by earlier tests, which would
+        // otherwise skew the planner's term statistics
+        getServer().optimize();
+    }
+
     @Test public void searchWithoutSpatial() throws Exception {
         addStandardFixtures();
         final SolrQuery query = new SolrQuery();
@@ -146,6 +664,114 @@ public class SpatialSearchTest extends TestHelper {
         assertResults(query, "New York", "Staten Island", "Yonkers");
     }
 
+    @Test public void distanceFacetsCountWithinEachRange() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=15}40.7142691, -74.0059729");
+        query.add("spatial.facet.ranges", "10, 1,6");
+        query.setRows(1);
+        final NamedList facets = (NamedList)
+            getServer().query(query).getResponse().get("distanceFacets");
+        assertEquals(3, facets.size());
+        assertEquals("1", facets.getName(0));
+        assertEquals(1, facets.getVal(0));
+        assertEquals(2, facets.get("6"));
+        assertEquals(2, facets.get("10"));
+    }
+
+    @Test public void distanceFacetsWithVectorsAndFilters() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME,
+                  "{!sort=true vectors=vector}40.7142691, -74.0059729");
+        query.add("spatial.facet.ranges", "6,12,20");
+        query.addFilterQuery("rating:4.0");
+        final NamedList facets = (NamedList)
+            getServer().query(query).getResponse().get("distanceFacets");
+        assertEquals(1, facets.get("6"));
+        assertEquals(2, facets.get("12"));
+        assertEquals(3, facets.get("20"));
+    }
+
+    @Test public void gridCountsResultsByMapTile() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.set("spatial.grid.box", "40.5,-74.3,41.0,-73.8");
+        query.set("spatial.grid.zoom", "10");
+        query.setRows(0);
+        final NamedList tiles = (NamedList)
+            getServer().query(query).getResponse().get("spatialGrid");
+        assertEquals(2, tiles.size());
+        final NamedList north = (NamedList) tiles.get("10/301/384");
+        assertEquals(2, north.get("count"));
+        assertEquals((40.7142691 + 40.9312099) / 2,
+                     (Double) north.get("lat"), 1e-9);
+        final NamedList south = (NamedList) tiles.get("10/301/385");
+        assertEquals(2, south.get("count"));
+        assertEquals((-74.1495875 + -73.9495823) / 2,
+                     (Double) south.get("lng"), 1e-9);
+    }
+
+    @Test public void gridCountsOnlySpatialResults() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=10}40.7142691, -74.0059729");
+        query.set("spatial.grid.box", "40.0,-75.0,42.0,-73.0");
+        query.set("spatial.grid.zoom", "0");
+        final NamedList tiles = (NamedList)
+            getServer().query(query).getResponse().get("spatialGrid");
+        assertEquals(2, ((NamedList) tiles.get("0/0/0")).get("count"));
+    }
+
+    @Test public void searchWithinRadiusOfAnyCenter() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=1}40.7142691, -74.0059729;"
+                  + "40.9312099, -73.8987469");
+        assertResults(query, "New York", "Yonkers");
+    }
+
+    @Test public void searchWithRadiusPerCenter() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=1}40.7142691, -74.0059729 ~ 6;"
+                  + "40.5834379, -74.1495875");
+        assertResults(query, "New York", "Brooklyn", "Staten Island");
+    }
+
+    @Test public void sortByNearestCenter() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!sort=true}40.9312099, -73.8987469;"
+                  + "40.66, -73.95");
+        assertResultsInOrder(query, "Yonkers", "Brooklyn", "New York",
+                             "Staten Island");
+        assertResultDistancesInOrder(query);
+    }
+
+    @Test public void searchInBoxWithoutCenter() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!box='40.6,-74.1,40.8,-73.9'}");
+        assertResults(query, "New York", "Brooklyn");
+    }
+
+    @Test public void searchInPolygonSortedByDistance() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!sort=true polygon='40.5,-74.2;40.5,-73.85;"
+                  + "40.8,-74.0'}40.65, -73.95");
+        assertResultsInOrder(query, "Brooklyn", "New York");
+    }
+
+    @Test public void searchInPolygonAndRadius() throws Exception {
+        addStandardFixtures();
+        final SolrQuery query = new SolrQuery();
+        query.add(PARAM_NAME, "{!radius=20 polygon='40.5,-74.2;40.5,-73.85;"
+                  + "40.8,-74.0'}40.7142691, -74.0059729");
+        assertResults(query, "New York", "Brooklyn");
+    }
+
     private void addStandardFixtures() throws Exception {
         addStandardFixtures(STANDARD_LAT_FIELD, STANDARD_LNG_FIELD);
     }
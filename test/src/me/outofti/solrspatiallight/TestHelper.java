@@ -7,6 +7,9 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrCache;
 
 import static org.junit.Assert.*;
 
@@ -18,10 +21,25 @@ abstract class TestHelper {
         if(server == null) {
             server = EmbeddedSolrServerFactory.getInstance().getServer();
             server.deleteByQuery("id:[* TO *]");
+            forgetEarlierSearches();
         }
         return server;
     }
 
+    // Searches made by earlier tests would otherwise be replayed or
+    // autowarmed into the caches of this test's searchers, and answered
+    // from them.
+    private void forgetEarlierSearches() throws Exception {
+        final SolrCore core = EmbeddedSolrServerFactory.getInstance().getCoreContainer().getCore("");
+        try {
+            SpatialQueryComponent.forCore(core).getRecentSearches().drainMostFrequent(0);
+            ((SolrCache) core.getInfoRegistry().get("filterCache")).clear();
+            ((SolrCache) core.getInfoRegistry().get("queryResultCache")).clear();
+        } finally {
+            core.close();
+        }
+    }
+
     protected void addLocation(String name, String latField, String lngField,
                                double rating, double lat, double lng) throws Exception {
         final SolrInputDocument doc = new SolrInputDocument();
@@ -80,6 +98,29 @@ abstract class TestHelper {
         }
     }
 
+    protected long getCacheHits(String cacheName) throws Exception {
+        final SolrQuery query = new SolrQuery();
+        query.setQueryType("/admin/plugins");
+        query.set("stats", "true");
+        final NamedList plugins = (NamedList) getServer().query(query)
+            .getResponse().get("plugins");
+        final NamedList caches = (NamedList) plugins.get("CACHE");
+        final NamedList cache = (NamedList) caches.get(cacheName);
+        final NamedList stats = (NamedList) cache.get("stats");
+        return ((Number) stats.get("hits")).longValue();
+    }
+
+    protected NamedList getComponentStatistics(String className) throws Exception {
+        final SolrQuery query = new SolrQuery();
+        query.setQueryType("/admin/plugins");
+        query.set("stats", "true");
+        final NamedList plugins = (NamedList) getServer().query(query)
+            .getResponse().get("plugins");
+        final NamedList components = (NamedList) plugins.get("OTHER");
+        final NamedList component = (NamedList) components.get(className);
+        return (NamedList) component.get("stats");
+    }
+
     private void assertCountMatches(String[] names, SolrDocumentList docs) throws Exception {
         assertEquals("It should return " + names.length + " results",
                      names.length, docs.size());